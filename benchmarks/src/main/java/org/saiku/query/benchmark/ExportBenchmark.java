@@ -0,0 +1,120 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.olap4j.Axis;
+import org.olap4j.Cell;
+import org.olap4j.CellSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.saiku.query.Query;
+import org.saiku.query.QueryHierarchy;
+import org.saiku.query.result.CellSets;
+import org.saiku.query.result.CellVisitor;
+import org.saiku.query.result.MaterializedResult;
+
+/**
+ * Exports a result by coordinates, by streaming it with a
+ * {@link CellVisitor}, and by visiting a {@link MaterializedResult}. Run
+ * through {@link BenchmarkMain}, the GC profiler reports the allocation per
+ * operation of each walk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExportBenchmark {
+
+	private CellSet cellSet;
+	private MaterializedResult result;
+
+	@Setup
+	public void setUp() throws Exception {
+		Query query = new Query("export benchmark", FoodMart.getSalesCube());
+		QueryHierarchy customers = query.getHierarchy("[Customers]");
+		customers.includeLevel("City");
+		query.getAxis(Axis.ROWS).addHierarchy(customers);
+		QueryHierarchy time = query.getHierarchy("[Time]");
+		time.includeLevel("Month");
+		query.getAxis(Axis.COLUMNS).addHierarchy(time);
+		query.getDetails().add(query.getMeasure("Unit Sales"));
+		cellSet = query.execute();
+		result = MaterializedResult.of(cellSet);
+	}
+
+	@TearDown
+	public void tearDown() {
+		CellSets.closeQuietly(cellSet);
+	}
+
+	@Benchmark
+	public long coordinates() {
+		Export export = new Export();
+		int columns = result.getColumnCount();
+		for (int row = 0; row < result.getRowCount(); row++) {
+			for (int column = 0; column < columns; column++) {
+				Cell cell = cellSet.getCell(Arrays.asList(column, row));
+				Object value = cell.getValue();
+				export.visit(cell.getOrdinal(), cell.isNull(),
+						value instanceof Number ? ((Number) value).doubleValue() : Double.NaN,
+						cell.getFormattedValue());
+			}
+		}
+		return export.checksum;
+	}
+
+	@Benchmark
+	public long streamed() {
+		Export export = new Export();
+		CellSets.visit(cellSet, export);
+		return export.checksum;
+	}
+
+	@Benchmark
+	public long materialized() {
+		Export export = new Export();
+		result.visit(export);
+		return export.checksum;
+	}
+
+	/**
+	 * Stands in for an exporter, consuming the values without allocating.
+	 */
+	private static class Export implements CellVisitor {
+
+		private long checksum;
+
+		public void visit(int ordinal, boolean empty, double value, String formattedValue) {
+			if (!empty) {
+				checksum += (long) value + (formattedValue == null ? 0 : formattedValue.length());
+			}
+		}
+	}
+}
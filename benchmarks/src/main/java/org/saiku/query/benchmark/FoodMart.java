@@ -0,0 +1,42 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.benchmark;
+
+import org.olap4j.OlapConnection;
+import org.olap4j.metadata.Cube;
+import org.saiku.query.TestContext;
+
+/**
+ * Access to the FoodMart sales cube of the saiku-query tests.
+ */
+final class FoodMart {
+
+	private static Cube sales;
+
+	private FoodMart() {
+	}
+
+	static synchronized Cube getSalesCube() throws Exception {
+		if (sales == null) {
+			OlapConnection connection = TestContext.instance().createConnection();
+			if (connection == null) {
+				throw new IllegalStateException("Cannot connect to FoodMart");
+			}
+			sales = connection.getOlapCatalogs().get("FoodMart").getSchemas().get(0).getCubes().get("Sales");
+		}
+		return sales;
+	}
+}
@@ -0,0 +1,100 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.olap4j.Axis;
+import org.olap4j.Cell;
+import org.olap4j.CellSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.saiku.query.Query;
+import org.saiku.query.QueryHierarchy;
+import org.saiku.query.result.CellSets;
+import org.saiku.query.result.MaterializedResult;
+
+/**
+ * Compares reading all cells of a {@link CellSet} with copying it into a
+ * {@link MaterializedResult} and reading the copy. Run through
+ * {@link BenchmarkMain}, the GC profiler reports the allocation per
+ * operation of each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaterializedResultBenchmark {
+
+	private CellSet cellSet;
+	private MaterializedResult result;
+	private int cellCount;
+
+	@Setup
+	public void setUp() throws Exception {
+		Query query = new Query("materialized result benchmark", FoodMart.getSalesCube());
+		QueryHierarchy customers = query.getHierarchy("[Customers]");
+		customers.includeLevel("City");
+		query.getAxis(Axis.ROWS).addHierarchy(customers);
+		QueryHierarchy time = query.getHierarchy("[Time]");
+		time.includeLevel("Month");
+		query.getAxis(Axis.COLUMNS).addHierarchy(time);
+		query.getDetails().add(query.getMeasure("Unit Sales"));
+		query.getDetails().add(query.getMeasure("Store Sales"));
+		cellSet = query.execute();
+		cellCount = CellSets.getCellCount(cellSet);
+		result = MaterializedResult.of(cellSet);
+	}
+
+	@TearDown
+	public void tearDown() {
+		CellSets.closeQuietly(cellSet);
+	}
+
+	@Benchmark
+	public void readCellSet(Blackhole blackhole) {
+		for (int ordinal = 0; ordinal < cellCount; ordinal++) {
+			Cell cell = cellSet.getCell(ordinal);
+			blackhole.consume(cell.getValue());
+			blackhole.consume(cell.getFormattedValue());
+		}
+	}
+
+	@Benchmark
+	public MaterializedResult materialize() throws Exception {
+		return MaterializedResult.of(cellSet);
+	}
+
+	@Benchmark
+	public void readMaterialized(Blackhole blackhole) {
+		for (int ordinal = 0; ordinal < cellCount; ordinal++) {
+			blackhole.consume(result.getDoubleValue(ordinal));
+			blackhole.consume(result.getFormattedValue(ordinal));
+		}
+	}
+}
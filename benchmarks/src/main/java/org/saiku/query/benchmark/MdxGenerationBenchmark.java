@@ -0,0 +1,84 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.benchmark;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.mdx.SelectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.saiku.query.Olap4jNodeConverter;
+import org.saiku.query.Query;
+
+/**
+ * Measures turning a query model into MDX: building the parse tree,
+ * unparsing it, and both together through {@link Query#getMdx()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MdxGenerationBenchmark {
+
+	@Param
+	public QueryShape shape;
+
+	private Query query;
+
+	private SelectNode select;
+
+	@Setup
+	public void setUp() throws Exception {
+		query = shape.create(FoodMart.getSalesCube());
+		select = Olap4jNodeConverter.toQuery(query);
+	}
+
+	@Benchmark
+	public SelectNode toQuery() throws Exception {
+		return Olap4jNodeConverter.toQuery(query);
+	}
+
+	@Benchmark
+	public String unparse() {
+		StringWriter writer = new StringWriter();
+		select.unparse(new ParseTreeWriter(new PrintWriter(writer)));
+		return writer.toString();
+	}
+
+	/**
+	 * Full MDX generation. The query is touched first so the cached MDX
+	 * is not returned.
+	 */
+	@Benchmark
+	public String getMdx() throws Exception {
+		query.touch();
+		return query.getMdx();
+	}
+}
@@ -0,0 +1,159 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.olap4j.Axis;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Dimension;
+import org.olap4j.metadata.Hierarchy;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Member;
+import org.saiku.query.Query;
+import org.saiku.query.QueryHierarchy;
+import org.saiku.query.metadata.CalculatedMeasure;
+
+/**
+ * The query shapes the benchmarks are run with, from trivial to very large.
+ */
+public enum QueryShape {
+
+	/** One level on rows and one measure. */
+	TRIVIAL {
+		@Override
+		void build(Query query) throws Exception {
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			query.getAxis(Axis.ROWS).addHierarchy(products);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+		}
+	},
+
+	/** Up to 20 hierarchies cross joined on rows. */
+	WIDE_AXIS {
+		@Override
+		void build(Query query) throws Exception {
+			int count = 0;
+			for (Hierarchy hierarchy : query.getCube().getHierarchies()) {
+				if (count == WIDE_AXIS_HIERARCHIES) {
+					break;
+				}
+				if (hierarchy.getDimension().getDimensionType() == Dimension.Type.MEASURE) {
+					continue;
+				}
+				QueryHierarchy h = query.getHierarchy(hierarchy);
+				h.includeLevel(firstRegularLevel(hierarchy));
+				query.getAxis(Axis.ROWS).addHierarchy(h);
+				count++;
+			}
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+		}
+	},
+
+	/** All customers included one by one. */
+	LARGE_INCLUSIONS {
+		@Override
+		void build(Query query) throws Exception {
+			QueryHierarchy customers = query.getHierarchy("[Customers]");
+			Level name = customers.getHierarchy().getLevels().get("Name");
+			List<Member> members = new ArrayList<Member>(name.getMembers());
+			customers.includeMembers(members);
+			query.getAxis(Axis.ROWS).addHierarchy(customers);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+		}
+	},
+
+	/** 200 calculated measures. */
+	CALCULATED_MEASURES {
+		@Override
+		void build(Query query) throws Exception {
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			query.getAxis(Axis.ROWS).addHierarchy(products);
+			for (int i = 0; i < CALCULATED_MEASURE_COUNT; i++) {
+				CalculatedMeasure cm = query.createCalculatedMeasure("Calculated " + i,
+						"[Measures].[Unit Sales] * " + (i + 1) + " / [Measures].[Store Sales]", null);
+				query.getDetails().add(cm);
+			}
+		}
+	},
+
+	/**
+	 * Member selections on every level of consistent hierarchies, which
+	 * are chained with Exists.
+	 */
+	EXISTS_CHAIN {
+		@Override
+		void build(Query query) throws Exception {
+			selectDeep(query, "[Product]", 3);
+			selectDeep(query, "[Customers]", 3);
+			selectDeep(query, "[Store]", 2);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+		}
+	};
+
+	static final int WIDE_AXIS_HIERARCHIES = 20;
+
+	static final int CALCULATED_MEASURE_COUNT = 200;
+
+	abstract void build(Query query) throws Exception;
+
+	/**
+	 * Creates a query of this shape.
+	 * @param cube The FoodMart sales cube
+	 * @return The query
+	 * @throws Exception if the query cannot be created
+	 */
+	public Query create(Cube cube) throws Exception {
+		Query query = new Query(name(), cube);
+		build(query);
+		return query;
+	}
+
+	private static Level firstRegularLevel(Hierarchy hierarchy) {
+		for (Level level : hierarchy.getLevels()) {
+			if (level.getLevelType() != Level.Type.ALL) {
+				return level;
+			}
+		}
+		return hierarchy.getLevels().get(0);
+	}
+
+	/*
+	 * Includes the first children of the first members, level by level
+	 * down to the leaves, and puts the hierarchy on rows.
+	 */
+	private static void selectDeep(Query query, String hierarchyName, int width) throws Exception {
+		QueryHierarchy h = query.getHierarchy(hierarchyName);
+		h.setConsistent(true);
+		List<Member> level = new ArrayList<Member>();
+		for (Member root : h.getHierarchy().getRootMembers()) {
+			level.addAll(root.getChildMembers());
+		}
+		while (!level.isEmpty()) {
+			List<Member> selected = level.subList(0, Math.min(width, level.size()));
+			h.includeMembers(new ArrayList<Member>(selected));
+			List<Member> children = new ArrayList<Member>();
+			for (Member m : selected) {
+				children.addAll(m.getChildMembers());
+			}
+			level = children;
+		}
+		query.getAxis(Axis.ROWS).addHierarchy(h);
+	}
+}
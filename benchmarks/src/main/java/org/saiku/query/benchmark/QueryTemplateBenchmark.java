@@ -0,0 +1,92 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.olap4j.Axis;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.saiku.query.Query;
+import org.saiku.query.QueryHierarchy;
+import org.saiku.query.QueryTemplate;
+
+/**
+ * Compares binding parameter values into a compiled {@link QueryTemplate}
+ * with regenerating the MDX of the whole query for every value.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryTemplateBenchmark {
+
+	private static final String[] FAMILIES = { "Food", "Drink", "Non-Consumable", "Drink, Food" };
+
+	private Query query;
+	private QueryTemplate template;
+	private final Map<String, String> values = new HashMap<String, String>();
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		query = new Query("template benchmark", FoodMart.getSalesCube());
+		QueryHierarchy store = query.getHierarchy("[Store]");
+		store.includeLevel("Store Country");
+		store.includeLevel("Store State");
+		query.getAxis(Axis.COLUMNS).addHierarchy(store);
+		QueryHierarchy products = query.getHierarchy("[Product]");
+		products.includeLevel("Product Family").setParameterName("family");
+		products.includeLevel("Product Department");
+		products.includeLevel("Product Category");
+		query.getAxis(Axis.ROWS).addHierarchy(products);
+		QueryHierarchy time = query.getHierarchy("[Time]");
+		time.includeLevel("Year");
+		time.includeLevel("Quarter");
+		query.getAxis(Axis.ROWS).addHierarchy(time);
+		query.setParameter("family", FAMILIES[0]);
+		template = QueryTemplate.compile(query);
+	}
+
+	private String nextFamily() {
+		next = (next + 1) % FAMILIES.length;
+		return FAMILIES[next];
+	}
+
+	@Benchmark
+	public String regenerate() throws Exception {
+		query.setParameter("family", nextFamily());
+		return query.getMdx();
+	}
+
+	@Benchmark
+	public String bind() throws Exception {
+		values.put("family", nextFamily());
+		return template.bind(values);
+	}
+}
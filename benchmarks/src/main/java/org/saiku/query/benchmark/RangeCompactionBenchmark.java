@@ -0,0 +1,93 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.olap4j.Axis;
+import org.olap4j.OlapConnection;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Member;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.saiku.query.Query;
+import org.saiku.query.QueryHierarchy;
+
+/**
+ * Measures the time the server needs to parse and validate a large member
+ * selection with and without range compaction, and the time to generate
+ * its MDX.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RangeCompactionBenchmark {
+
+	@Param({ "5000" })
+	public int memberCount;
+
+	@Param({ "0", "2", "10" })
+	public int minRunLength;
+
+	private Query query;
+	private OlapConnection connection;
+	private String mdx;
+
+	@Setup
+	public void setUp() throws Exception {
+		query = new Query("range compaction benchmark", FoodMart.getSalesCube());
+		QueryHierarchy customers = query.getHierarchy("[Customers]");
+		Level names = customers.getHierarchy().getLevels().get("Name");
+		List<Member> members = new ArrayList<Member>();
+		for (Member m : names.getMembers()) {
+			if (members.size() == memberCount) {
+				break;
+			}
+			members.add(m);
+		}
+		customers.includeMembers(members);
+		query.getAxis(Axis.ROWS).addHierarchy(customers);
+		query.getDetails().add(query.getMeasure("Unit Sales"));
+		query.setRangeCompaction(minRunLength);
+		connection = query.getConnection();
+		mdx = query.getMdx();
+	}
+
+	@Benchmark
+	public String getMdx() throws Exception {
+		query.touch();
+		return query.getMdx();
+	}
+
+	@Benchmark
+	public void prepare() throws Exception {
+		connection.prepareOlapStatement(mdx).close();
+	}
+}
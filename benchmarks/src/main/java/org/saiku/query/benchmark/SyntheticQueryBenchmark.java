@@ -0,0 +1,111 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.olap4j.Axis;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Member;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.saiku.query.Query;
+import org.saiku.query.QueryAxis;
+import org.saiku.query.QueryHierarchy;
+import org.saiku.query.SyntheticCube;
+
+/**
+ * Builds queries and generates their MDX on a {@link SyntheticCube}, at
+ * sizes FoodMart cannot provide: many hierarchies cross joined on an axis
+ * and member selections of up to 100k members.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyntheticQueryBenchmark {
+
+	@Param({ "20", "200" })
+	public int hierarchies;
+
+	@Param({ "1000", "100000" })
+	public int inclusions;
+
+	private Cube cube;
+
+	private List<Member> members;
+
+	private Query query;
+
+	@Setup
+	public void setUp() throws Exception {
+		cube = SyntheticCube.builder()
+				.hierarchies(hierarchies + 1)
+				.levels(3)
+				.childrenPerMember(50)
+				.build();
+		List<Member> leaves = cube.getHierarchies().get("H0").getLevels().get("Level 3").getMembers();
+		members = new ArrayList<Member>(leaves.subList(0, Math.min(inclusions, leaves.size())));
+		query = buildQuery();
+	}
+
+	private Query buildQuery() throws Exception {
+		Query q = new Query("synthetic", cube);
+		QueryAxis rows = q.getAxis(Axis.ROWS);
+		for (int i = 1; i <= hierarchies; i++) {
+			QueryHierarchy h = q.getHierarchy("H" + i);
+			h.includeLevel("Level 1");
+			rows.addHierarchy(h);
+		}
+		QueryHierarchy selected = q.getHierarchy("H0");
+		selected.includeMembers(members);
+		q.getAxis(Axis.COLUMNS).addHierarchy(selected);
+		q.getDetails().add(q.getMeasure("Measure 0"));
+		return q;
+	}
+
+	/**
+	 * Creating the query model, without generating MDX.
+	 */
+	@Benchmark
+	public Query build() throws Exception {
+		return buildQuery();
+	}
+
+	@Benchmark
+	public String getMdx() throws Exception {
+		query.touch();
+		return query.getMdx();
+	}
+
+	@Benchmark
+	public Query copy() {
+		return query.copy("variant");
+	}
+}
@@ -15,6 +15,7 @@
  */package org.saiku.query;
 
 import org.apache.commons.lang.StringUtils;
+import org.saiku.query.mdx.AbstractFilterFunction;
 import org.saiku.query.mdx.IFilterFunction;
 
 import java.util.ArrayList;
@@ -31,8 +32,47 @@ public abstract class AbstractQuerySet implements IQuerySet {
 	
 	private List<IFilterFunction> filters = new ArrayList<IFilterFunction>();
 
+	/**
+	 * Calls {@link #touch()}, for views that write through to this query set.
+	 */
+	final Runnable touchCallback = new Runnable() {
+		public void run() {
+			touch();
+		}
+	};
+
 	
 	public abstract String getName();
+
+	/**
+	 * Called after every modification of this query set so the owning
+	 * {@link Query} can invalidate its generated MDX.
+	 */
+	protected void touch() {
+	}
+
+	/**
+	 * Returns a modifiable view of a list of this query set that calls
+	 * {@link #touch()} after every change.
+	 */
+	<E> List<E> touching(List<E> list) {
+		return new TouchingList<E>(list, touchCallback);
+	}
+
+	/**
+	 * Copies the state of another query set into this one, used when a
+	 * query is copied. Filter functions are copied if they have modifiable
+	 * state, see {@link AbstractFilterFunction#copy()}.
+	 */
+	protected void copyFrom(AbstractQuerySet other) {
+		this.mdxExpression = other.mdxExpression;
+		this.filters = new ArrayList<IFilterFunction>(other.filters.size());
+		for (IFilterFunction filter : other.filters) {
+			this.filters.add(filter instanceof AbstractFilterFunction
+					? ((AbstractFilterFunction) filter).copy()
+					: filter);
+		}
+	}
 	
 	public boolean isSimple() {
 		return (mdxExpression == null && filters.isEmpty());
@@ -44,7 +84,7 @@ public abstract class AbstractQuerySet implements IQuerySet {
 	@Override
 	public void setMdxSetExpression(String mdxSetExpression) {
 		this.mdxExpression = mdxSetExpression;
-		
+		touch();
 	}
 	
 	/* (non-Javadoc)
@@ -66,20 +106,27 @@ public abstract class AbstractQuerySet implements IQuerySet {
 	@Override
 	public void addFilter(IFilterFunction filter) {
 		filters.add(filter);
+		touch();
 	}
 	
 	@Override
 	public void setFilter(int index, IFilterFunction filter) {
 		filters.set(index, filter);
+		touch();
 	}
 
+	/**
+	 * Returns the filters of this query set. Changes to the list write
+	 * through to this query set.
+	 */
 	@Override
 	public List<IFilterFunction> getFilters() {
-		return filters;
+		return touching(filters);
 	}
 	@Override
 	public void clearFilters() {
 		filters.clear();
+		touch();
 	}
 	
 
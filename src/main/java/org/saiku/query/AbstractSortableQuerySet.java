@@ -20,6 +20,17 @@ public abstract class AbstractSortableQuerySet extends AbstractQuerySet implemen
 	private SortOrder sortOrder;
 	private String sortEvaluationLiteral;
 	private HierarchizeMode hierarchizeMode;
+
+	@Override
+	protected void copyFrom(AbstractQuerySet other) {
+		super.copyFrom(other);
+		if (other instanceof AbstractSortableQuerySet) {
+			AbstractSortableQuerySet sortable = (AbstractSortableQuerySet) other;
+			this.sortOrder = sortable.sortOrder;
+			this.sortEvaluationLiteral = sortable.sortEvaluationLiteral;
+			this.hierarchizeMode = sortable.hierarchizeMode;
+		}
+	}
 	
 	/* (non-Javadoc)
 	 * @see org.saiku.query.IQuerySet#sort(org.saiku.query.SortOrder)
@@ -27,7 +38,7 @@ public abstract class AbstractSortableQuerySet extends AbstractQuerySet implemen
 	@Override
 	public void sort(SortOrder order) {
 		this.sortOrder = order;
-
+		touch();
 	}
 	
 	/* (non-Javadoc)
@@ -37,6 +48,7 @@ public abstract class AbstractSortableQuerySet extends AbstractQuerySet implemen
 	public void sort(SortOrder order, String sortEvaluationLiteral) {
 		this.sortOrder = order;
 		this.sortEvaluationLiteral = sortEvaluationLiteral;
+		touch();
 	}
 
 	/* (non-Javadoc)
@@ -59,6 +71,7 @@ public abstract class AbstractSortableQuerySet extends AbstractQuerySet implemen
 	public void clearSort() {
 		this.sortOrder = null;
 		this.sortEvaluationLiteral = null;
+		touch();
 	}
 
 	/* (non-Javadoc)
@@ -75,7 +88,7 @@ public abstract class AbstractSortableQuerySet extends AbstractQuerySet implemen
 	@Override
 	public void setHierarchizeMode(HierarchizeMode hierarchizeMode) {
 		this.hierarchizeMode = hierarchizeMode;
-
+		touch();
 	}
 
 	/* (non-Javadoc)
@@ -84,7 +97,7 @@ public abstract class AbstractSortableQuerySet extends AbstractQuerySet implemen
 	@Override
 	public void clearHierarchizeMode() {
 		this.hierarchizeMode = null;
-
+		touch();
 	}
 
 
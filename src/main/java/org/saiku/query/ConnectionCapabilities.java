@@ -0,0 +1,188 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query;
+
+import java.lang.ref.WeakReference;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapDatabaseMetaData;
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Catalog;
+import org.saiku.query.Query.BackendFlavor;
+
+/**
+ * Facts about an OLAP backend that are probed once per connection and
+ * catalog and shared by all queries running against it.
+ * <p>Probing the backend (e.g. the {@link BackendFlavor}) requires metadata
+ * calls which are full network round trips over XMLA, so the results are
+ * kept in a registry that holds on to the connections weakly.
+ */
+public class ConnectionCapabilities {
+
+	public static final String NON_EMPTY_CROSSJOIN = "NonEmptyCrossJoin";
+	public static final String NATIVIZE_SET = "NativizeSet";
+	public static final String EXISTS = "Exists";
+
+	private static final Map<OlapConnection, Map<String, ConnectionCapabilities>> registry =
+			Collections.synchronizedMap(new WeakHashMap<OlapConnection, Map<String, ConnectionCapabilities>>());
+
+	/**
+	 * Held weakly, a strong reference from the value would keep the weak
+	 * key of the registry reachable.
+	 */
+	private final WeakReference<OlapConnection> connection;
+	private final String catalogName;
+	private volatile BackendFlavor flavor;
+	private final ConcurrentMap<String, Boolean> functions = new ConcurrentHashMap<String, Boolean>();
+
+	private ConnectionCapabilities(OlapConnection connection, String catalogName) {
+		this.connection = new WeakReference<OlapConnection>(connection);
+		this.catalogName = catalogName;
+	}
+
+	/**
+	 * Returns the shared capabilities for the given connection and catalog.
+	 * @param connection The connection to the backend
+	 * @param catalog The catalog queries are run against
+	 * @return the capabilities, never null
+	 */
+	public static ConnectionCapabilities get(OlapConnection connection, Catalog catalog) {
+		String catalogName = (catalog == null ? "" : catalog.getName());
+		synchronized (registry) {
+			Map<String, ConnectionCapabilities> catalogs = registry.get(connection);
+			if (catalogs == null) {
+				catalogs = new HashMap<String, ConnectionCapabilities>();
+				registry.put(connection, catalogs);
+			}
+			ConnectionCapabilities capabilities = catalogs.get(catalogName);
+			if (capabilities == null) {
+				capabilities = new ConnectionCapabilities(connection, catalogName);
+				catalogs.put(catalogName, capabilities);
+			}
+			return capabilities;
+		}
+	}
+
+	/**
+	 * Forgets everything probed for the given connection, e.g. after the
+	 * backend has been upgraded or the connection has been reconfigured.
+	 * @param connection The connection to invalidate
+	 */
+	public static void invalidate(OlapConnection connection) {
+		registry.remove(connection);
+	}
+
+	public String getCatalogName() {
+		return catalogName;
+	}
+
+	/**
+	 * Returns the vendor of the backend. It is determined on first use.
+	 * @return the backend flavor
+	 * @throws OlapException if the database metadata cannot be accessed
+	 */
+	public BackendFlavor getFlavor() throws OlapException {
+		BackendFlavor f = flavor;
+		if (f == null) {
+			final OlapConnection connection = getConnection();
+			final String dataSourceInfo = connection.getOlapDatabase().getDataSourceInfo();
+			final String provider = connection.getOlapDatabase().getProviderName();
+			f = BackendFlavor.detect(provider, dataSourceInfo);
+			flavor = f;
+		}
+		return f;
+	}
+
+	public boolean supportsNonEmptyCrossJoin() throws OlapException {
+		return supportsFunction(NON_EMPTY_CROSSJOIN);
+	}
+
+	public boolean supportsNativizeSet() throws OlapException {
+		return supportsFunction(NATIVIZE_SET);
+	}
+
+	public boolean supportsExists() throws OlapException {
+		return supportsFunction(EXISTS);
+	}
+
+	/**
+	 * Returns whether the backend knows the MDX function of the given name.
+	 * For Mondrian and SSAS the answer is known, other backends are asked
+	 * for their function list once per function. If a backend cannot list
+	 * its functions, the function is assumed to be supported, so the MDX is
+	 * the same as without probing.
+	 * @param functionName The name of the MDX function, e.g. "Exists"
+	 * @return true if the function can be used in generated MDX
+	 * @throws OlapException if the database metadata cannot be accessed
+	 */
+	public boolean supportsFunction(String functionName) throws OlapException {
+		Boolean supported = functions.get(functionName);
+		if (supported == null) {
+			supported = probeFunction(functionName);
+			functions.putIfAbsent(functionName, supported);
+		}
+		return supported;
+	}
+
+	private Boolean probeFunction(String functionName) throws OlapException {
+		switch (getFlavor()) {
+			case MONDRIAN:
+				return true;
+			case SSAS:
+				return !NATIVIZE_SET.equals(functionName);
+			default:
+				break;
+		}
+		ResultSet rs = null;
+		try {
+			OlapDatabaseMetaData metaData = getConnection().getMetaData();
+			rs = metaData.getOlapFunctions(functionName);
+			return rs.next();
+		} catch (SQLException e) {
+			// inconclusive, keep generating the MDX we always generated
+			return true;
+		} finally {
+			if (rs != null) {
+				try {
+					rs.close();
+				} catch (SQLException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	private OlapConnection getConnection() throws OlapException {
+		OlapConnection c = connection.get();
+		if (c == null) {
+			throw new OlapException("The connection of catalog " + catalogName + " has been closed");
+		}
+		return c;
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionCapabilities[" + catalogName + ", flavor=" + flavor + ", functions=" + functions + "]";
+	}
+}
@@ -0,0 +1,1242 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.olap4j.AllocationPolicy;
+import org.olap4j.Axis;
+import org.olap4j.Cell;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.olap4j.CellSetAxisMetaData;
+import org.olap4j.CellSetListener;
+import org.olap4j.CellSetMetaData;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.OlapStatement;
+import org.olap4j.Position;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.metadata.Property;
+
+/**
+ * The cell set of a statement leased from a {@link QueryExecutor}.
+ * <p>Closing the cell set, or the statement returned by
+ * {@link #getStatement()}, closes both and only then releases the statement
+ * to the executor. So the connection of a pooled statement is not handed to
+ * another execution while its cells are still being read. The cells and
+ * axes of the cell set lead back to it, not to the driver's cell set.
+ */
+public final class LeasedCellSet implements CellSet {
+
+	private final CellSet cellSet;
+	private final OlapStatement statement;
+	private final QueryExecutor executor;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final LeasedStatement leasedStatement = new LeasedStatement();
+	private volatile List<CellSetAxis> axes;
+
+	private LeasedCellSet(CellSet cellSet, OlapStatement statement, QueryExecutor executor) {
+		this.cellSet = cellSet;
+		this.statement = statement;
+		this.executor = executor;
+	}
+
+	/**
+	 * @param cellSet The executed cell set
+	 * @param statement The statement that executed it
+	 * @param executor The executor the statement was leased from, can be null
+	 * @return A cell set that closes the statement and ends its lease when
+	 *     closed, or the cell set itself without an executor
+	 */
+	static CellSet of(CellSet cellSet, OlapStatement statement, QueryExecutor executor) {
+		if (executor == null) {
+			return cellSet;
+		}
+		return new LeasedCellSet(cellSet, statement, executor);
+	}
+
+	/**
+	 * Closes a statement whose execution failed and releases it right away.
+	 * @param statement The statement
+	 * @param executor The executor the statement was leased from, can be null
+	 */
+	static void discard(OlapStatement statement, QueryExecutor executor) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			// the statement has failed already
+		} finally {
+			if (executor != null) {
+				executor.releaseStatement(statement);
+			}
+		}
+	}
+
+	/**
+	 * Returns the cell set of the driver, e.g. to read many cells without
+	 * the indirection. Closing it does not end the lease, close this cell
+	 * set instead.
+	 * @param cellSet A cell set
+	 * @return The driver's cell set of a leased cell set, otherwise the cell set
+	 */
+	public static CellSet getDelegate(CellSet cellSet) {
+		if (cellSet instanceof LeasedCellSet) {
+			return ((LeasedCellSet) cellSet).cellSet;
+		}
+		return cellSet;
+	}
+
+	public void close() throws SQLException {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			cellSet.close();
+		} finally {
+			try {
+				statement.close();
+			} finally {
+				executor.releaseStatement(statement);
+			}
+		}
+	}
+
+	public boolean isClosed() throws SQLException {
+		return closed.get() || cellSet.isClosed();
+	}
+
+	public OlapStatement getStatement() throws SQLException {
+		return leasedStatement;
+	}
+
+	public CellSetMetaData getMetaData() throws OlapException {
+		return cellSet.getMetaData();
+	}
+
+	public List<CellSetAxis> getAxes() {
+		List<CellSetAxis> result = axes;
+		if (result == null) {
+			List<CellSetAxis> driverAxes = cellSet.getAxes();
+			result = new ArrayList<CellSetAxis>(driverAxes.size());
+			for (CellSetAxis axis : driverAxes) {
+				result.add(new LeasedAxis(axis));
+			}
+			result = Collections.unmodifiableList(result);
+			axes = result;
+		}
+		return result;
+	}
+
+	public CellSetAxis getFilterAxis() {
+		return new LeasedAxis(cellSet.getFilterAxis());
+	}
+
+	public Cell getCell(List<Integer> coordinates) {
+		return new LeasedCell(cellSet.getCell(coordinates));
+	}
+
+	public Cell getCell(int ordinal) {
+		return new LeasedCell(cellSet.getCell(ordinal));
+	}
+
+	public Cell getCell(Position... positions) {
+		return new LeasedCell(cellSet.getCell(positions));
+	}
+
+	public List<Integer> ordinalToCoordinates(int ordinal) {
+		return cellSet.ordinalToCoordinates(ordinal);
+	}
+
+	public int coordinatesToOrdinal(List<Integer> coordinates) {
+		return cellSet.coordinatesToOrdinal(coordinates);
+	}
+
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		return cellSet.unwrap(iface);
+	}
+
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this) || cellSet.isWrapperFor(iface);
+	}
+
+	public boolean next() throws SQLException {
+		return cellSet.next();
+	}
+
+	public boolean wasNull() throws SQLException {
+		return cellSet.wasNull();
+	}
+
+	public String getString(int columnIndex) throws SQLException {
+		return cellSet.getString(columnIndex);
+	}
+
+	public boolean getBoolean(int columnIndex) throws SQLException {
+		return cellSet.getBoolean(columnIndex);
+	}
+
+	public byte getByte(int columnIndex) throws SQLException {
+		return cellSet.getByte(columnIndex);
+	}
+
+	public short getShort(int columnIndex) throws SQLException {
+		return cellSet.getShort(columnIndex);
+	}
+
+	public int getInt(int columnIndex) throws SQLException {
+		return cellSet.getInt(columnIndex);
+	}
+
+	public long getLong(int columnIndex) throws SQLException {
+		return cellSet.getLong(columnIndex);
+	}
+
+	public float getFloat(int columnIndex) throws SQLException {
+		return cellSet.getFloat(columnIndex);
+	}
+
+	public double getDouble(int columnIndex) throws SQLException {
+		return cellSet.getDouble(columnIndex);
+	}
+
+	@Deprecated
+	public BigDecimal getBigDecimal(int columnIndex, int scale) throws SQLException {
+		return cellSet.getBigDecimal(columnIndex, scale);
+	}
+
+	public byte[] getBytes(int columnIndex) throws SQLException {
+		return cellSet.getBytes(columnIndex);
+	}
+
+	public Date getDate(int columnIndex) throws SQLException {
+		return cellSet.getDate(columnIndex);
+	}
+
+	public Time getTime(int columnIndex) throws SQLException {
+		return cellSet.getTime(columnIndex);
+	}
+
+	public Timestamp getTimestamp(int columnIndex) throws SQLException {
+		return cellSet.getTimestamp(columnIndex);
+	}
+
+	public InputStream getAsciiStream(int columnIndex) throws SQLException {
+		return cellSet.getAsciiStream(columnIndex);
+	}
+
+	@Deprecated
+	public InputStream getUnicodeStream(int columnIndex) throws SQLException {
+		return cellSet.getUnicodeStream(columnIndex);
+	}
+
+	public InputStream getBinaryStream(int columnIndex) throws SQLException {
+		return cellSet.getBinaryStream(columnIndex);
+	}
+
+	public String getString(String columnLabel) throws SQLException {
+		return cellSet.getString(columnLabel);
+	}
+
+	public boolean getBoolean(String columnLabel) throws SQLException {
+		return cellSet.getBoolean(columnLabel);
+	}
+
+	public byte getByte(String columnLabel) throws SQLException {
+		return cellSet.getByte(columnLabel);
+	}
+
+	public short getShort(String columnLabel) throws SQLException {
+		return cellSet.getShort(columnLabel);
+	}
+
+	public int getInt(String columnLabel) throws SQLException {
+		return cellSet.getInt(columnLabel);
+	}
+
+	public long getLong(String columnLabel) throws SQLException {
+		return cellSet.getLong(columnLabel);
+	}
+
+	public float getFloat(String columnLabel) throws SQLException {
+		return cellSet.getFloat(columnLabel);
+	}
+
+	public double getDouble(String columnLabel) throws SQLException {
+		return cellSet.getDouble(columnLabel);
+	}
+
+	@Deprecated
+	public BigDecimal getBigDecimal(String columnLabel, int scale) throws SQLException {
+		return cellSet.getBigDecimal(columnLabel, scale);
+	}
+
+	public byte[] getBytes(String columnLabel) throws SQLException {
+		return cellSet.getBytes(columnLabel);
+	}
+
+	public Date getDate(String columnLabel) throws SQLException {
+		return cellSet.getDate(columnLabel);
+	}
+
+	public Time getTime(String columnLabel) throws SQLException {
+		return cellSet.getTime(columnLabel);
+	}
+
+	public Timestamp getTimestamp(String columnLabel) throws SQLException {
+		return cellSet.getTimestamp(columnLabel);
+	}
+
+	public InputStream getAsciiStream(String columnLabel) throws SQLException {
+		return cellSet.getAsciiStream(columnLabel);
+	}
+
+	@Deprecated
+	public InputStream getUnicodeStream(String columnLabel) throws SQLException {
+		return cellSet.getUnicodeStream(columnLabel);
+	}
+
+	public InputStream getBinaryStream(String columnLabel) throws SQLException {
+		return cellSet.getBinaryStream(columnLabel);
+	}
+
+	public SQLWarning getWarnings() throws SQLException {
+		return cellSet.getWarnings();
+	}
+
+	public void clearWarnings() throws SQLException {
+		cellSet.clearWarnings();
+	}
+
+	public String getCursorName() throws SQLException {
+		return cellSet.getCursorName();
+	}
+
+	public Object getObject(int columnIndex) throws SQLException {
+		return cellSet.getObject(columnIndex);
+	}
+
+	public Object getObject(String columnLabel) throws SQLException {
+		return cellSet.getObject(columnLabel);
+	}
+
+	public int findColumn(String columnLabel) throws SQLException {
+		return cellSet.findColumn(columnLabel);
+	}
+
+	public Reader getCharacterStream(int columnIndex) throws SQLException {
+		return cellSet.getCharacterStream(columnIndex);
+	}
+
+	public Reader getCharacterStream(String columnLabel) throws SQLException {
+		return cellSet.getCharacterStream(columnLabel);
+	}
+
+	public BigDecimal getBigDecimal(int columnIndex) throws SQLException {
+		return cellSet.getBigDecimal(columnIndex);
+	}
+
+	public BigDecimal getBigDecimal(String columnLabel) throws SQLException {
+		return cellSet.getBigDecimal(columnLabel);
+	}
+
+	public boolean isBeforeFirst() throws SQLException {
+		return cellSet.isBeforeFirst();
+	}
+
+	public boolean isAfterLast() throws SQLException {
+		return cellSet.isAfterLast();
+	}
+
+	public boolean isFirst() throws SQLException {
+		return cellSet.isFirst();
+	}
+
+	public boolean isLast() throws SQLException {
+		return cellSet.isLast();
+	}
+
+	public void beforeFirst() throws SQLException {
+		cellSet.beforeFirst();
+	}
+
+	public void afterLast() throws SQLException {
+		cellSet.afterLast();
+	}
+
+	public boolean first() throws SQLException {
+		return cellSet.first();
+	}
+
+	public boolean last() throws SQLException {
+		return cellSet.last();
+	}
+
+	public int getRow() throws SQLException {
+		return cellSet.getRow();
+	}
+
+	public boolean absolute(int row) throws SQLException {
+		return cellSet.absolute(row);
+	}
+
+	public boolean relative(int rows) throws SQLException {
+		return cellSet.relative(rows);
+	}
+
+	public boolean previous() throws SQLException {
+		return cellSet.previous();
+	}
+
+	public void setFetchDirection(int direction) throws SQLException {
+		cellSet.setFetchDirection(direction);
+	}
+
+	public int getFetchDirection() throws SQLException {
+		return cellSet.getFetchDirection();
+	}
+
+	public void setFetchSize(int rows) throws SQLException {
+		cellSet.setFetchSize(rows);
+	}
+
+	public int getFetchSize() throws SQLException {
+		return cellSet.getFetchSize();
+	}
+
+	public int getType() throws SQLException {
+		return cellSet.getType();
+	}
+
+	public int getConcurrency() throws SQLException {
+		return cellSet.getConcurrency();
+	}
+
+	public boolean rowUpdated() throws SQLException {
+		return cellSet.rowUpdated();
+	}
+
+	public boolean rowInserted() throws SQLException {
+		return cellSet.rowInserted();
+	}
+
+	public boolean rowDeleted() throws SQLException {
+		return cellSet.rowDeleted();
+	}
+
+	public void updateNull(int columnIndex) throws SQLException {
+		cellSet.updateNull(columnIndex);
+	}
+
+	public void updateBoolean(int columnIndex, boolean x) throws SQLException {
+		cellSet.updateBoolean(columnIndex, x);
+	}
+
+	public void updateByte(int columnIndex, byte x) throws SQLException {
+		cellSet.updateByte(columnIndex, x);
+	}
+
+	public void updateShort(int columnIndex, short x) throws SQLException {
+		cellSet.updateShort(columnIndex, x);
+	}
+
+	public void updateInt(int columnIndex, int x) throws SQLException {
+		cellSet.updateInt(columnIndex, x);
+	}
+
+	public void updateLong(int columnIndex, long x) throws SQLException {
+		cellSet.updateLong(columnIndex, x);
+	}
+
+	public void updateFloat(int columnIndex, float x) throws SQLException {
+		cellSet.updateFloat(columnIndex, x);
+	}
+
+	public void updateDouble(int columnIndex, double x) throws SQLException {
+		cellSet.updateDouble(columnIndex, x);
+	}
+
+	public void updateBigDecimal(int columnIndex, BigDecimal x) throws SQLException {
+		cellSet.updateBigDecimal(columnIndex, x);
+	}
+
+	public void updateString(int columnIndex, String x) throws SQLException {
+		cellSet.updateString(columnIndex, x);
+	}
+
+	public void updateBytes(int columnIndex, byte[] x) throws SQLException {
+		cellSet.updateBytes(columnIndex, x);
+	}
+
+	public void updateDate(int columnIndex, Date x) throws SQLException {
+		cellSet.updateDate(columnIndex, x);
+	}
+
+	public void updateTime(int columnIndex, Time x) throws SQLException {
+		cellSet.updateTime(columnIndex, x);
+	}
+
+	public void updateTimestamp(int columnIndex, Timestamp x) throws SQLException {
+		cellSet.updateTimestamp(columnIndex, x);
+	}
+
+	public void updateAsciiStream(int columnIndex, InputStream x, int length) throws SQLException {
+		cellSet.updateAsciiStream(columnIndex, x, length);
+	}
+
+	public void updateBinaryStream(int columnIndex, InputStream x, int length) throws SQLException {
+		cellSet.updateBinaryStream(columnIndex, x, length);
+	}
+
+	public void updateCharacterStream(int columnIndex, Reader reader, int length) throws SQLException {
+		cellSet.updateCharacterStream(columnIndex, reader, length);
+	}
+
+	public void updateObject(int columnIndex, Object x, int scaleOrLength) throws SQLException {
+		cellSet.updateObject(columnIndex, x, scaleOrLength);
+	}
+
+	public void updateObject(int columnIndex, Object x) throws SQLException {
+		cellSet.updateObject(columnIndex, x);
+	}
+
+	public void updateNull(String columnLabel) throws SQLException {
+		cellSet.updateNull(columnLabel);
+	}
+
+	public void updateBoolean(String columnLabel, boolean x) throws SQLException {
+		cellSet.updateBoolean(columnLabel, x);
+	}
+
+	public void updateByte(String columnLabel, byte x) throws SQLException {
+		cellSet.updateByte(columnLabel, x);
+	}
+
+	public void updateShort(String columnLabel, short x) throws SQLException {
+		cellSet.updateShort(columnLabel, x);
+	}
+
+	public void updateInt(String columnLabel, int x) throws SQLException {
+		cellSet.updateInt(columnLabel, x);
+	}
+
+	public void updateLong(String columnLabel, long x) throws SQLException {
+		cellSet.updateLong(columnLabel, x);
+	}
+
+	public void updateFloat(String columnLabel, float x) throws SQLException {
+		cellSet.updateFloat(columnLabel, x);
+	}
+
+	public void updateDouble(String columnLabel, double x) throws SQLException {
+		cellSet.updateDouble(columnLabel, x);
+	}
+
+	public void updateBigDecimal(String columnLabel, BigDecimal x) throws SQLException {
+		cellSet.updateBigDecimal(columnLabel, x);
+	}
+
+	public void updateString(String columnLabel, String x) throws SQLException {
+		cellSet.updateString(columnLabel, x);
+	}
+
+	public void updateBytes(String columnLabel, byte[] x) throws SQLException {
+		cellSet.updateBytes(columnLabel, x);
+	}
+
+	public void updateDate(String columnLabel, Date x) throws SQLException {
+		cellSet.updateDate(columnLabel, x);
+	}
+
+	public void updateTime(String columnLabel, Time x) throws SQLException {
+		cellSet.updateTime(columnLabel, x);
+	}
+
+	public void updateTimestamp(String columnLabel, Timestamp x) throws SQLException {
+		cellSet.updateTimestamp(columnLabel, x);
+	}
+
+	public void updateAsciiStream(String columnLabel, InputStream x, int length) throws SQLException {
+		cellSet.updateAsciiStream(columnLabel, x, length);
+	}
+
+	public void updateBinaryStream(String columnLabel, InputStream x, int length) throws SQLException {
+		cellSet.updateBinaryStream(columnLabel, x, length);
+	}
+
+	public void updateCharacterStream(String columnLabel, Reader reader, int length) throws SQLException {
+		cellSet.updateCharacterStream(columnLabel, reader, length);
+	}
+
+	public void updateObject(String columnLabel, Object x, int scaleOrLength) throws SQLException {
+		cellSet.updateObject(columnLabel, x, scaleOrLength);
+	}
+
+	public void updateObject(String columnLabel, Object x) throws SQLException {
+		cellSet.updateObject(columnLabel, x);
+	}
+
+	public void insertRow() throws SQLException {
+		cellSet.insertRow();
+	}
+
+	public void updateRow() throws SQLException {
+		cellSet.updateRow();
+	}
+
+	public void deleteRow() throws SQLException {
+		cellSet.deleteRow();
+	}
+
+	public void refreshRow() throws SQLException {
+		cellSet.refreshRow();
+	}
+
+	public void cancelRowUpdates() throws SQLException {
+		cellSet.cancelRowUpdates();
+	}
+
+	public void moveToInsertRow() throws SQLException {
+		cellSet.moveToInsertRow();
+	}
+
+	public void moveToCurrentRow() throws SQLException {
+		cellSet.moveToCurrentRow();
+	}
+
+	public Ref getRef(int columnIndex) throws SQLException {
+		return cellSet.getRef(columnIndex);
+	}
+
+	public Blob getBlob(int columnIndex) throws SQLException {
+		return cellSet.getBlob(columnIndex);
+	}
+
+	public Clob getClob(int columnIndex) throws SQLException {
+		return cellSet.getClob(columnIndex);
+	}
+
+	public Array getArray(int columnIndex) throws SQLException {
+		return cellSet.getArray(columnIndex);
+	}
+
+	public Ref getRef(String columnLabel) throws SQLException {
+		return cellSet.getRef(columnLabel);
+	}
+
+	public Blob getBlob(String columnLabel) throws SQLException {
+		return cellSet.getBlob(columnLabel);
+	}
+
+	public Clob getClob(String columnLabel) throws SQLException {
+		return cellSet.getClob(columnLabel);
+	}
+
+	public Array getArray(String columnLabel) throws SQLException {
+		return cellSet.getArray(columnLabel);
+	}
+
+	public Date getDate(int columnIndex, Calendar cal) throws SQLException {
+		return cellSet.getDate(columnIndex, cal);
+	}
+
+	public Date getDate(String columnLabel, Calendar cal) throws SQLException {
+		return cellSet.getDate(columnLabel, cal);
+	}
+
+	public Time getTime(int columnIndex, Calendar cal) throws SQLException {
+		return cellSet.getTime(columnIndex, cal);
+	}
+
+	public Time getTime(String columnLabel, Calendar cal) throws SQLException {
+		return cellSet.getTime(columnLabel, cal);
+	}
+
+	public Timestamp getTimestamp(int columnIndex, Calendar cal) throws SQLException {
+		return cellSet.getTimestamp(columnIndex, cal);
+	}
+
+	public Timestamp getTimestamp(String columnLabel, Calendar cal) throws SQLException {
+		return cellSet.getTimestamp(columnLabel, cal);
+	}
+
+	public URL getURL(int columnIndex) throws SQLException {
+		return cellSet.getURL(columnIndex);
+	}
+
+	public URL getURL(String columnLabel) throws SQLException {
+		return cellSet.getURL(columnLabel);
+	}
+
+	public void updateRef(int columnIndex, Ref x) throws SQLException {
+		cellSet.updateRef(columnIndex, x);
+	}
+
+	public void updateRef(String columnLabel, Ref x) throws SQLException {
+		cellSet.updateRef(columnLabel, x);
+	}
+
+	public void updateBlob(int columnIndex, Blob x) throws SQLException {
+		cellSet.updateBlob(columnIndex, x);
+	}
+
+	public void updateBlob(String columnLabel, Blob x) throws SQLException {
+		cellSet.updateBlob(columnLabel, x);
+	}
+
+	public void updateClob(int columnIndex, Clob x) throws SQLException {
+		cellSet.updateClob(columnIndex, x);
+	}
+
+	public void updateClob(String columnLabel, Clob x) throws SQLException {
+		cellSet.updateClob(columnLabel, x);
+	}
+
+	public void updateArray(int columnIndex, Array x) throws SQLException {
+		cellSet.updateArray(columnIndex, x);
+	}
+
+	public void updateArray(String columnLabel, Array x) throws SQLException {
+		cellSet.updateArray(columnLabel, x);
+	}
+
+	public RowId getRowId(int columnIndex) throws SQLException {
+		return cellSet.getRowId(columnIndex);
+	}
+
+	public RowId getRowId(String columnLabel) throws SQLException {
+		return cellSet.getRowId(columnLabel);
+	}
+
+	public void updateRowId(int columnIndex, RowId x) throws SQLException {
+		cellSet.updateRowId(columnIndex, x);
+	}
+
+	public void updateRowId(String columnLabel, RowId x) throws SQLException {
+		cellSet.updateRowId(columnLabel, x);
+	}
+
+	public int getHoldability() throws SQLException {
+		return cellSet.getHoldability();
+	}
+
+	public void updateNString(int columnIndex, String x) throws SQLException {
+		cellSet.updateNString(columnIndex, x);
+	}
+
+	public void updateNString(String columnLabel, String x) throws SQLException {
+		cellSet.updateNString(columnLabel, x);
+	}
+
+	public void updateNClob(int columnIndex, NClob x) throws SQLException {
+		cellSet.updateNClob(columnIndex, x);
+	}
+
+	public void updateNClob(String columnLabel, NClob x) throws SQLException {
+		cellSet.updateNClob(columnLabel, x);
+	}
+
+	public NClob getNClob(int columnIndex) throws SQLException {
+		return cellSet.getNClob(columnIndex);
+	}
+
+	public NClob getNClob(String columnLabel) throws SQLException {
+		return cellSet.getNClob(columnLabel);
+	}
+
+	public SQLXML getSQLXML(int columnIndex) throws SQLException {
+		return cellSet.getSQLXML(columnIndex);
+	}
+
+	public SQLXML getSQLXML(String columnLabel) throws SQLException {
+		return cellSet.getSQLXML(columnLabel);
+	}
+
+	public void updateSQLXML(int columnIndex, SQLXML x) throws SQLException {
+		cellSet.updateSQLXML(columnIndex, x);
+	}
+
+	public void updateSQLXML(String columnLabel, SQLXML x) throws SQLException {
+		cellSet.updateSQLXML(columnLabel, x);
+	}
+
+	public String getNString(int columnIndex) throws SQLException {
+		return cellSet.getNString(columnIndex);
+	}
+
+	public String getNString(String columnLabel) throws SQLException {
+		return cellSet.getNString(columnLabel);
+	}
+
+	public Reader getNCharacterStream(int columnIndex) throws SQLException {
+		return cellSet.getNCharacterStream(columnIndex);
+	}
+
+	public Reader getNCharacterStream(String columnLabel) throws SQLException {
+		return cellSet.getNCharacterStream(columnLabel);
+	}
+
+	public void updateNCharacterStream(int columnIndex, Reader reader, long length) throws SQLException {
+		cellSet.updateNCharacterStream(columnIndex, reader, length);
+	}
+
+	public void updateNCharacterStream(String columnLabel, Reader reader, long length) throws SQLException {
+		cellSet.updateNCharacterStream(columnLabel, reader, length);
+	}
+
+	public void updateAsciiStream(int columnIndex, InputStream x, long length) throws SQLException {
+		cellSet.updateAsciiStream(columnIndex, x, length);
+	}
+
+	public void updateBinaryStream(int columnIndex, InputStream x, long length) throws SQLException {
+		cellSet.updateBinaryStream(columnIndex, x, length);
+	}
+
+	public void updateCharacterStream(int columnIndex, Reader reader, long length) throws SQLException {
+		cellSet.updateCharacterStream(columnIndex, reader, length);
+	}
+
+	public void updateAsciiStream(String columnLabel, InputStream x, long length) throws SQLException {
+		cellSet.updateAsciiStream(columnLabel, x, length);
+	}
+
+	public void updateBinaryStream(String columnLabel, InputStream x, long length) throws SQLException {
+		cellSet.updateBinaryStream(columnLabel, x, length);
+	}
+
+	public void updateCharacterStream(String columnLabel, Reader reader, long length) throws SQLException {
+		cellSet.updateCharacterStream(columnLabel, reader, length);
+	}
+
+	public void updateBlob(int columnIndex, InputStream x, long length) throws SQLException {
+		cellSet.updateBlob(columnIndex, x, length);
+	}
+
+	public void updateBlob(String columnLabel, InputStream x, long length) throws SQLException {
+		cellSet.updateBlob(columnLabel, x, length);
+	}
+
+	public void updateClob(int columnIndex, Reader reader, long length) throws SQLException {
+		cellSet.updateClob(columnIndex, reader, length);
+	}
+
+	public void updateClob(String columnLabel, Reader reader, long length) throws SQLException {
+		cellSet.updateClob(columnLabel, reader, length);
+	}
+
+	public void updateNClob(int columnIndex, Reader reader, long length) throws SQLException {
+		cellSet.updateNClob(columnIndex, reader, length);
+	}
+
+	public void updateNClob(String columnLabel, Reader reader, long length) throws SQLException {
+		cellSet.updateNClob(columnLabel, reader, length);
+	}
+
+	public void updateNCharacterStream(int columnIndex, Reader reader) throws SQLException {
+		cellSet.updateNCharacterStream(columnIndex, reader);
+	}
+
+	public void updateNCharacterStream(String columnLabel, Reader reader) throws SQLException {
+		cellSet.updateNCharacterStream(columnLabel, reader);
+	}
+
+	public void updateAsciiStream(int columnIndex, InputStream x) throws SQLException {
+		cellSet.updateAsciiStream(columnIndex, x);
+	}
+
+	public void updateBinaryStream(int columnIndex, InputStream x) throws SQLException {
+		cellSet.updateBinaryStream(columnIndex, x);
+	}
+
+	public void updateCharacterStream(int columnIndex, Reader reader) throws SQLException {
+		cellSet.updateCharacterStream(columnIndex, reader);
+	}
+
+	public void updateAsciiStream(String columnLabel, InputStream x) throws SQLException {
+		cellSet.updateAsciiStream(columnLabel, x);
+	}
+
+	public void updateBinaryStream(String columnLabel, InputStream x) throws SQLException {
+		cellSet.updateBinaryStream(columnLabel, x);
+	}
+
+	public void updateCharacterStream(String columnLabel, Reader reader) throws SQLException {
+		cellSet.updateCharacterStream(columnLabel, reader);
+	}
+
+	public void updateBlob(int columnIndex, InputStream x) throws SQLException {
+		cellSet.updateBlob(columnIndex, x);
+	}
+
+	public void updateBlob(String columnLabel, InputStream x) throws SQLException {
+		cellSet.updateBlob(columnLabel, x);
+	}
+
+	public void updateClob(int columnIndex, Reader reader) throws SQLException {
+		cellSet.updateClob(columnIndex, reader);
+	}
+
+	public void updateClob(String columnLabel, Reader reader) throws SQLException {
+		cellSet.updateClob(columnLabel, reader);
+	}
+
+	public void updateNClob(int columnIndex, Reader reader) throws SQLException {
+		cellSet.updateNClob(columnIndex, reader);
+	}
+
+	public void updateNClob(String columnLabel, Reader reader) throws SQLException {
+		cellSet.updateNClob(columnLabel, reader);
+	}
+
+	public Object getObject(int columnIndex, Map<String, Class<?>> map) throws SQLException {
+		return cellSet.getObject(columnIndex, map);
+	}
+
+	public Object getObject(String columnLabel, Map<String, Class<?>> map) throws SQLException {
+		return cellSet.getObject(columnLabel, map);
+	}
+
+	public <T> T getObject(int columnIndex, Class<T> type) throws SQLException {
+		return cellSet.getObject(columnIndex, type);
+	}
+
+	public <T> T getObject(String columnLabel, Class<T> type) throws SQLException {
+		return cellSet.getObject(columnLabel, type);
+	}
+
+	/**
+	 * The statement of a leased cell set.
+	 */
+	private final class LeasedStatement implements OlapStatement {
+
+		public void close() throws SQLException {
+			LeasedCellSet.this.close();
+		}
+
+		public boolean isClosed() throws SQLException {
+			return closed.get() || statement.isClosed();
+		}
+
+		public OlapConnection getConnection() throws SQLException {
+			return statement.getConnection();
+		}
+
+		public CellSet executeOlapQuery(String mdx) throws OlapException {
+			return statement.executeOlapQuery(mdx);
+		}
+
+		public CellSet executeOlapQuery(SelectNode selectNode) throws OlapException {
+			return statement.executeOlapQuery(selectNode);
+		}
+
+		public void addListener(CellSetListener.Granularity granularity, CellSetListener listener) throws OlapException {
+			statement.addListener(granularity, listener);
+		}
+
+		public <T> T unwrap(Class<T> iface) throws SQLException {
+			if (iface.isInstance(this)) {
+				return iface.cast(this);
+			}
+			return statement.unwrap(iface);
+		}
+
+		public boolean isWrapperFor(Class<?> iface) throws SQLException {
+			return iface.isInstance(this) || statement.isWrapperFor(iface);
+		}
+
+		public ResultSet executeQuery(String sql) throws SQLException {
+			return statement.executeQuery(sql);
+		}
+
+		public int executeUpdate(String sql) throws SQLException {
+			return statement.executeUpdate(sql);
+		}
+
+		public int getMaxFieldSize() throws SQLException {
+			return statement.getMaxFieldSize();
+		}
+
+		public void setMaxFieldSize(int max) throws SQLException {
+			statement.setMaxFieldSize(max);
+		}
+
+		public int getMaxRows() throws SQLException {
+			return statement.getMaxRows();
+		}
+
+		public void setMaxRows(int max) throws SQLException {
+			statement.setMaxRows(max);
+		}
+
+		public void setEscapeProcessing(boolean enable) throws SQLException {
+			statement.setEscapeProcessing(enable);
+		}
+
+		public int getQueryTimeout() throws SQLException {
+			return statement.getQueryTimeout();
+		}
+
+		public void setQueryTimeout(int seconds) throws SQLException {
+			statement.setQueryTimeout(seconds);
+		}
+
+		public void cancel() throws SQLException {
+			statement.cancel();
+		}
+
+		public SQLWarning getWarnings() throws SQLException {
+			return statement.getWarnings();
+		}
+
+		public void clearWarnings() throws SQLException {
+			statement.clearWarnings();
+		}
+
+		public void setCursorName(String name) throws SQLException {
+			statement.setCursorName(name);
+		}
+
+		public boolean execute(String sql) throws SQLException {
+			return statement.execute(sql);
+		}
+
+		public ResultSet getResultSet() throws SQLException {
+			return statement.getResultSet();
+		}
+
+		public int getUpdateCount() throws SQLException {
+			return statement.getUpdateCount();
+		}
+
+		public boolean getMoreResults() throws SQLException {
+			return statement.getMoreResults();
+		}
+
+		public void setFetchDirection(int direction) throws SQLException {
+			statement.setFetchDirection(direction);
+		}
+
+		public int getFetchDirection() throws SQLException {
+			return statement.getFetchDirection();
+		}
+
+		public void setFetchSize(int rows) throws SQLException {
+			statement.setFetchSize(rows);
+		}
+
+		public int getFetchSize() throws SQLException {
+			return statement.getFetchSize();
+		}
+
+		public int getResultSetConcurrency() throws SQLException {
+			return statement.getResultSetConcurrency();
+		}
+
+		public int getResultSetType() throws SQLException {
+			return statement.getResultSetType();
+		}
+
+		public void addBatch(String sql) throws SQLException {
+			statement.addBatch(sql);
+		}
+
+		public void clearBatch() throws SQLException {
+			statement.clearBatch();
+		}
+
+		public int[] executeBatch() throws SQLException {
+			return statement.executeBatch();
+		}
+
+		public boolean getMoreResults(int current) throws SQLException {
+			return statement.getMoreResults(current);
+		}
+
+		public ResultSet getGeneratedKeys() throws SQLException {
+			return statement.getGeneratedKeys();
+		}
+
+		public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+			return statement.executeUpdate(sql, autoGeneratedKeys);
+		}
+
+		public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+			return statement.executeUpdate(sql, columnIndexes);
+		}
+
+		public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+			return statement.executeUpdate(sql, columnNames);
+		}
+
+		public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+			return statement.execute(sql, autoGeneratedKeys);
+		}
+
+		public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+			return statement.execute(sql, columnIndexes);
+		}
+
+		public boolean execute(String sql, String[] columnNames) throws SQLException {
+			return statement.execute(sql, columnNames);
+		}
+
+		public int getResultSetHoldability() throws SQLException {
+			return statement.getResultSetHoldability();
+		}
+
+		public void setPoolable(boolean poolable) throws SQLException {
+			statement.setPoolable(poolable);
+		}
+
+		public boolean isPoolable() throws SQLException {
+			return statement.isPoolable();
+		}
+
+		public void closeOnCompletion() throws SQLException {
+			statement.closeOnCompletion();
+		}
+
+		public boolean isCloseOnCompletion() throws SQLException {
+			return statement.isCloseOnCompletion();
+		}
+	}
+
+	/**
+	 * An axis of a leased cell set.
+	 */
+	private final class LeasedAxis implements CellSetAxis {
+
+		private final CellSetAxis axis;
+
+		private LeasedAxis(CellSetAxis axis) {
+			this.axis = axis;
+		}
+
+		public Axis getAxisOrdinal() {
+			return axis.getAxisOrdinal();
+		}
+
+		public CellSet getCellSet() {
+			return LeasedCellSet.this;
+		}
+
+		public CellSetAxisMetaData getAxisMetaData() {
+			return axis.getAxisMetaData();
+		}
+
+		public List<Position> getPositions() {
+			return axis.getPositions();
+		}
+
+		public int getPositionCount() {
+			return axis.getPositionCount();
+		}
+
+		public ListIterator<Position> iterator() {
+			return axis.iterator();
+		}
+	}
+
+	/**
+	 * A cell of a leased cell set.
+	 */
+	private final class LeasedCell implements Cell {
+
+		private final Cell cell;
+
+		private LeasedCell(Cell cell) {
+			this.cell = cell;
+		}
+
+		public CellSet getCellSet() {
+			return LeasedCellSet.this;
+		}
+
+		public int getOrdinal() {
+			return cell.getOrdinal();
+		}
+
+		public List<Integer> getCoordinateList() {
+			return cell.getCoordinateList();
+		}
+
+		public Object getPropertyValue(Property property) {
+			return cell.getPropertyValue(property);
+		}
+
+		public boolean isEmpty() {
+			return cell.isEmpty();
+		}
+
+		public boolean isError() {
+			return cell.isError();
+		}
+
+		public boolean isNull() {
+			return cell.isNull();
+		}
+
+		public double getDoubleValue() throws OlapException {
+			return cell.getDoubleValue();
+		}
+
+		public String getErrorText() {
+			return cell.getErrorText();
+		}
+
+		public Object getValue() {
+			return cell.getValue();
+		}
+
+		public String getFormattedValue() {
+			return cell.getFormattedValue();
+		}
+
+		public ResultSet drillThrough() throws OlapException {
+			return cell.drillThrough();
+		}
+
+		public void setValue(Object value, AllocationPolicy allocationPolicy, Object... allocationArgs) throws OlapException {
+			cell.setValue(value, allocationPolicy, allocationArgs);
+		}
+	}
+}
@@ -0,0 +1,400 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.olap4j.OlapException;
+import org.olap4j.impl.IdentifierParser;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Member;
+
+/**
+ * Insertion ordered set of members, indexed by their unique name.
+ * <p>Adding, removing and looking up a member are constant time operations,
+ * iteration returns the members in the order they were first added.
+ * <p>Members can also be added by unique name only, e.g. when restoring a
+ * saved query. They are looked up in the cube when the members are
+ * requested for the first time; members that no longer exist are dropped.
+ * A failed lookup is reported as an {@link OlapException}, or as an
+ * {@link IllegalStateException} by the list view and the iterator.
+ * <p>A {@link #copy()} shares the selected members with the original until
+ * either of them is modified.
+ * <p>A selection can be read from several threads, e.g. while one query is
+ * converted to MDX on many threads; members added by name are then looked
+ * up only once. Modifying a selection is not thread-safe.
+ */
+public class MemberSelection implements Iterable<Member> {
+
+	/**
+	 * The selected members by unique name. Looking up members added by name
+	 * replaces the map instead of changing it, so concurrent readers never
+	 * see it half resolved.
+	 */
+	private volatile Map<String, Member> members = new LinkedHashMap<String, Member>();
+
+	/**
+	 * Whether {@link #members} may be shared with a copy and has to be
+	 * copied before it is modified.
+	 */
+	private boolean shared = false;
+
+	private final Cube cube;
+
+	private List<Member> list;
+
+	private List<String> names;
+
+	private boolean unresolved = false;
+
+	public MemberSelection() {
+		this(null);
+	}
+
+	/**
+	 * @param cube The cube to resolve members added by unique name in
+	 */
+	public MemberSelection(Cube cube) {
+		this.cube = cube;
+	}
+
+	/**
+	 * Returns a copy of this selection. The members are only copied once
+	 * the copy or this selection is modified.
+	 * @return the copy
+	 */
+	public MemberSelection copy() {
+		MemberSelection copy = new MemberSelection(cube);
+		copy.members = members;
+		copy.list = list;
+		copy.names = names;
+		copy.unresolved = unresolved;
+		copy.shared = true;
+		shared = true;
+		return copy;
+	}
+
+	private void beforeWrite() {
+		if (shared) {
+			members = new LinkedHashMap<String, Member>(members);
+			shared = false;
+		}
+	}
+
+	/**
+	 * Adds a member to the end of the selection, if it is not selected yet.
+	 * @param member The member to add
+	 * @return true if the selection changed
+	 */
+	public boolean add(Member member) {
+		String key = member.getUniqueName();
+		if (members.containsKey(key)) {
+			return false;
+		}
+		beforeWrite();
+		members.put(key, member);
+		list = null;
+		names = null;
+		return true;
+	}
+
+	/**
+	 * Adds a member by its unique name, without looking it up.
+	 * @param uniqueName The unique name of the member
+	 * @return true if the selection changed
+	 */
+	public boolean addUniqueName(String uniqueName) {
+		if (cube == null) {
+			throw new IllegalStateException("Members can only be added by name if a cube is given");
+		}
+		if (members.containsKey(uniqueName)) {
+			return false;
+		}
+		beforeWrite();
+		members.put(uniqueName, null);
+		unresolved = true;
+		list = null;
+		names = null;
+		return true;
+	}
+
+	public boolean addAll(Collection<? extends Member> toAdd) {
+		boolean changed = false;
+		for (Member member : toAdd) {
+			changed |= add(member);
+		}
+		return changed;
+	}
+
+	/**
+	 * Removes a member from the selection.
+	 * @param member The member to remove
+	 * @return true if the selection changed
+	 */
+	public boolean remove(Member member) {
+		return remove(member.getUniqueName());
+	}
+
+	/**
+	 * Removes a member by its unique name.
+	 * @param uniqueName The unique name of the member
+	 * @return true if the selection changed
+	 */
+	public boolean remove(String uniqueName) {
+		if (!members.containsKey(uniqueName)) {
+			return false;
+		}
+		beforeWrite();
+		members.remove(uniqueName);
+		list = null;
+		names = null;
+		return true;
+	}
+
+	public boolean removeAll(Collection<? extends Member> toRemove) {
+		boolean changed = false;
+		for (Member member : toRemove) {
+			changed |= remove(member);
+		}
+		return changed;
+	}
+
+	public boolean contains(Member member) {
+		return members.containsKey(member.getUniqueName());
+	}
+
+	public boolean contains(String uniqueName) {
+		return members.containsKey(uniqueName);
+	}
+
+	/**
+	 * Returns the selected member with the given unique name.
+	 * @param uniqueName The unique name of the member
+	 * @return the member or null if it is not selected
+	 * @throws OlapException if a member added by name cannot be looked up
+	 */
+	public Member get(String uniqueName) throws OlapException {
+		Map<String, Member> m = members;
+		if (m.containsKey(uniqueName) && m.get(uniqueName) == null) {
+			asList();
+			m = members;
+		}
+		return m.get(uniqueName);
+	}
+
+	/**
+	 * Returns the unique names of the selected members in selection order,
+	 * without looking up members that were added by name. The returned
+	 * list is an unmodifiable snapshot that is reused until the selection
+	 * changes.
+	 * @return the unique names
+	 */
+	public synchronized List<String> getUniqueNames() {
+		List<String> n = names;
+		if (n == null) {
+			n = Collections.unmodifiableList(new ArrayList<String>(members.keySet()));
+			names = n;
+		}
+		return n;
+	}
+
+	public int size() {
+		return members.size();
+	}
+
+	public boolean isEmpty() {
+		return members.isEmpty();
+	}
+
+	public void clear() {
+		if (!members.isEmpty()) {
+			if (shared) {
+				members = new LinkedHashMap<String, Member>();
+				shared = false;
+			} else {
+				members.clear();
+			}
+			unresolved = false;
+			list = null;
+			names = null;
+		}
+	}
+
+	/**
+	 * Returns the selected members in selection order. The returned list
+	 * is an unmodifiable snapshot that is reused until the selection changes.
+	 * @return the selected members
+	 * @throws OlapException if a member added by name cannot be looked up
+	 */
+	public synchronized List<Member> asList() throws OlapException {
+		List<Member> l = list;
+		if (l == null) {
+			if (unresolved) {
+				resolve();
+			}
+			l = Collections.unmodifiableList(new ArrayList<Member>(members.values()));
+			list = l;
+		}
+		return l;
+	}
+
+	/**
+	 * Returns a modifiable view of the selected members in selection order.
+	 * Changes to the view write through to the selection; adding a member
+	 * that is selected already has no effect.
+	 * @param onChange Called after every change made through the view
+	 * @return the view
+	 */
+	public List<Member> view(Runnable onChange) {
+		return new View(onChange);
+	}
+
+	private void replace(List<Member> selected) {
+		Map<String, Member> replacement = new LinkedHashMap<String, Member>();
+		for (Member member : selected) {
+			if (!replacement.containsKey(member.getUniqueName())) {
+				replacement.put(member.getUniqueName(), member);
+			}
+		}
+		members = replacement;
+		shared = false;
+		unresolved = false;
+		list = null;
+		names = null;
+	}
+
+	/**
+	 * Returns {@link #asList()} where a checked exception cannot be thrown,
+	 * i.e. in the list view and the iterator.
+	 */
+	private List<Member> uncheckedList() {
+		try {
+			return asList();
+		} catch (OlapException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	private void resolve() throws OlapException {
+		Map<String, Member> resolved = new LinkedHashMap<String, Member>();
+		for (Map.Entry<String, Member> entry : members.entrySet()) {
+			Member member = entry.getValue();
+			if (member == null) {
+				member = cube.lookupMember(IdentifierParser.parseIdentifier(entry.getKey()));
+			}
+			if (member != null) {
+				resolved.put(entry.getKey(), member);
+			}
+		}
+		members = resolved;
+		shared = false;
+		unresolved = false;
+		names = null;
+	}
+
+	private class View extends AbstractList<Member> {
+
+		private final Runnable onChange;
+
+		private View(Runnable onChange) {
+			this.onChange = onChange;
+		}
+
+		private void changed() {
+			modCount++;
+			onChange.run();
+		}
+
+		@Override
+		public Member get(int index) {
+			return uncheckedList().get(index);
+		}
+
+		@Override
+		public int size() {
+			return uncheckedList().size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			uncheckedList();
+			return o instanceof Member && MemberSelection.this.contains((Member) o);
+		}
+
+		@Override
+		public boolean add(Member member) {
+			if (MemberSelection.this.add(member)) {
+				changed();
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void add(int index, Member member) {
+			if (index == size()) {
+				add(member);
+			} else if (!contains(member)) {
+				List<Member> selected = new ArrayList<Member>(uncheckedList());
+				selected.add(index, member);
+				replace(selected);
+				changed();
+			}
+		}
+
+		@Override
+		public Member set(int index, Member member) {
+			List<Member> selected = new ArrayList<Member>(uncheckedList());
+			Member previous = selected.set(index, member);
+			replace(selected);
+			changed();
+			return previous;
+		}
+
+		@Override
+		public Member remove(int index) {
+			Member member = uncheckedList().get(index);
+			MemberSelection.this.remove(member);
+			changed();
+			return member;
+		}
+
+		@Override
+		public void clear() {
+			if (!isEmpty()) {
+				MemberSelection.this.clear();
+				changed();
+			}
+		}
+	}
+
+	@Override
+	public Iterator<Member> iterator() {
+		return uncheckedList().iterator();
+	}
+
+	@Override
+	public String toString() {
+		return members.keySet().toString();
+	}
+}
@@ -29,9 +29,9 @@ import org.olap4j.mdx.PropertyValueNode;
 import org.olap4j.mdx.Syntax;
 import org.olap4j.mdx.WithMemberNode;
 import org.olap4j.mdx.parser.MdxParser;
-import org.olap4j.mdx.parser.impl.DefaultMdxParserImpl;
 import org.olap4j.metadata.Measure;
 import org.olap4j.metadata.Member;
+import org.saiku.query.mdx.CachingMdxParser;
 import org.saiku.query.metadata.Calculated;
 
 public class NodeConverter {
@@ -131,6 +131,61 @@ public class NodeConverter {
 		return generateListSetCall(membernodes);
 	}
 
+	/**
+	 * Generates a member set like {@link #toOlap4jMemberSet(List)}, but
+	 * replaces runs of consecutive siblings with a range expression
+	 * (<code>first : last</code>) if the run has at least
+	 * <code>minRunLength</code> members. Members are consecutive if their
+	 * ordinals follow each other, so the order of the set is preserved.
+	 * @param members The members of the set
+	 * @param minRunLength The minimum number of members to use a range for,
+	 * values below 2 disable the compaction
+	 */
+	protected static ParseTreeNode toOlap4jMemberSet(List<Member> members, int minRunLength) {
+		if (minRunLength < 2 || members.size() < minRunLength) {
+			return toOlap4jMemberSet(members);
+		}
+		List<ParseTreeNode> membernodes = new ArrayList<ParseTreeNode>();
+		int start = 0;
+		while (start < members.size()) {
+			int end = start;
+			while (end + 1 < members.size() && isNextSibling(members.get(end), members.get(end + 1))) {
+				end++;
+			}
+			if (end - start + 1 >= minRunLength) {
+				membernodes.add(
+						new CallNode(
+								null,
+								":",
+								Syntax.Infix,
+								new MemberNode(null, members.get(start)),
+								new MemberNode(null, members.get(end))));
+			} else {
+				for (int i = start; i <= end; i++) {
+					membernodes.add(new MemberNode(null, members.get(i)));
+				}
+			}
+			start = end + 1;
+		}
+		return generateListSetCall(membernodes);
+	}
+
+	private static boolean isNextSibling(Member member, Member next) {
+		if (member.isCalculated() || next.isCalculated()) {
+			return false;
+		}
+		int ordinal = member.getOrdinal();
+		if (ordinal < 0 || next.getOrdinal() != ordinal + 1) {
+			return false;
+		}
+		if (!member.getLevel().equals(next.getLevel())) {
+			return false;
+		}
+		Member parent = member.getParentMember();
+		Member nextParent = next.getParentMember();
+		return (parent == null ? nextParent == null : parent.equals(nextParent));
+	}
+
 	protected static ParseTreeNode toOlap4jMeasureSet(List<Measure> measures) {
 		List<ParseTreeNode> membernodes = new ArrayList<ParseTreeNode>();
 		for (Measure m : measures) {
@@ -141,7 +196,7 @@ public class NodeConverter {
 	
 	
 	protected static WithMemberNode toOlap4jCalculatedMember(Calculated cm) {
-		MdxParser parser = new DefaultMdxParserImpl();
+		MdxParser parser = CachingMdxParser.getInstance();
 		ParseTreeNode formula = parser.parseExpression(cm.getFormula());
 		List<PropertyValueNode> propertyList = new ArrayList<PropertyValueNode>();
 		for (Entry<String, String> entry : cm.getFormatProperties().entrySet()) {
@@ -16,9 +16,11 @@
  */
 package org.saiku.query;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 import org.olap4j.Axis;
@@ -33,44 +35,109 @@ import org.olap4j.mdx.LevelNode;
 import org.olap4j.mdx.LiteralNode;
 import org.olap4j.mdx.MemberNode;
 import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.PropertyValueNode;
 import org.olap4j.mdx.SelectNode;
 import org.olap4j.mdx.Syntax;
 import org.olap4j.mdx.WithMemberNode;
 import org.olap4j.mdx.WithSetNode;
 import org.olap4j.mdx.parser.MdxParser;
-import org.olap4j.mdx.parser.impl.DefaultMdxParserImpl;
 import org.olap4j.metadata.Cube;
 import org.olap4j.metadata.Level.Type;
 import org.olap4j.metadata.Measure;
 import org.olap4j.metadata.Member;
+import org.saiku.query.Parameter.SelectionType;
 import org.saiku.query.Query.BackendFlavor;
+import org.saiku.query.mdx.CachingMdxParser;
 import org.saiku.query.mdx.IFilterFunction;
 import org.saiku.query.metadata.CalculatedMeasure;
 import org.saiku.query.metadata.CalculatedMember;
+import org.saiku.query.metrics.QueryMetrics;
+import org.saiku.query.metrics.QueryPhase;
 
 /**
  * Utility class to convert a Query object to a SelectNode.
  */
 public class Olap4jNodeConverter extends NodeConverter {
 
+	private static final String COUNT_MEMBER_NAME = "Saiku Position Count";
+
 	public static SelectNode toQuery(Query query) throws Exception {
+		return toQuery(query, null);
+	}
+
+	/**
+	 * Converts the query, but instead of resolving the parameter values of
+	 * the given levels the markers of the slots are placed into the select.
+	 * @param query The query to convert
+	 * @param parameterSlots Slots for the parameter selection of a level,
+	 * keyed by the unique level name. Can be null.
+	 */
+	static SelectNode toQuery(Query query, Map<String, ParameterSlot> parameterSlots) throws Exception {
 		List<IdentifierNode> cellpropertyList = Collections.emptyList();
 		List<ParseTreeNode> withList = new ArrayList<ParseTreeNode>();
-		List<QueryAxis> axisList = new ArrayList<QueryAxis>();
-		axisList.add(query.getAxes().get(Axis.COLUMNS));
-		axisList.add(query.getAxes().get(Axis.ROWS));
+		AxisNode filterAxis = toFilterAxis(withList, query, parameterSlots);
+		List<AxisNode> axisNodes = toAxisList(withList, getAxisList(query), parameterSlots);
+		for (AxisNode axisNode : axisNodes) {
+			QueryAxis axis = query.getAxis(axisNode.getAxis());
+			if (axis.isPaginated()) {
+				List<ParseTreeNode> args = new ArrayList<ParseTreeNode>();
+				args.add(toPageableSet(query, axisNode, axisNodes));
+				args.add(LiteralNode.createNumeric(null, new BigDecimal(axis.getOffset()), false));
+				if (axis.getLimit() >= 0) {
+					args.add(LiteralNode.createNumeric(null, new BigDecimal(axis.getLimit()), false));
+				}
+				axisNode.setExpression(new CallNode(null, "Subset", Syntax.Function, args));
+			}
+		}
+		return new SelectNode(
+				null,
+				withList,
+				axisNodes,
+				new CubeNode(
+						null,
+						query.getCube()),
+						filterAxis,
+						cellpropertyList);
+	}
 
-		AxisNode filterAxis = null;
-		if (query.getAxes().containsKey(Axis.FILTER)) {
-			final QueryAxis axis = query.getAxes().get(Axis.FILTER);
-			if (!axis.hierarchies.isEmpty()) {
-				filterAxis = toAxis(withList, axis);
+	/**
+	 * Converts the query into a query that returns the number of positions
+	 * of an axis, ignoring its offset and limit. The count is returned in
+	 * the single cell of the result.
+	 * @param query The query
+	 * @param location The axis to count
+	 */
+	static SelectNode toCountQuery(Query query, Axis location) throws Exception {
+		List<IdentifierNode> cellpropertyList = Collections.emptyList();
+		List<ParseTreeNode> withList = new ArrayList<ParseTreeNode>();
+		AxisNode filterAxis = toFilterAxis(withList, query, null);
+		List<AxisNode> axisNodes = toAxisList(withList, getAxisList(query), null);
+		ParseTreeNode set = null;
+		for (AxisNode axisNode : axisNodes) {
+			if (axisNode.getAxis().equals(location)) {
+				set = toPageableSet(query, axisNode, axisNodes);
 			}
 		}
+		if (set == null) {
+			set = new CallNode(null, "{}", Syntax.Braces, new ArrayList<ParseTreeNode>());
+		}
+		WithMemberNode countMember = new WithMemberNode(
+				null,
+				IdentifierNode.ofNames("Measures", COUNT_MEMBER_NAME),
+				new CallNode(null, "Count", Syntax.Function, set),
+				Collections.<PropertyValueNode>emptyList());
+		withList.add(countMember);
+		List<AxisNode> countAxis = new ArrayList<AxisNode>();
+		countAxis.add(new AxisNode(
+				null,
+				false,
+				Axis.COLUMNS,
+				new ArrayList<IdentifierNode>(),
+				new CallNode(null, "{}", Syntax.Braces, countMember.getIdentifier())));
 		return new SelectNode(
 				null,
 				withList,
-				toAxisList(withList, axisList),
+				countAxis,
 				new CubeNode(
 						null,
 						query.getCube()),
@@ -78,10 +145,69 @@ public class Olap4jNodeConverter extends NodeConverter {
 						cellpropertyList);
 	}
 
-	private static List<AxisNode> toAxisList(List<ParseTreeNode> withList, List<QueryAxis> axes) throws Exception {
+	private static List<QueryAxis> getAxisList(Query query) {
+		List<QueryAxis> axisList = new ArrayList<QueryAxis>();
+		axisList.add(query.getAxes().get(Axis.COLUMNS));
+		axisList.add(query.getAxes().get(Axis.ROWS));
+		return axisList;
+	}
+
+	private static AxisNode toFilterAxis(List<ParseTreeNode> withList, Query query, Map<String, ParameterSlot> parameterSlots) throws Exception {
+		if (query.getAxes().containsKey(Axis.FILTER)) {
+			final QueryAxis axis = query.getAxes().get(Axis.FILTER);
+			if (!axis.hierarchies.isEmpty()) {
+				return toAxis(withList, axis, parameterSlots);
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Returns the set of an axis before offset and limit are applied.
+	 * NON EMPTY is only applied by the server after the axis set has been
+	 * evaluated, so for a non empty axis the empty positions are removed
+	 * from the set first, using the set of the other axis, so that pages
+	 * do not overlap or shrink.
+	 */
+	private static ParseTreeNode toPageableSet(Query query, AxisNode axisNode, List<AxisNode> axisNodes) {
+		ParseTreeNode set = axisNode.getExpression();
+		if (!axisNode.isNonEmpty()) {
+			return set;
+		}
+		// without any measures the default measure decides, this also keeps
+		// the count query from evaluating its own calculated measure
+		boolean defaultMeasure = query.getDetails().getMeasures().isEmpty();
+		ParseTreeNode measure = new CallNode(
+				null,
+				defaultMeasure ? "DefaultMember" : "CurrentMember",
+				Syntax.Property,
+				IdentifierNode.ofNames("Measures"));
+		ParseTreeNode otherSet = null;
+		for (AxisNode other : axisNodes) {
+			if (other != axisNode) {
+				otherSet = other.getExpression().deepCopy();
+			}
+		}
+		ParseTreeNode condition;
+		if (otherSet != null) {
+			if (defaultMeasure) {
+				otherSet = new CallNode(null, "CrossJoin", Syntax.Function,
+						otherSet, new CallNode(null, "{}", Syntax.Braces, measure));
+			}
+			condition = new CallNode(null, ">", Syntax.Infix,
+					new CallNode(null, "Count", Syntax.Function, otherSet, LiteralNode.createSymbol(null, "EXCLUDEEMPTY")),
+					LiteralNode.createNumeric(null, BigDecimal.ZERO, false));
+		} else {
+			condition = new CallNode(null, "NOT", Syntax.Prefix,
+					new CallNode(null, "IsEmpty", Syntax.Function, measure));
+		}
+		return new CallNode(null, "Filter", Syntax.Function, set, condition);
+	}
+
+	private static List<AxisNode> toAxisList(List<ParseTreeNode> withList, List<QueryAxis> axes, Map<String, ParameterSlot> parameterSlots) throws Exception {
 		final ArrayList<AxisNode> axisList = new ArrayList<AxisNode>();
 		for (QueryAxis axis : axes) {
-			AxisNode axisNode = toAxis(withList, axis);
+			AxisNode axisNode = toAxis(withList, axis, parameterSlots);
 			if (axisNode != null) {
 				axisList.add(axisNode);
 			}
@@ -97,9 +223,10 @@ public class Olap4jNodeConverter extends NodeConverter {
 	 * crossjoin.
 	 * It might return null if there are no dimensions placed on the axis.
 	 */
-	private static AxisNode toAxis(List<ParseTreeNode> withList, QueryAxis axis) throws Exception {
+	private static AxisNode toAxis(List<ParseTreeNode> withList, QueryAxis axis, Map<String, ParameterSlot> parameterSlots) throws Exception {
 
-		BackendFlavor flavor = axis.getQuery().getFlavor();
+		ConnectionCapabilities capabilities = axis.getQuery().getCapabilities();
+		BackendFlavor flavor = capabilities.getFlavor();
 		ParseTreeNode axisExpression = null;
 		boolean axisAsSet = false;
 		boolean isFilter = Axis.FILTER.equals(axis.getLocation());
@@ -108,11 +235,11 @@ public class Olap4jNodeConverter extends NodeConverter {
 			
 			int hierarchyCount = axis.getQueryHierarchies().size();
 			if (hierarchyCount == 1) {
-				axisExpression = toHierarchy(withList, axis.getQueryHierarchies().get(0));
+				axisExpression = toHierarchy(withList, axis.getQueryHierarchies().get(0), parameterSlots);
 				axisAsSet = true;
 			} else if (hierarchyCount > 1) {
 				for(QueryHierarchy h : axis.getQueryHierarchies()) {
-					ParseTreeNode hierarchyNode = toHierarchy(withList, h);
+					ParseTreeNode hierarchyNode = toHierarchy(withList, h, parameterSlots);
 					if (!isFilter) {
 						WithSetNode withNode = new WithSetNode(null, getIdentifier(axis.getName(), h.getHierarchy().getDimension().getName(), h.getName()), hierarchyNode);
 						withList.add(withNode);		
@@ -121,7 +248,8 @@ public class Olap4jNodeConverter extends NodeConverter {
 						hierarchies.add(hierarchyNode);
 					}
 				}
-				axisExpression = generateCrossJoin(hierarchies, axis.isNonEmpty(), isFilter);
+				boolean nonEmptyCrossJoin = axis.isNonEmpty() && capabilities.supportsNonEmptyCrossJoin();
+				axisExpression = generateCrossJoin(hierarchies, nonEmptyCrossJoin, isFilter);
 			} else {
 				// TODO do we need to handle hierarchy count == 0 ?
 			}
@@ -175,7 +303,7 @@ public class Olap4jNodeConverter extends NodeConverter {
 				axisNode);
 	}
 
-	private static ParseTreeNode toHierarchy(List<ParseTreeNode> withList, QueryHierarchy h) throws OlapException {
+	private static ParseTreeNode toHierarchy(List<ParseTreeNode> withList, QueryHierarchy h, Map<String, ParameterSlot> parameterSlots) throws OlapException {
 		ParseTreeNode hierarchySet = null;
 
 		if (!h.isMdxSetExpression()) {
@@ -196,7 +324,7 @@ public class Olap4jNodeConverter extends NodeConverter {
 				// if we find a complex node, save it so parent levels use it for exists
 				if (!allSimple && firstComplex == -1) {
 					firstComplex = i;
-					ParseTreeNode levelNode = toLevel(l);
+					ParseTreeNode levelNode = toLevel(l, parameterSlots);
 					levelNode = toQuerySet(levelNode, l);
 					existSet = getIdentifier(h.getHierarchy().getDimension().getName(), h.getName(), l.getName());
 					break;
@@ -204,7 +332,7 @@ public class Olap4jNodeConverter extends NodeConverter {
 			}
 			for (int i = 0; i < h.getActiveQueryLevels().size(); i++) {
 				QueryLevel l = h.getActiveQueryLevels().get(i);
-				ParseTreeNode levelNode = toLevel(l);
+				ParseTreeNode levelNode = toLevel(l, parameterSlots);
 				levelNode = toQuerySet(levelNode, l);
 				
 				// don't include exist set if exist set was set on a lower level
@@ -282,17 +410,32 @@ public class Olap4jNodeConverter extends NodeConverter {
 		return hierarchySet;
 	}
 
-	private static ParseTreeNode toLevel(QueryLevel level) throws OlapException {
+	private static ParseTreeNode toLevel(QueryLevel level, Map<String, ParameterSlot> parameterSlots) throws OlapException {
 		List<Member> inclusions = new ArrayList<Member>();
 		List<Member> exclusions = new ArrayList<Member>();
-		inclusions.addAll(level.getInclusions());
-		exclusions.addAll(level.getExclusions());
+		inclusions.addAll(level.getIncludedMembers());
+		exclusions.addAll(level.getExcludedMembers());
+		ParameterSlot slot = null;
+		int minRunLength = level.getQueryHierarchy().getQuery().getRangeCompaction();
 		
 		if (level.hasParameter()) {
 			String parameterName = level.getParameterName();
 			String parameterValue = level.getQueryHierarchy().getQuery().getParameter(parameterName);
 			if (StringUtils.isNotBlank(parameterValue)) {
-				List<Member> resolvedParameters = resolveParameter(level.getQueryHierarchy().getQuery().getCube(), level.getUniqueName(), parameterValue);
+				slot = (parameterSlots == null ? null : parameterSlots.get(level.getUniqueName()));
+				List<Member> resolvedParameters = new ArrayList<Member>();
+				if (slot == null) {
+					Query query = level.getQueryHierarchy().getQuery();
+					QueryMetrics metrics = query.getMetrics();
+					long start = System.nanoTime();
+					boolean success = false;
+					try {
+						resolvedParameters = resolveParameter(query.getCube(), level.getUniqueName(), parameterValue);
+						success = true;
+					} finally {
+						metrics.record(QueryPhase.RESOLVE_PARAMETER, System.nanoTime() - start, success);
+					}
+				}
 				switch(level.getParameterSelectionType()) {
 					case EXCLUSION:
 						exclusions.clear();
@@ -337,13 +480,29 @@ public class Olap4jNodeConverter extends NodeConverter {
 				
 			}
 		}
-		if (inclusions.size() > 0) {
-			baseNode = toOlap4jMemberSet(inclusions);
+		if (slot != null && SelectionType.INCLUSION.equals(level.getParameterSelectionType())) {
+			// the level's exclusions apply to the bound members as well
+			ParseTreeNode exceptSet = null;
+			if (exclusions.size() > 0) {
+				exceptSet = toOlap4jMemberSet(exclusions, minRunLength);
+			}
+			slot.bind(SelectionType.INCLUSION, baseNode, exceptSet, minRunLength);
+			return slot.marker;
+		} else if (inclusions.size() > 0) {
+			baseNode = toOlap4jMemberSet(inclusions, minRunLength);
 		}
-		if (exclusions.size() > 0) {
-			ParseTreeNode exceptSet = toOlap4jMemberSet(exclusions);
+		if (slot != null && SelectionType.EXCLUSION.equals(level.getParameterSelectionType())) {
+			slot.bind(SelectionType.EXCLUSION, baseNode, null, minRunLength);
+			return slot.marker;
+		} else if (exclusions.size() > 0) {
+			ParseTreeNode exceptSet = toOlap4jMemberSet(exclusions, minRunLength);
 			baseNode =  new CallNode(null, "Except", Syntax.Function, baseNode, exceptSet);			
 		}
+		if (slot != null) {
+			// the parameter does not change the selection
+			slot.bind(null, baseNode, null, minRunLength);
+			baseNode = slot.marker;
+		}
 		
 //		if (Axis.FILTER.equals(level.getQueryHierarchy().getAxis().getLocation())
 //				&& inclusions.size() == 0 && exclusions.size() == 0 && !level.isRange()) {
@@ -353,8 +512,63 @@ public class Olap4jNodeConverter extends NodeConverter {
 		return baseNode;
 	}
 	
+	/**
+	 * A level parameter left open by a {@link QueryTemplate}. The converter
+	 * puts the marker in place of the level's set and records the set the
+	 * parameter applies to, so the template renders the bound members
+	 * exactly like the converter does for a query with the same values.
+	 */
+	static final class ParameterSlot {
+
+		final ParseTreeNode marker;
+		private SelectionType selectionType;
+		private ParseTreeNode base;
+		private ParseTreeNode exceptSet;
+		private int minRunLength;
+
+		ParameterSlot(ParseTreeNode marker) {
+			this.marker = marker;
+		}
+
+		private void bind(SelectionType selectionType, ParseTreeNode base, ParseTreeNode exceptSet, int minRunLength) {
+			this.selectionType = selectionType;
+			this.base = base.deepCopy();
+			this.exceptSet = exceptSet;
+			this.minRunLength = minRunLength;
+		}
+
+		private ParseTreeNode except(ParseTreeNode set) {
+			if (exceptSet == null) {
+				return set;
+			}
+			return new CallNode(null, "Except", Syntax.Function, set, exceptSet.deepCopy());
+		}
+
+		/**
+		 * Returns the set of the level for the resolved parameter members.
+		 * Without members the parameter is ignored, as in
+		 * {@link Olap4jNodeConverter#toQuery(Query)}.
+		 * @param members The resolved members
+		 * @return The node to put in place of the marker
+		 */
+		ParseTreeNode toNode(List<Member> members) {
+			if (members.isEmpty() || selectionType == null) {
+				return except(base.deepCopy());
+			}
+			switch (selectionType) {
+				case INCLUSION:
+					return except(toOlap4jMemberSet(members, minRunLength));
+				case EXCLUSION:
+					return new CallNode(null, "Except", Syntax.Function, base.deepCopy(),
+							toOlap4jMemberSet(members, minRunLength));
+				default:
+					return except(base.deepCopy());
+			}
+		}
+	}
+
 	@Deprecated
-	private static List<Member> resolveParameter(Cube cube, String parent, String value) throws OlapException {
+	static List<Member> resolveParameter(Cube cube, String parent, String value) throws OlapException {
 			List<IdentifierSegment> parentParts = null;
 			if (StringUtils.isNotBlank(parent)) {
 				parentParts = IdentifierParser.parseIdentifier(parent);
@@ -383,13 +597,13 @@ public class Olap4jNodeConverter extends NodeConverter {
 	}
 	
 	private static ParseTreeNode toMdxNode(String mdx) {
-		MdxParser parser = new DefaultMdxParserImpl();
+		MdxParser parser = CachingMdxParser.getInstance();
 		ParseTreeNode expression =  parser.parseExpression(mdx);
 		return expression;
 	}
 	
 	private static ParseTreeNode toQuerySet(ParseTreeNode expression, IQuerySet o) {
-		MdxParser parser = new DefaultMdxParserImpl();
+		MdxParser parser = CachingMdxParser.getInstance();
 		if (o.isMdxSetExpression()) {
 			expression =  toMdxNode("{" + o.getMdxSetExpression() + "}");
 		}
@@ -0,0 +1,221 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query;
+
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.OlapStatement;
+
+/**
+ * {@link QueryExecutor} that leases connections from a bounded pool per
+ * catalog and role. Each execution checks out its own connection, so
+ * executions never race on {@link OlapConnection#setCatalog(String)} and
+ * do not serialize on a single connection. The connection stays leased
+ * until the cell set of the execution is closed.
+ * <p>The role is the one of the query's own connection, so queries with
+ * different access rights never share a pooled connection.
+ */
+public class PooledQueryExecutor implements QueryExecutor {
+
+	/**
+	 * Creates the pooled connections.
+	 */
+	public interface ConnectionFactory {
+		public OlapConnection createConnection() throws SQLException;
+	}
+
+	private final ConnectionFactory factory;
+	private final int maxConnections;
+	private final long leaseTimeoutMillis;
+	private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+	private final Map<OlapStatement, Lease> leases = new IdentityHashMap<OlapStatement, Lease>();
+
+	/**
+	 * @param factory Creates new connections for the pools
+	 * @param maxConnections The maximum number of connections per catalog
+	 * @param leaseTimeoutMillis How long to wait for a free connection
+	 */
+	public PooledQueryExecutor(ConnectionFactory factory, int maxConnections, long leaseTimeoutMillis) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("A pool needs at least one connection: " + maxConnections);
+		}
+		this.factory = factory;
+		this.maxConnections = maxConnections;
+		this.leaseTimeoutMillis = leaseTimeoutMillis;
+	}
+
+	@Override
+	public OlapStatement createStatement(Query query) throws OlapException {
+		Pool pool = getPool(query.getCatalog().getName(), query.getConnection().getRoleName());
+		OlapConnection connection = pool.lease();
+		try {
+			OlapStatement statement = connection.createStatement();
+			synchronized (leases) {
+				leases.put(statement, new Lease(pool, connection));
+			}
+			return statement;
+		} catch (SQLException e) {
+			pool.release(connection, true);
+			throw new OlapException("Error creating statement for catalog " + pool.catalog, e);
+		}
+	}
+
+	@Override
+	public void releaseStatement(OlapStatement statement) {
+		Lease lease;
+		synchronized (leases) {
+			lease = leases.remove(statement);
+		}
+		if (lease != null) {
+			lease.pool.release(lease.connection, false);
+		}
+	}
+
+	/**
+	 * Returns the number of connections of the catalog's pools, for all
+	 * roles, that are currently leased.
+	 */
+	public int getActiveCount(String catalog) {
+		int count = 0;
+		for (Pool pool : pools.values()) {
+			if (pool.catalog.equals(catalog)) {
+				count += maxConnections - pool.permits.availablePermits();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of connections of the catalog's pools, for all
+	 * roles, that are open and waiting to be leased.
+	 */
+	public int getIdleCount(String catalog) {
+		int count = 0;
+		for (Pool pool : pools.values()) {
+			if (pool.catalog.equals(catalog)) {
+				count += pool.idle.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Closes all idle connections. Leased connections are closed when they
+	 * are released.
+	 */
+	public void close() {
+		for (Pool pool : pools.values()) {
+			pool.closed = true;
+			OlapConnection connection;
+			while ((connection = pool.idle.poll()) != null) {
+				closeQuietly(connection);
+			}
+		}
+	}
+
+	private Pool getPool(String catalog, String role) {
+		String key = role == null ? catalog : catalog + '\u0000' + role;
+		Pool pool = pools.get(key);
+		if (pool == null) {
+			pools.putIfAbsent(key, new Pool(catalog, role));
+			pool = pools.get(key);
+		}
+		return pool;
+	}
+
+	private static void closeQuietly(OlapConnection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// ignore
+		}
+	}
+
+	private class Pool {
+		private final String catalog;
+		private final String role;
+		private final Semaphore permits = new Semaphore(maxConnections, true);
+		private final ConcurrentLinkedQueue<OlapConnection> idle = new ConcurrentLinkedQueue<OlapConnection>();
+		private volatile boolean closed = false;
+
+		private Pool(String catalog, String role) {
+			this.catalog = catalog;
+			this.role = role;
+		}
+
+		private OlapConnection lease() throws OlapException {
+			try {
+				if (!permits.tryAcquire(leaseTimeoutMillis, TimeUnit.MILLISECONDS)) {
+					throw new OlapException("Timed out waiting for a connection to catalog " + catalog);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new OlapException("Interrupted while waiting for a connection to catalog " + catalog, e);
+			}
+			try {
+				OlapConnection connection;
+				while ((connection = idle.poll()) != null) {
+					if (!connection.isClosed()) {
+						return connection;
+					}
+				}
+				connection = factory.createConnection().unwrap(OlapConnection.class);
+				try {
+					connection.setCatalog(catalog);
+					connection.setRoleName(role);
+				} catch (SQLException e) {
+					closeQuietly(connection);
+					throw e;
+				}
+				return connection;
+			} catch (SQLException e) {
+				permits.release();
+				throw new OlapException("Error creating connection to catalog " + catalog, e);
+			} catch (RuntimeException e) {
+				permits.release();
+				throw e;
+			}
+		}
+
+		private void release(OlapConnection connection, boolean broken) {
+			if (broken || closed) {
+				closeQuietly(connection);
+			} else {
+				idle.offer(connection);
+			}
+			permits.release();
+		}
+	}
+
+	private static final class Lease {
+		private final Pool pool;
+		private final OlapConnection connection;
+
+		private Lease(Pool pool, OlapConnection connection) {
+			this.pool = pool;
+			this.connection = connection;
+		}
+	}
+}
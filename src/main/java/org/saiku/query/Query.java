@@ -20,9 +20,17 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.StringUtils;
 import org.olap4j.Axis;
@@ -43,8 +51,19 @@ import org.olap4j.metadata.Member.Type;
 import org.olap4j.metadata.NamedList;
 import org.olap4j.metadata.Property;
 import org.saiku.query.ISortableQuerySet.HierarchizeMode;
+import org.saiku.query.mdx.CanonicalMdx;
+import org.saiku.query.mdx.MdxCanonicalizer;
 import org.saiku.query.metadata.CalculatedMeasure;
 import org.saiku.query.metadata.CalculatedMember;
+import org.saiku.query.metadata.CubeSkeleton;
+import org.saiku.query.metadata.CubeSkeleton.HierarchySkeleton;
+import org.saiku.query.metadata.CubeSkeleton.LevelSkeleton;
+import org.saiku.query.metrics.HistogramMetrics;
+import org.saiku.query.metrics.JmxMetrics;
+import org.saiku.query.metrics.QueryMetrics;
+import org.saiku.query.metrics.QueryPhase;
+import org.saiku.query.result.CellSets;
+import org.saiku.query.result.CellVisitor;
 import org.saiku.query.util.QueryUtil;
 
 public class Query {
@@ -56,10 +75,25 @@ public class Query {
     protected QueryAxis filter;
     protected QueryAxis unused;
     protected final Cube cube;
+    protected final CubeSkeleton skeleton;
+    /**
+     * Query hierarchies created so far, by unique name. Hierarchies are
+     * created when they are first used, see {@link #getHierarchy(String)}.
+     */
     protected Map<String, QueryHierarchy> hierarchyMap =
         new HashMap<String, QueryHierarchy>();
+    /**
+     * Whether the unused axis holds all hierarchies of the cube yet.
+     */
+    private boolean hierarchiesLoaded = false;
     
     protected NamedList<CalculatedMeasure> calculatedMeasures = new NamedListImpl<CalculatedMeasure>();
+
+    private final Runnable touchCallback = new Runnable() {
+    	public void run() {
+    		touch();
+    	}
+    };
     
     protected QueryDetails details;
     /**
@@ -72,8 +106,21 @@ public class Query {
 	private boolean visualTotals = false;
 	private String visualTotalsPattern;
 	private boolean lowestLevelsOnly = false;
+	private int rangeCompaction = 0;
 	private Map<String, String> parameters = new HashMap<String, String>();
 	private Map<String, List<String>> aggregators = new HashMap<String, List<String>>();
+
+	/**
+	 * Structural version of this query. Every mutation of the query model
+	 * increments it, which invalidates the cached select tree and MDX.
+	 */
+	private volatile long version = 0;
+	private volatile CachedSelect cachedSelect;
+	private volatile int queryTimeout = 0;
+	private volatile QueryExecutor executor;
+	private static volatile Executor defaultExecutor;
+	private volatile QueryMetrics metrics;
+	private static volatile QueryMetrics defaultMetrics;
 	
     /**
      * Constructs a Query object.
@@ -86,17 +133,12 @@ public class Query {
         super();
         this.name = name;
         this.cube = cube;
+        this.skeleton = CubeSkeleton.of(cube);
         final Catalog catalog = cube.getSchema().getCatalog();
         this.connection =
             catalog.getMetaData().getConnection().unwrap(OlapConnection.class);
         this.connection.setCatalog(catalog.getName());
         this.unused = new QueryAxis(this, null);
-        for (Hierarchy hierarchy : cube.getHierarchies()) {
-            QueryHierarchy queryHierarchy = new QueryHierarchy(
-                this, hierarchy);
-            unused.getQueryHierarchies().add(queryHierarchy);
-            hierarchyMap.put(queryHierarchy.getUniqueName(), queryHierarchy);
-        }
         across = new QueryAxis(this, Axis.COLUMNS);
         down = new QueryAxis(this, Axis.ROWS);
         filter = new QueryAxis(this, Axis.FILTER);
@@ -107,25 +149,170 @@ public class Query {
         details = new QueryDetails(this, Axis.COLUMNS);
     }
 
+    private Query(String name, Query other) {
+        super();
+        this.name = name;
+        this.cube = other.cube;
+        this.skeleton = other.skeleton;
+        this.connection = other.connection;
+        Map<Member, Member> calculatedCopies = new IdentityHashMap<Member, Member>();
+        for (QueryHierarchy h : other.hierarchyMap.values()) {
+            hierarchyMap.put(h.getUniqueName(), new QueryHierarchy(this, h, calculatedCopies));
+        }
+        this.hierarchiesLoaded = other.hierarchiesLoaded;
+        this.unused = new QueryAxis(this, null);
+        across = new QueryAxis(this, Axis.COLUMNS);
+        down = new QueryAxis(this, Axis.ROWS);
+        filter = new QueryAxis(this, Axis.FILTER);
+        unused.copyFrom(other.unused, hierarchyMap);
+        across.copyFrom(other.across, hierarchyMap);
+        down.copyFrom(other.down, hierarchyMap);
+        filter.copyFrom(other.filter, hierarchyMap);
+        axes.put(null, unused);
+        axes.put(Axis.COLUMNS, across);
+        axes.put(Axis.ROWS, down);
+        axes.put(Axis.FILTER, filter);
+        for (CalculatedMeasure cm : other.calculatedMeasures) {
+            calculatedMeasures.add(copyOf(cm, calculatedCopies));
+        }
+        details = new QueryDetails(this, other.details, calculatedCopies);
+        this.selectDefaultMembers = other.selectDefaultMembers;
+        this.defaultHierarchizeMode = other.defaultHierarchizeMode;
+        this.visualTotals = other.visualTotals;
+        this.visualTotalsPattern = other.visualTotalsPattern;
+        this.lowestLevelsOnly = other.lowestLevelsOnly;
+        this.rangeCompaction = other.rangeCompaction;
+        this.parameters = new HashMap<String, String>(other.parameters);
+        for (Map.Entry<String, List<String>> entry : other.aggregators.entrySet()) {
+            aggregators.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+        }
+        this.queryTimeout = other.queryTimeout;
+        this.executor = other.executor;
+        this.metrics = other.metrics;
+        this.version = other.version;
+        this.cachedSelect = other.cachedSelect;
+    }
+
     /**
-     * Returns the MDX parse tree behind this Query. The returned object is
-     * generated for each call to this function. Altering the returned
+     * Creates an independent copy of this query, e.g. to run a variant of
+     * it with another slicer or measure. Changing the copy does not change
+     * this query and vice versa.
+     * <p>Only the hierarchies and levels this query has used are copied.
+     * Member selections, which can be large, are shared between both
+     * queries until one of them changes them. Calculated members and
+     * measures and name filters are copied, the other filter functions
+     * are immutable and shared, as is the generated MDX.
+     * @param name The name of the copy
+     * @return The copy
+     */
+    public Query copy(String name) {
+        return new Query(name, this);
+    }
+
+    /**
+     * Returns the copy of a calculated member or measure for a copied
+     * query, creating it on first use so all references to it in the
+     * copy stay the same object. Other members are returned as they are.
+     * @param member The member of the query being copied
+     * @param copies The copies made so far, by original
+     * @return The member to use in the copy
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Member> T copyOf(T member, Map<Member, Member> copies) {
+        Member copy = copies.get(member);
+        if (copy == null) {
+            if (member instanceof CalculatedMeasure) {
+                copy = new CalculatedMeasure((CalculatedMeasure) member);
+            } else if (member instanceof CalculatedMember) {
+                copy = new CalculatedMember((CalculatedMember) member);
+            } else {
+                return member;
+            }
+            copies.put(member, copy);
+        }
+        return (T) copy;
+    }
+
+    /**
+     * Returns the MDX parse tree behind this Query. The tree is only
+     * regenerated if the query model changed since the last call, the
+     * returned object is always a copy. Altering the returned
      * SelectNode object won't affect the query itself.
      * @return A SelectNode object representing the current query structure.
      * @throws OlapException 
      */
     public SelectNode getSelect() throws OlapException {
+    	return getCachedSelect().select.deepCopy();
+    }
+    
+    public String getMdx() throws OlapException {
+    	return getCachedSelect().mdx;
+    }
+
+    /**
+     * Returns the canonical form of the MDX of this query, which is equal
+     * for logically identical queries. Like the select, it is only
+     * regenerated if the query model changed.
+     * @return The canonical MDX and its hash
+     * @throws OlapException if the select cannot be created
+     * @see MdxCanonicalizer
+     */
+    public CanonicalMdx getCanonicalMdx() throws OlapException {
+    	CachedSelect cached = getCachedSelect();
+    	CanonicalMdx canonical = cached.canonical;
+    	if (canonical == null) {
+    		canonical = MdxCanonicalizer.canonicalize(cached.select);
+    		cached.canonical = canonical;
+    	}
+    	return canonical;
+    }
+
+    /**
+     * Returns the current structural version of this query. The version
+     * is incremented by every mutator of the query model.
+     * @return the current version
+     */
+    public long getVersion() {
+    	return version;
+    }
+
+    /**
+     * Marks the query model as changed. The mutators of the query model,
+     * and the lists returned by its getters, call this automatically. It
+     * only has to be called explicitly after changing a calculated
+     * member's formula or format properties, or the state of a filter.
+     */
+    public void touch() {
+    	version++;
+    	cachedSelect = null;
+    }
+
+    private CachedSelect getCachedSelect() throws OlapException {
+    	CachedSelect cached = cachedSelect;
+    	if (cached != null && cached.version == version && cached.parameters.equals(parameters)) {
+    		return cached;
+    	}
+    	final long currentVersion = version;
+    	final Map<String, String> currentParameters = new HashMap<String, String>(parameters);
+    	final QueryMetrics queryMetrics = getMetrics();
+    	final SelectNode select;
+    	final long start = System.nanoTime();
     	try {
-    		return Olap4jNodeConverter.toQuery(this);
+    		select = Olap4jNodeConverter.toQuery(this);
     	} catch (Exception e) {
+    		queryMetrics.record(QueryPhase.CONVERT, System.nanoTime() - start, false);
     		throw new OlapException("Error creating Select", e);
     	}
-    }
-    
-    public String getMdx() throws OlapException {
+    	final long converted = System.nanoTime();
+    	queryMetrics.record(QueryPhase.CONVERT, converted - start, true);
     	final Writer writer = new StringWriter();
-    	this.getSelect().unparse(new ParseTreeWriter(new PrintWriter(writer)));
-    	return writer.toString();
+    	select.unparse(new ParseTreeWriter(new PrintWriter(writer)));
+    	queryMetrics.record(QueryPhase.UNPARSE, System.nanoTime() - converted, true);
+    	cached = new CachedSelect(currentVersion, currentParameters, select, writer.toString());
+    	if (currentVersion == version) {
+    		cachedSelect = cached;
+    	}
+    	return cached;
     }
 
     /**
@@ -136,6 +323,15 @@ public class Query {
         return cube;
     }
 
+    /**
+     * Returns the shared description of the hierarchies and levels of
+     * this query's cube.
+     * @return The cube skeleton
+     */
+    public CubeSkeleton getSkeleton() {
+        return skeleton;
+    }
+
     /**
      * Returns the underlying connection object that is used to query against.
      * @return The Olap4j's Connection object.
@@ -161,16 +357,14 @@ public class Query {
      * name can be found.
      */
     public QueryHierarchy getHierarchy(String name) {
-        if (hierarchyMap.containsKey(name)) {
-        	return hierarchyMap.get(name);
-        } else {
-        	for (QueryHierarchy qh : hierarchyMap.values()) {
-        		if (qh.getName().equals(name)) {
-        			return qh;
-        		}
+        QueryHierarchy qh = hierarchyMap.get(name);
+        if (qh == null) {
+        	HierarchySkeleton hierarchy = skeleton.findHierarchy(name);
+        	if (hierarchy != null) {
+        		qh = getOrCreateHierarchy(hierarchy.getHierarchy());
         	}
         }
-        return null;
+        return qh;
     }
 
     /**
@@ -185,7 +379,43 @@ public class Query {
     	if (hierarchy == null) {
     		return null;
     	}
-    	return hierarchyMap.get(hierarchy.getUniqueName());
+    	QueryHierarchy qh = hierarchyMap.get(hierarchy.getUniqueName());
+    	if (qh == null) {
+    		qh = createHierarchy(hierarchy.getUniqueName());
+    	}
+    	return qh;
+    }
+
+    /*
+     * Creates the query hierarchy for the cube hierarchy with the given
+     * unique name, null if the cube has no such hierarchy.
+     */
+    private QueryHierarchy createHierarchy(String uniqueName) {
+    	HierarchySkeleton hierarchy = skeleton.getHierarchy(uniqueName);
+    	return hierarchy == null ? null : getOrCreateHierarchy(hierarchy.getHierarchy());
+    }
+
+    private QueryHierarchy getOrCreateHierarchy(Hierarchy hierarchy) {
+    	QueryHierarchy qh = hierarchyMap.get(hierarchy.getUniqueName());
+    	if (qh == null) {
+    		qh = new QueryHierarchy(this, hierarchy);
+    		hierarchyMap.put(qh.getUniqueName(), qh);
+    	}
+    	return qh;
+    }
+
+    /**
+     * Fills the unused axis with all hierarchies of the cube, in cube
+     * order, the first time the unused axis is enumerated.
+     */
+    void loadHierarchies() {
+    	if (hierarchiesLoaded) {
+    		return;
+    	}
+    	hierarchiesLoaded = true;
+    	for (HierarchySkeleton hierarchy : skeleton.getHierarchies()) {
+    		unused.hierarchies.add(getOrCreateHierarchy(hierarchy.getHierarchy()));
+    	}
     }
 
 
@@ -198,7 +428,7 @@ public class Query {
      * name can be found.
      */
     public QueryLevel getLevel(Hierarchy hierarchy, String name) {
-        QueryHierarchy h =  hierarchyMap.get(hierarchy.getUniqueName());
+        QueryHierarchy h =  getHierarchy(hierarchy);
         return h.getActiveLevel(name);
     }
     
@@ -222,13 +452,12 @@ public class Query {
      */
     public QueryLevel getLevel(String uniqueLevelName) {
     	if (StringUtils.isNotBlank(uniqueLevelName)) {
-	    	for (QueryHierarchy qh : hierarchyMap.values()) {
-	    		for (QueryLevel ql : qh.getActiveQueryLevels()) {
-	    			if (ql.getUniqueName().equals(uniqueLevelName)) {
-	    				return ql;
-	    			}
-	    		}
-	    	}
+    		LevelSkeleton level = skeleton.getLevel(uniqueLevelName);
+    		// a hierarchy that was not created yet has no active levels
+    		QueryHierarchy qh = level == null ? null : hierarchyMap.get(level.getHierarchy().getUniqueName());
+    		if (qh != null) {
+    			return qh.getActiveLevel(level.getName());
+    		}
     	}
     	return null;
     }
@@ -264,6 +493,7 @@ public class Query {
         across.getQueryHierarchies().addAll(tmpDown);
 
         down.getQueryHierarchies().addAll(tmpAcross);
+        touch();
     }
 
     /**
@@ -378,26 +608,26 @@ public class Query {
     
     public void addCalculatedMeasure(CalculatedMeasure cm) {
     	calculatedMeasures.add(cm);
+    	touch();
     }
     
+    /**
+     * Changes to the returned list write through to the query.
+     */
     public NamedList<CalculatedMeasure> getCalculatedMeasures() {
-    	return calculatedMeasures;
+    	return new TouchingList.Named<CalculatedMeasure>(calculatedMeasures, touchCallback);
     }
     
     public CalculatedMeasure getCalculatedMeasure(String name) {
     	return calculatedMeasures.get(name);
     }
     
+    /**
+     * Returns the measure of the cube with the given name, unique name or
+     * caption, null if the cube has no such measure.
+     */
     public Measure getMeasure(String name) {
-    	for (Measure m : cube.getMeasures()) {
-    		if (name != null && name.equals(m.getName())) {
-    			return m;
-    		}
-    		if (name != null && m.getUniqueName().equals(name)) {
-    			return m;
-    		}
-    	}
-    	return null;
+    	return skeleton.findMeasure(name);
     }
     
     public QueryDetails getDetails() {
@@ -426,15 +656,286 @@ public class Query {
      *     a stale connection. Look at the root cause for more details.
      */
     public CellSet execute() throws OlapException {
-        SelectNode mdx = getSelect();
-        final Catalog catalog = getCatalog();
+        return execute(getSelect());
+    }
+
+    /**
+     * Executes a select derived from this query on a statement of this
+     * query, e.g. a count or drill down query. With an executor, closing
+     * the returned cell set closes its statement and releases it to the
+     * executor.
+     */
+    CellSet execute(SelectNode mdx) throws OlapException {
+        final QueryMetrics queryMetrics = getMetrics();
+        final long start = System.nanoTime();
+        boolean success = false;
         try {
-            this.connection.setCatalog(catalog.getName());
-        } catch (SQLException e) {
-            throw new OlapException("Error while executing query", e);
+        	final QueryExecutor queryExecutor = executor;
+        	OlapStatement olapStatement = createStatement(queryExecutor);
+        	try {
+        		CellSet cellSet = LeasedCellSet.of(olapStatement.executeOlapQuery(mdx), olapStatement, queryExecutor);
+        		success = true;
+        		return cellSet;
+        	} finally {
+        		if (!success) {
+        			LeasedCellSet.discard(olapStatement, queryExecutor);
+        		}
+        	}
+        } finally {
+        	queryMetrics.record(QueryPhase.EXECUTE, System.nanoTime() - start, success);
         }
-        OlapStatement olapStatement = connection.createStatement();
-        return olapStatement.executeOlapQuery(mdx);
+    }
+
+    /**
+     * Returns a query that counts the positions of an axis, ignoring its
+     * offset and limit. Together with {@link QueryAxis#setOffset(int)} and
+     * {@link QueryAxis#setLimit(int)} this gives the total for paging.
+     * @param axis The axis to count
+     * @return The count query, its only cell is the count
+     * @throws OlapException if the query cannot be created
+     */
+    public SelectNode getCountSelect(Axis axis) throws OlapException {
+    	try {
+    		return Olap4jNodeConverter.toCountQuery(this, axis);
+    	} catch (Exception e) {
+    		throw new OlapException("Error creating count Select", e);
+    	}
+    }
+
+    /**
+     * Executes the count query of an axis.
+     * @param axis The axis to count
+     * @return The number of positions of the axis, without offset and limit
+     * @throws OlapException if the query cannot be executed
+     * @see #getCountSelect(Axis)
+     */
+    public int executeCount(Axis axis) throws OlapException {
+    	CellSet cellSet = execute(getCountSelect(axis));
+    	try {
+    		Object value = cellSet.getCell(0).getValue();
+    		return value instanceof Number ? ((Number) value).intValue() : 0;
+    	} finally {
+    		CellSets.closeQuietly(cellSet);
+    	}
+    }
+
+    /**
+     * Executes the query and streams its cells to a visitor in row-major
+     * order, without materializing the result. The driver still creates a
+     * {@link org.olap4j.Cell} per cell. The cell set, and with it the
+     * statement, is closed afterwards.
+     * @param visitor The visitor
+     * @throws OlapException if the query cannot be executed
+     * @see CellSets#visit(CellSet, CellVisitor)
+     */
+    public void execute(CellVisitor visitor) throws OlapException {
+    	CellSet cellSet = execute();
+    	final QueryMetrics queryMetrics = getMetrics();
+    	final long start = System.nanoTime();
+    	boolean success = false;
+    	try {
+    		CellSets.visit(cellSet, visitor);
+    		success = true;
+    	} finally {
+    		queryMetrics.record(QueryPhase.FETCH, System.nanoTime() - start, success);
+    		CellSets.closeQuietly(cellSet);
+    	}
+    }
+
+    /**
+     * Executes the query asynchronously on the default executor.
+     * @return A future of the query results
+     * @see #executeAsync(Executor)
+     */
+    public CompletableFuture<CellSet> executeAsync() {
+    	return executeAsync(getDefaultExecutor());
+    }
+
+    /**
+     * Executes the query asynchronously on the given executor. The MDX is
+     * generated on the calling thread, so later changes to the query model
+     * do not affect the running execution.
+     * <p>Cancelling the returned future cancels the statement running on the
+     * server. If a query timeout is set, the statement is cancelled by the
+     * driver after the timeout and the future completes exceptionally.
+     * @param executor The executor to run the statement on
+     * @return A future of the query results
+     */
+    public CompletableFuture<CellSet> executeAsync(Executor executor) {
+    	final ExecutionFuture future = new ExecutionFuture();
+    	final SelectNode mdx;
+    	try {
+    		mdx = getSelect();
+    	} catch (OlapException e) {
+    		future.completeExceptionally(e);
+    		return future;
+    	}
+    	try {
+    		executor.execute(new Runnable() {
+    			public void run() {
+    				if (future.isDone()) {
+    					return;
+    				}
+    				final QueryMetrics queryMetrics = getMetrics();
+    				final long start = System.nanoTime();
+    				try {
+    					final QueryExecutor queryExecutor = Query.this.executor;
+    					OlapStatement statement = createStatement(queryExecutor);
+    					boolean executed = false;
+    					try {
+    						if (future.setStatement(statement)) {
+    							CellSet cellSet = LeasedCellSet.of(statement.executeOlapQuery(mdx), statement, queryExecutor);
+    							executed = true;
+    							if (!future.complete(cellSet)) {
+    								// cancelled while executing, nobody will close the result
+    								CellSets.closeQuietly(cellSet);
+    							}
+    						}
+    					} finally {
+    						if (!executed) {
+    							LeasedCellSet.discard(statement, queryExecutor);
+    						}
+    					}
+    					queryMetrics.record(QueryPhase.EXECUTE, System.nanoTime() - start, true);
+    				} catch (Throwable t) {
+    					queryMetrics.record(QueryPhase.EXECUTE, System.nanoTime() - start, false);
+    					future.completeExceptionally(t);
+    				}
+    			}
+    		});
+    	} catch (RejectedExecutionException e) {
+    		future.completeExceptionally(e);
+    	}
+    	return future;
+    }
+
+    private OlapStatement createStatement(QueryExecutor queryExecutor) throws OlapException {
+        final Catalog catalog = getCatalog();
+        OlapStatement olapStatement;
+        if (queryExecutor != null) {
+        	olapStatement = queryExecutor.createStatement(this);
+        } else {
+        	synchronized (connection) {
+        		this.connection.setCatalog(catalog.getName());
+        		olapStatement = connection.createStatement();
+        	}
+        }
+        if (queryTimeout > 0) {
+        	try {
+        		olapStatement.setQueryTimeout(queryTimeout);
+        	} catch (SQLException e) {
+        		LeasedCellSet.discard(olapStatement, queryExecutor);
+        		throw new OlapException("Error setting query timeout", e);
+        	}
+        }
+        return olapStatement;
+    }
+
+    /**
+     * Sets the executor that provides the statements for executing this
+     * query. Without an executor the query runs on the connection of its cube.
+     * @param executor The executor, can be null
+     */
+    public void setExecutor(QueryExecutor executor) {
+    	this.executor = executor;
+    }
+
+    public QueryExecutor getExecutor() {
+    	return executor;
+    }
+
+    /**
+     * Sets the number of seconds the backend may spend on executing this
+     * query before it is cancelled.
+     * @param seconds The timeout in seconds, 0 means no limit
+     */
+    public void setQueryTimeout(int seconds) {
+    	if (seconds < 0) {
+    		throw new IllegalArgumentException("Query timeout must not be negative: " + seconds);
+    	}
+    	this.queryTimeout = seconds;
+    }
+
+    public int getQueryTimeout() {
+    	return queryTimeout;
+    }
+
+    /**
+     * Sets the metrics that record the phase timings of this query.
+     * @param metrics The metrics, null to use the default metrics
+     * @see #setDefaultMetrics(QueryMetrics)
+     */
+    public void setMetrics(QueryMetrics metrics) {
+    	this.metrics = metrics;
+    }
+
+    /**
+     * @return The metrics of this query, or the default metrics if none are set
+     */
+    public QueryMetrics getMetrics() {
+    	QueryMetrics queryMetrics = metrics;
+    	return queryMetrics != null ? queryMetrics : getDefaultMetrics();
+    }
+
+    /**
+     * Sets the metrics for all queries without their own metrics.
+     * {@link QueryMetrics#NONE} disables the instrumentation.
+     * @param metrics The metrics, null restores the built-in metrics
+     */
+    public static void setDefaultMetrics(QueryMetrics metrics) {
+    	defaultMetrics = metrics;
+    }
+
+    /**
+     * Returns the default metrics. Unless set otherwise, these are
+     * {@link JmxMetrics} in the domain {@value JmxMetrics#DEFAULT_DOMAIN},
+     * or in-memory {@link HistogramMetrics} if JMX is not available.
+     * @return The default metrics
+     */
+    public static QueryMetrics getDefaultMetrics() {
+    	QueryMetrics queryMetrics = defaultMetrics;
+    	if (queryMetrics == null) {
+    		synchronized (Query.class) {
+    			if (defaultMetrics == null) {
+    				try {
+    					defaultMetrics = new JmxMetrics(JmxMetrics.DEFAULT_DOMAIN);
+    				} catch (Exception e) {
+    					defaultMetrics = new HistogramMetrics();
+    				}
+    			}
+    			queryMetrics = defaultMetrics;
+    		}
+    	}
+    	return queryMetrics;
+    }
+
+    /**
+     * Sets the executor used by {@link #executeAsync()} for all queries.
+     * @param executor The executor, null restores the built-in executor
+     */
+    public static void setDefaultExecutor(Executor executor) {
+    	defaultExecutor = executor;
+    }
+
+    private static Executor getDefaultExecutor() {
+    	Executor executor = defaultExecutor;
+    	if (executor == null) {
+    		synchronized (Query.class) {
+    			if (defaultExecutor == null) {
+    				defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+    					private final AtomicInteger count = new AtomicInteger();
+
+    					public Thread newThread(Runnable r) {
+    						Thread thread = new Thread(r, "saiku-query-" + count.incrementAndGet());
+    						thread.setDaemon(true);
+    						return thread;
+    					}
+    				});
+    			}
+    			executor = defaultExecutor;
+    		}
+    	}
+    	return executor;
     }
 
     /**
@@ -470,8 +971,11 @@ public class Query {
 	
 	
 	private QueryAxis findAxis(QueryHierarchy hierarchy) {
-		if (getUnusedAxis().getQueryHierarchies().contains(hierarchy)) {
-			return getUnusedAxis();
+		boolean isUnused = hierarchiesLoaded
+				? unused.hierarchies.contains(hierarchy)
+				: hierarchy.equals(hierarchyMap.get(hierarchy.getUniqueName()));
+		if (isUnused) {
+			return unused;
 		}
 		else {
 			Map<Axis,QueryAxis> axes = getAxes();
@@ -495,10 +999,12 @@ public class Query {
      */
     public void setSelectDefaultMembers(boolean selectDefaultMembers) {
         this.selectDefaultMembers = selectDefaultMembers;
+        touch();
     }
     
     public void setDefaultHierarchizeMode(HierarchizeMode mode) {
     	this.defaultHierarchizeMode = mode;
+    	touch();
     }
     
     public HierarchizeMode getDefaultHierarchizeMode() {
@@ -510,6 +1016,7 @@ public class Query {
 			this.visualTotalsPattern = null;
 		}
     	this.visualTotals = visualTotals;
+    	touch();
     }
     
     public boolean isVisualTotals() {
@@ -518,6 +1025,7 @@ public class Query {
     	
 	public void setVisualTotalsPattern(String pattern) {
 		this.visualTotalsPattern = pattern;
+		touch();
 	}
 	
 	public String getVisualTotalsPattern() {
@@ -526,11 +1034,30 @@ public class Query {
 	
 	public void setLowestLevelsOnly(boolean lowest) {
 		this.lowestLevelsOnly = lowest;
+		touch();
 	}
 	
 	public boolean isLowestLevelsOnly() {
 		return this.lowestLevelsOnly;
 	}
+
+	/**
+	 * Enables the compaction of member selections. Runs of at least
+	 * <code>minRunLength</code> consecutive sibling members (by ordinal)
+	 * are generated as a range <code>first : last</code> instead of listing
+	 * every member, which keeps the MDX of large selections small.
+	 * <p>Relies on the member ordinals reported by the backend, so it is
+	 * disabled by default.
+	 * @param minRunLength The minimum length of a run, 0 disables compaction
+	 */
+	public void setRangeCompaction(int minRunLength) {
+		this.rangeCompaction = minRunLength;
+		touch();
+	}
+
+	public int getRangeCompaction() {
+		return this.rangeCompaction;
+	}
 	
 	/**
 	 * @return the parameters
@@ -541,7 +1068,11 @@ public class Query {
 	
 	public void retrieveParameters() {
 		for (QueryAxis qa : getAxes().values()) {
-			for (QueryHierarchy qh : qa.getQueryHierarchies()) {
+			// hierarchies that were never used have no parameters
+			Collection<QueryHierarchy> hierarchies = qa.getLocation() == null
+					? hierarchyMap.values()
+					: qa.getQueryHierarchies();
+			for (QueryHierarchy qh : hierarchies) {
 				for (QueryLevel ql : qh.getActiveQueryLevels()) {
 					String pName = ql.getParameterName();
 					if (StringUtils.isNotBlank(pName)) {
@@ -565,10 +1096,12 @@ public class Query {
 	 */
 	public void setParameters(Map<String, String> parameters) {
 		this.parameters  = parameters;
+		touch();
 	}
 	
 	public void setParameter(String name, String value) {
 		this.parameters.put(name, value);
+		touch();
 	}
 
 	public String getParameter(String parameter) {
@@ -590,6 +1123,7 @@ public class Query {
 		if (StringUtils.isNotBlank(parameter)) {
 			if (!parameters.containsKey(parameter)) {
 				parameters.put(parameter, null);
+				touch();
 			}
 		}
 	}
@@ -621,19 +1155,86 @@ public class Query {
         private BackendFlavor(String token) {
             this.token = token;
         }
-	}
-	
-	public BackendFlavor getFlavor() throws OlapException {
-            final String dataSourceInfo =
-                this.connection.getOlapDatabase().getDataSourceInfo();
-            final String proivder = this.connection.getOlapDatabase().getProviderName();
+
+        static BackendFlavor detect(String provider, String dataSourceInfo) {
             for (BackendFlavor flavor : BackendFlavor.values()) {
-                if (proivder.contains(flavor.token) || dataSourceInfo.contains(flavor.token)) {
+                if (provider.contains(flavor.token) || dataSourceInfo.contains(flavor.token)) {
                     return flavor;
                 }
             }
             throw new AssertionError("Can't determine the backend vendor. (" + dataSourceInfo + ")");
-     }
+        }
+	}
+	
+	/**
+	 * Returns the backend vendor of this query's connection. The flavor is
+	 * only probed once per connection and catalog.
+	 * @see ConnectionCapabilities#getFlavor()
+	 */
+	public BackendFlavor getFlavor() throws OlapException {
+		return getCapabilities().getFlavor();
+	}
+
+	/**
+	 * Returns the shared capabilities of this query's connection and catalog.
+	 * @return the connection capabilities
+	 */
+	public ConnectionCapabilities getCapabilities() {
+		return ConnectionCapabilities.get(connection, getCatalog());
+	}
+
+	/**
+	 * Future of an asynchronous execution that cancels the running
+	 * statement when it is cancelled.
+	 */
+	private static final class ExecutionFuture extends CompletableFuture<CellSet> {
+		private OlapStatement statement;
+
+		/**
+		 * Registers the running statement.
+		 * @return false if the future has been cancelled already
+		 */
+		private synchronized boolean setStatement(OlapStatement statement) throws SQLException {
+			if (isCancelled()) {
+				statement.close();
+				return false;
+			}
+			this.statement = statement;
+			return true;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				synchronized (this) {
+					if (statement != null) {
+						try {
+							statement.cancel();
+						} catch (SQLException e) {
+							// the statement is about to finish or has failed already
+						}
+					}
+				}
+			}
+			return cancelled;
+		}
+	}
+
+	private static final class CachedSelect {
+		private final long version;
+		private final Map<String, String> parameters;
+		private final SelectNode select;
+		private final String mdx;
+		private volatile CanonicalMdx canonical;
+
+		private CachedSelect(long version, Map<String, String> parameters, SelectNode select, String mdx) {
+			this.version = version;
+			this.parameters = parameters;
+			this.select = select;
+			this.mdx = mdx;
+		}
+	}
 
     
 //  /**
@@ -16,6 +16,7 @@
 package org.saiku.query;
 
 import java.util.List;
+import java.util.Map;
 
 import org.olap4j.Axis;
 import org.olap4j.impl.NamedListImpl;
@@ -28,6 +29,8 @@ public class QueryAxis extends AbstractSortableQuerySet {
     private final Query query;
     protected Axis location = null;
     private boolean nonEmpty;
+    private int offset = 0;
+    private int limit = -1;
     
     public QueryAxis(Query query, Axis location) {
         super();
@@ -35,6 +38,24 @@ public class QueryAxis extends AbstractSortableQuerySet {
         this.location = location;
     }
 
+    /**
+     * Copies the state of another axis into this one, mapping its
+     * hierarchies to the ones of the copied query.
+     */
+    void copyFrom(QueryAxis other, Map<String, QueryHierarchy> hierarchyMap) {
+        super.copyFrom(other);
+        this.nonEmpty = other.nonEmpty;
+        this.offset = other.offset;
+        this.limit = other.limit;
+        for (QueryHierarchy h : other.hierarchies) {
+            QueryHierarchy copy = hierarchyMap.get(h.getUniqueName());
+            hierarchies.add(copy);
+            if (location != null) {
+                copy.axis = this;
+            }
+        }
+    }
+
     public Axis getLocation() {
         return location;
     }
@@ -62,6 +83,65 @@ public class QueryAxis extends AbstractSortableQuerySet {
      */
     public void setNonEmpty(boolean nonEmpty) {
     	this.nonEmpty = nonEmpty;
+    	touch();
+    }
+
+    /**
+     * Returns the index of the first position returned for this axis.
+     * @see #setOffset(int)
+     */
+    public int getOffset() {
+    	return offset;
+    }
+
+    /**
+     * Sets the index of the first position returned for this axis. The
+     * positions before it are skipped on the server, after the axis has
+     * been sorted and filtered and, if the axis is non empty, empty
+     * positions have been removed.
+     *
+     * @param offset The index of the first position, 0 to start at the first
+     *
+     * @see #setLimit(int)
+     * @see Query#executeCount(Axis)
+     */
+    public void setOffset(int offset) {
+    	if (offset < 0) {
+    		throw new IllegalArgumentException("Offset must not be negative: " + offset);
+    	}
+    	this.offset = offset;
+    	touch();
+    }
+
+    /**
+     * Returns the maximum number of positions returned for this axis, or -1
+     * if there is no limit.
+     * @see #setLimit(int)
+     */
+    public int getLimit() {
+    	return limit;
+    }
+
+    /**
+     * Sets the maximum number of positions returned for this axis.
+     *
+     * @param limit The maximum number of positions, -1 for no limit
+     *
+     * @see #setOffset(int)
+     */
+    public void setLimit(int limit) {
+    	if (limit < -1) {
+    		throw new IllegalArgumentException("Limit must be -1 or more: " + limit);
+    	}
+    	this.limit = limit;
+    	touch();
+    }
+
+    /**
+     * Returns whether only a page of the positions of this axis is returned.
+     */
+    public boolean isPaginated() {
+    	return offset > 0 || limit >= 0;
     }
 
     public String getName() {
@@ -81,8 +161,15 @@ public class QueryAxis extends AbstractSortableQuerySet {
     	return (query.isLowestLevelsOnly() | Axis.FILTER.equals(location));
     }
 
+	/**
+	 * Returns the hierarchies on this axis. Changes to the list write
+	 * through to the query.
+	 */
 	public List<QueryHierarchy> getQueryHierarchies() {
-		return hierarchies;
+		if (location == null) {
+			query.loadHierarchies();
+		}
+		return touching(hierarchies);
 	}
 	
     /**
@@ -119,6 +206,7 @@ public class QueryAxis extends AbstractSortableQuerySet {
         } else {
         	hierarchies.add(index, hierarchy);
         }
+        touch();
     }
 
 
@@ -130,6 +218,12 @@ public class QueryAxis extends AbstractSortableQuerySet {
     public void removeHierarchy(QueryHierarchy hierarchy) {
     	hierarchy.setAxis(null);
         this.getQueryHierarchies().remove(hierarchy);
+        touch();
+    }
+
+    @Override
+    protected void touch() {
+    	query.touch();
     }
 
 }
@@ -0,0 +1,537 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.olap4j.Axis;
+import org.olap4j.OlapException;
+import org.olap4j.impl.IdentifierParser;
+import org.olap4j.mdx.IdentifierNode;
+import org.olap4j.mdx.IdentifierSegment;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Hierarchy;
+import org.olap4j.metadata.Measure;
+import org.olap4j.metadata.Member;
+import org.olap4j.metadata.Member.Type;
+import org.saiku.query.ISortableQuerySet.HierarchizeMode;
+import org.saiku.query.Parameter.SelectionType;
+import org.saiku.query.mdx.GenericFilter;
+import org.saiku.query.mdx.IFilterFunction;
+import org.saiku.query.mdx.IFilterFunction.MdxFunctionType;
+import org.saiku.query.mdx.NFilter;
+import org.saiku.query.mdx.NameFilter;
+import org.saiku.query.mdx.NameLikeFilter;
+import org.saiku.query.metadata.CalculatedMeasure;
+import org.saiku.query.metadata.CalculatedMember;
+import org.saiku.query.metadata.CubeSkeleton;
+import org.saiku.query.metadata.CubeSkeleton.HierarchySkeleton;
+
+/**
+ * Compact binary format for saving and restoring a {@link Query}.
+ * <p>The format covers the axes, hierarchies, level selections, filters,
+ * sorts, calculated members and measures, the details and the query
+ * options. Metadata objects are stored by unique name. Selected members
+ * are not looked up when a query is restored, only when they are used
+ * for the first time, so restoring a large selection is cheap and does
+ * not need the server. Unique names of consecutive members are stored
+ * with the prefix they share with the previous name.
+ * <pre>
+ * byte[] saved = QueryCodec.encode(query);
+ * Query restored = QueryCodec.decode(saved, cube);
+ * </pre>
+ */
+public final class QueryCodec {
+
+	private static final int MAGIC = 0x53515901;
+
+	private static final Axis[] AXES = { Axis.COLUMNS, Axis.ROWS, Axis.FILTER };
+
+	private static final byte GENERIC_FILTER = 0;
+	private static final byte N_FILTER = 1;
+	private static final byte NAME_FILTER = 2;
+	private static final byte NAME_LIKE_FILTER = 3;
+
+	private QueryCodec() {
+	}
+
+	/**
+	 * Encodes the state of a query.
+	 * @param query The query
+	 * @return The encoded query
+	 * @throws IllegalArgumentException if the query uses a filter function
+	 * that cannot be encoded
+	 */
+	public static byte[] encode(Query query) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			writeString(out, query.getName());
+			writeString(out, query.getCube().getUniqueName());
+			out.writeBoolean(query.isLowestLevelsOnly());
+			out.writeBoolean(query.isVisualTotals());
+			writeString(out, query.getVisualTotalsPattern());
+			writeEnum(out, query.getDefaultHierarchizeMode());
+			out.writeInt(query.getRangeCompaction());
+			writeMap(out, query.getParameters());
+
+			out.writeInt(query.getCalculatedMeasures().size());
+			for (CalculatedMeasure cm : query.getCalculatedMeasures()) {
+				writeString(out, cm.getHierarchy().getUniqueName());
+				writeString(out, cm.getName());
+				writeString(out, cm.getDescription());
+				writeString(out, cm.getFormula());
+				writeMap(out, cm.getFormatProperties());
+			}
+
+			List<QueryHierarchy> hierarchies = new ArrayList<QueryHierarchy>();
+			for (HierarchySkeleton hierarchy : query.getSkeleton().getHierarchies()) {
+				// only look at hierarchies the query created so far
+				QueryHierarchy h = query.hierarchyMap.get(hierarchy.getUniqueName());
+				if (h != null && h.getAxis() == null && hasState(h)) {
+					hierarchies.add(h);
+				}
+			}
+			for (Axis axis : AXES) {
+				hierarchies.addAll(query.getAxis(axis).getQueryHierarchies());
+			}
+			out.writeInt(hierarchies.size());
+			for (QueryHierarchy h : hierarchies) {
+				writeHierarchy(out, h);
+			}
+
+			for (Axis axis : AXES) {
+				QueryAxis qa = query.getAxis(axis);
+				out.writeBoolean(qa.isNonEmpty());
+				out.writeInt(qa.getOffset());
+				out.writeInt(qa.getLimit());
+				writeQuerySet(out, qa);
+				out.writeInt(qa.getQueryHierarchies().size());
+				for (QueryHierarchy h : qa.getQueryHierarchies()) {
+					writeString(out, h.getUniqueName());
+				}
+			}
+
+			QueryDetails details = query.getDetails();
+			writeAxis(out, details.getAxis());
+			writeEnum(out, details.getLocation());
+			out.writeInt(details.getMeasures().size());
+			for (Measure m : details.getMeasures()) {
+				boolean calculated = m instanceof CalculatedMeasure;
+				out.writeBoolean(calculated);
+				writeString(out, calculated ? m.getName() : m.getUniqueName());
+			}
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException("Error encoding query " + query.getName(), e);
+		}
+	}
+
+	/**
+	 * Restores a query on the given cube.
+	 * @param encoded The encoded query
+	 * @param cube The cube of the query
+	 * @return The restored query
+	 * @throws OlapException if the encoded query does not belong to the cube
+	 * or refers to metadata the cube does not have
+	 */
+	public static Query decode(byte[] encoded, Cube cube) throws OlapException {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+			if (in.readInt() != MAGIC) {
+				throw new OlapException("Not an encoded query");
+			}
+			String name = readString(in);
+			String cubeName = readString(in);
+			if (!cube.getUniqueName().equals(cubeName)) {
+				throw new OlapException("Query " + name + " was saved for cube " + cubeName + ", not " + cube.getUniqueName());
+			}
+			Query query = new Query(name, cube);
+			query.setLowestLevelsOnly(in.readBoolean());
+			query.setVisualTotals(in.readBoolean());
+			query.setVisualTotalsPattern(readString(in));
+			query.setDefaultHierarchizeMode(readEnum(in, HierarchizeMode.class));
+			query.setRangeCompaction(in.readInt());
+			query.setParameters(readMap(in));
+
+			int calculatedMeasures = in.readInt();
+			for (int i = 0; i < calculatedMeasures; i++) {
+				Hierarchy hierarchy = getHierarchy(cube, readString(in));
+				String measureName = readString(in);
+				String description = readString(in);
+				String formula = readString(in);
+				query.addCalculatedMeasure(
+						new CalculatedMeasure(hierarchy, measureName, description, formula, readMap(in)));
+			}
+
+			int hierarchies = in.readInt();
+			for (int i = 0; i < hierarchies; i++) {
+				readHierarchy(in, query);
+			}
+
+			for (Axis axis : AXES) {
+				QueryAxis qa = query.getAxis(axis);
+				qa.setNonEmpty(in.readBoolean());
+				qa.setOffset(in.readInt());
+				qa.setLimit(in.readInt());
+				readQuerySet(in, qa, cube);
+				int count = in.readInt();
+				for (int j = 0; j < count; j++) {
+					qa.addHierarchy(getQueryHierarchy(query, readString(in)));
+				}
+			}
+
+			QueryDetails details = query.getDetails();
+			details.setAxis(readAxis(in));
+			details.setLocation(readEnum(in, QueryDetails.Location.class));
+			int measures = in.readInt();
+			for (int i = 0; i < measures; i++) {
+				boolean calculated = in.readBoolean();
+				String measureName = readString(in);
+				Measure m = calculated
+						? query.getCalculatedMeasure(measureName)
+						: query.getMeasure(measureName);
+				if (m == null) {
+					throw new OlapException("Cannot find measure " + measureName);
+				}
+				details.add(m);
+			}
+			return query;
+		} catch (IOException e) {
+			throw new OlapException("Error decoding query", e);
+		} catch (SQLException e) {
+			throw new OlapException("Error creating query", e);
+		}
+	}
+
+	private static boolean hasState(QueryHierarchy h) {
+		return !h.getActiveQueryLevels().isEmpty()
+				|| !h.getCalculatedMembers().isEmpty()
+				|| !h.isConsistent()
+				|| h.isVisualTotals()
+				|| h.getMdxSetExpression() != null
+				|| !h.getFilters().isEmpty()
+				|| h.getSortOrder() != null
+				|| h.getHierarchizeMode() != null;
+	}
+
+	private static void writeHierarchy(DataOutputStream out, QueryHierarchy h) throws IOException {
+		writeString(out, h.getUniqueName());
+		out.writeBoolean(h.isConsistent());
+		out.writeBoolean(h.isVisualTotals());
+		writeString(out, h.getVisualTotalsPattern());
+		writeQuerySet(out, h);
+
+		out.writeInt(h.getCalculatedMembers().size());
+		for (CalculatedMember cm : h.getCalculatedMembers()) {
+			writeString(out, cm.getName());
+			writeString(out, cm.getDescription());
+			writeString(out, cm.getUniqueName());
+			writeEnum(out, cm.getMemberType());
+			writeString(out, cm.getFormula());
+			writeMap(out, cm.getFormatProperties());
+			out.writeBoolean(h.getActiveCalculatedMembers().contains(cm));
+		}
+
+		out.writeInt(h.getActiveQueryLevels().size());
+		for (QueryLevel l : h.getActiveQueryLevels()) {
+			writeString(out, l.getName());
+			writeNames(out, l.getInclusionNames());
+			writeNames(out, l.getExclusionNames());
+			writeString(out, l.getRangeStart() == null ? null : l.getRangeStart().getUniqueName());
+			writeString(out, l.getRangeEnd() == null ? null : l.getRangeEnd().getUniqueName());
+			writeString(out, l.getRangeStartExpr());
+			writeString(out, l.getRangeEndExpr());
+			writeString(out, l.getRangeStartSyn());
+			writeString(out, l.getRangeEndSyn());
+			writeString(out, l.getParameterName());
+			writeEnum(out, l.getParameterSelectionType());
+			writeString(out, l.getMdxSetExpression());
+			writeFilters(out, l.getFilters());
+		}
+	}
+
+	private static void readHierarchy(DataInputStream in, Query query) throws IOException, OlapException {
+		Cube cube = query.getCube();
+		QueryHierarchy h = getQueryHierarchy(query, readString(in));
+		h.setConsistent(in.readBoolean());
+		h.setVisualTotals(in.readBoolean());
+		h.setVisualTotalsPattern(readString(in));
+		readQuerySet(in, h, cube);
+
+		int calculatedMembers = in.readInt();
+		for (int i = 0; i < calculatedMembers; i++) {
+			String memberName = readString(in);
+			String description = readString(in);
+			String uniqueName = readString(in);
+			Type type = readEnum(in, Type.class);
+			String formula = readString(in);
+			Map<String, String> properties = readMap(in);
+			boolean active = in.readBoolean();
+			Hierarchy hierarchy = h.getHierarchy();
+			String parentUniqueName = null;
+			if (!uniqueName.equals(IdentifierNode.ofNames(hierarchy.getName(), memberName).toString())) {
+				List<IdentifierSegment> segments = IdentifierNode.parseIdentifier(uniqueName).getSegmentList();
+				parentUniqueName = new IdentifierNode(segments.subList(0, segments.size() - 1)).toString();
+			}
+			CalculatedMember cm = new CalculatedMember(
+					hierarchy.getDimension(), hierarchy, memberName, description,
+					type, formula, properties, parentUniqueName);
+			if (active) {
+				h.includeCalculatedMember(cm);
+			} else {
+				h.addCalculatedMember(cm);
+			}
+		}
+
+		int levels = in.readInt();
+		for (int i = 0; i < levels; i++) {
+			String levelName = readString(in);
+			QueryLevel l = h.includeLevel(levelName);
+			if (l == null) {
+				throw new OlapException("Cannot find level " + levelName + " in hierarchy " + h.getUniqueName());
+			}
+			List<String> inclusions = readNames(in);
+			if (!inclusions.isEmpty()) {
+				l.includeUniqueNames(inclusions);
+			}
+			List<String> exclusions = readNames(in);
+			if (!exclusions.isEmpty()) {
+				l.excludeUniqueNames(exclusions);
+			}
+			String rangeStart = readString(in);
+			String rangeEnd = readString(in);
+			if (rangeStart != null || rangeEnd != null) {
+				l.setRange(lookupMember(cube, rangeStart), lookupMember(cube, rangeEnd));
+			}
+			String rangeStartExpr = readString(in);
+			String rangeEndExpr = readString(in);
+			if (rangeStartExpr != null || rangeEndExpr != null) {
+				l.setRangeExpressions(rangeStartExpr, rangeEndExpr);
+			}
+			l.setRangeSynonyms(readString(in), readString(in));
+			l.setParameterName(readString(in));
+			l.setParameterSelectionType(readEnum(in, SelectionType.class));
+			String mdxSetExpression = readString(in);
+			if (mdxSetExpression != null) {
+				l.setMdxSetExpression(mdxSetExpression);
+			}
+			for (IFilterFunction filter : readFilters(in, cube)) {
+				l.addFilter(filter);
+			}
+		}
+	}
+
+	private static void writeQuerySet(DataOutputStream out, AbstractSortableQuerySet querySet) throws IOException {
+		writeString(out, querySet.getMdxSetExpression());
+		writeFilters(out, querySet.getFilters());
+		writeEnum(out, querySet.getSortOrder());
+		writeString(out, querySet.getSortEvaluationLiteral());
+		writeEnum(out, querySet.getHierarchizeMode());
+	}
+
+	private static void readQuerySet(DataInputStream in, AbstractSortableQuerySet querySet, Cube cube) throws IOException, OlapException {
+		String mdxSetExpression = readString(in);
+		if (mdxSetExpression != null) {
+			querySet.setMdxSetExpression(mdxSetExpression);
+		}
+		for (IFilterFunction filter : readFilters(in, cube)) {
+			querySet.addFilter(filter);
+		}
+		SortOrder sortOrder = readEnum(in, SortOrder.class);
+		String sortEvaluationLiteral = readString(in);
+		if (sortOrder != null) {
+			querySet.sort(sortOrder, sortEvaluationLiteral);
+		}
+		HierarchizeMode hierarchizeMode = readEnum(in, HierarchizeMode.class);
+		if (hierarchizeMode != null) {
+			querySet.setHierarchizeMode(hierarchizeMode);
+		}
+	}
+
+	private static void writeFilters(DataOutputStream out, List<IFilterFunction> filters) throws IOException {
+		out.writeInt(filters.size());
+		for (IFilterFunction filter : filters) {
+			if (filter instanceof GenericFilter) {
+				out.writeByte(GENERIC_FILTER);
+				writeString(out, ((GenericFilter) filter).getFilterExpression());
+			} else if (filter instanceof NFilter) {
+				NFilter nFilter = (NFilter) filter;
+				out.writeByte(N_FILTER);
+				writeEnum(out, nFilter.getFunctionType());
+				out.writeInt(nFilter.getN());
+				writeString(out, nFilter.getFilterExpression());
+			} else if (filter instanceof NameFilter) {
+				out.writeByte(NAME_FILTER);
+				writeString(out, ((NameFilter) filter).getHierarchy().getUniqueName());
+				writeNames(out, ((NameFilter) filter).getFilterExpression());
+			} else if (filter instanceof NameLikeFilter) {
+				out.writeByte(NAME_LIKE_FILTER);
+				writeString(out, ((NameLikeFilter) filter).getHierarchy().getUniqueName());
+				writeNames(out, ((NameLikeFilter) filter).getFilterExpression());
+			} else {
+				throw new IllegalArgumentException("Cannot encode filter " + filter.getClass().getName());
+			}
+		}
+	}
+
+	private static List<IFilterFunction> readFilters(DataInputStream in, Cube cube) throws IOException, OlapException {
+		int count = in.readInt();
+		List<IFilterFunction> filters = new ArrayList<IFilterFunction>(count);
+		for (int i = 0; i < count; i++) {
+			byte type = in.readByte();
+			switch (type) {
+				case GENERIC_FILTER:
+					filters.add(new GenericFilter(readString(in)));
+					break;
+				case N_FILTER:
+					MdxFunctionType functionType = readEnum(in, MdxFunctionType.class);
+					int n = in.readInt();
+					filters.add(new NFilter(functionType, n, readString(in)));
+					break;
+				case NAME_FILTER:
+					filters.add(new NameFilter(getHierarchy(cube, readString(in)), readNames(in)));
+					break;
+				case NAME_LIKE_FILTER:
+					filters.add(new NameLikeFilter(getHierarchy(cube, readString(in)), readNames(in)));
+					break;
+				default:
+					throw new OlapException("Unknown filter type " + type);
+			}
+		}
+		return filters;
+	}
+
+	private static QueryHierarchy getQueryHierarchy(Query query, String uniqueName) throws OlapException {
+		QueryHierarchy h = query.getHierarchy(uniqueName);
+		if (h == null) {
+			throw new OlapException("Cannot find hierarchy " + uniqueName);
+		}
+		return h;
+	}
+
+	private static Hierarchy getHierarchy(Cube cube, String uniqueName) throws OlapException {
+		HierarchySkeleton h = CubeSkeleton.of(cube).getHierarchy(uniqueName);
+		if (h != null) {
+			return h.getHierarchy();
+		}
+		throw new OlapException("Cannot find hierarchy " + uniqueName);
+	}
+
+	private static Member lookupMember(Cube cube, String uniqueName) throws OlapException {
+		if (uniqueName == null) {
+			return null;
+		}
+		Member m = cube.lookupMember(IdentifierParser.parseIdentifier(uniqueName));
+		if (m == null) {
+			throw new OlapException("Cannot find member " + uniqueName);
+		}
+		return m;
+	}
+
+	private static void writeAxis(DataOutputStream out, Axis axis) throws IOException {
+		out.writeBoolean(axis != null);
+		if (axis != null) {
+			out.writeInt(axis.axisOrdinal());
+		}
+	}
+
+	private static Axis readAxis(DataInputStream in) throws IOException {
+		return in.readBoolean() ? Axis.Factory.forOrdinal(in.readInt()) : null;
+	}
+
+	private static void writeEnum(DataOutputStream out, Enum<?> value) throws IOException {
+		writeString(out, value == null ? null : value.name());
+	}
+
+	private static <E extends Enum<E>> E readEnum(DataInputStream in, Class<E> type) throws IOException {
+		String name = readString(in);
+		return name == null ? null : Enum.valueOf(type, name);
+	}
+
+	private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+		out.writeInt(map == null ? 0 : map.size());
+		if (map != null) {
+			for (Map.Entry<String, String> entry : map.entrySet()) {
+				writeString(out, entry.getKey());
+				writeString(out, entry.getValue());
+			}
+		}
+	}
+
+	private static Map<String, String> readMap(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		Map<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < size; i++) {
+			map.put(readString(in), readString(in));
+		}
+		return map;
+	}
+
+	/*
+	 * Writes each name as the length of the prefix it shares with the
+	 * previous name and the rest.
+	 */
+	private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+		out.writeInt(names.size());
+		String previous = "";
+		for (String name : names) {
+			int max = Math.min(previous.length(), name.length());
+			int prefix = 0;
+			while (prefix < max && previous.charAt(prefix) == name.charAt(prefix)) {
+				prefix++;
+			}
+			out.writeShort(Math.min(prefix, 0xffff));
+			out.writeUTF(name.substring(Math.min(prefix, 0xffff)));
+			previous = name;
+		}
+	}
+
+	private static List<String> readNames(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		List<String> names = new ArrayList<String>(size);
+		String previous = "";
+		for (int i = 0; i < size; i++) {
+			int prefix = in.readUnsignedShort();
+			String name = previous.substring(0, prefix) + in.readUTF();
+			names.add(name);
+			previous = name;
+		}
+		return names;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -17,10 +17,12 @@ package org.saiku.query;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.olap4j.Axis;
 import org.olap4j.impl.Named;
 import org.olap4j.metadata.Measure;
+import org.olap4j.metadata.Member;
 
 public class QueryDetails implements Named {
 
@@ -31,6 +33,12 @@ public class QueryDetails implements Named {
 	private Axis axis;
 
 	private Query query;
+
+	private final Runnable touchCallback = new Runnable() {
+		public void run() {
+			query.touch();
+		}
+	};
 	
 	public enum Location {
 		TOP,
@@ -41,10 +49,20 @@ public class QueryDetails implements Named {
 		this.axis = axis;
 		this.query = query;
 	}
+
+	QueryDetails(Query query, QueryDetails other, Map<Member, Member> calculatedCopies) {
+		this.query = query;
+		this.axis = other.axis;
+		this.location = other.location;
+		for (Measure measure : other.measures) {
+			this.measures.add(Query.copyOf(measure, calculatedCopies));
+		}
+	}
 	
 	public void add(Measure measure) {
 		if (!measures.contains(measure)) {
 			measures.add(measure);
+			query.touch();
 		}
 	}
 	
@@ -58,15 +76,21 @@ public class QueryDetails implements Named {
 				measures.remove(oldindex);
 			}
 		}
+		query.touch();
 	}
 	
 	public void remove(Measure measure) {
-		measures.remove(measure);
+		if (measures.remove(measure)) {
+			query.touch();
+		}
 	}
 	
 	
+	/**
+	 * Returns the measures. Changes to the list write through to the query.
+	 */
 	public List<Measure> getMeasures() {
-		return measures;
+		return new TouchingList<Measure>(measures, touchCallback);
 	}
 	
 	public Location getLocation() {
@@ -75,6 +99,7 @@ public class QueryDetails implements Named {
 
 	public void setLocation(Location location) {
 		this.location = location;
+		query.touch();
 	}
 	
 	public Axis getAxis() {
@@ -0,0 +1,327 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.olap4j.Axis;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Measure;
+import org.saiku.query.metadata.Calculated;
+
+/**
+ * Structural difference between two states of a {@link Query}, so that
+ * caches and execution layers can decide whether a result can be re-sorted,
+ * merged or paged instead of executing the new query from scratch.
+ * <p>Take a {@link Snapshot} before changing a query and compare it with a
+ * snapshot taken afterwards. Member selections are compared by the unique
+ * names of the members. A level caches its name lists until its selection
+ * changes, so taking a snapshot does not copy them and an unchanged
+ * selection compares by reference, which keeps both cheap on large
+ * selections.
+ * <pre>
+ * QueryDiff.Snapshot before = QueryDiff.snapshot(query);
+ * query.getAxis(Axis.ROWS).sort(SortOrder.DESC, "[Measures].[Unit Sales]");
+ * QueryDiff.between(before, QueryDiff.snapshot(query)).isSortOnly(); // true
+ * </pre>
+ * Filter functions have no notion of equality and are compared by identity.
+ */
+public final class QueryDiff {
+
+	/**
+	 * Kinds of changes between two query states.
+	 */
+	public enum Change {
+		/** The queries are on different cubes. */
+		CUBE,
+		/** Parameter values changed. */
+		PARAMETERS,
+		/** Query wide options, like visual totals, changed. */
+		OPTIONS,
+		/** Measures were added, removed, reordered or redefined. */
+		MEASURES,
+		/** The measures moved to another axis or location. */
+		MEASURE_LAYOUT,
+		/** The set of the columns axis changed. */
+		COLUMNS,
+		/** The set of the rows axis changed. */
+		ROWS,
+		/** The filter axis changed. */
+		FILTER_AXIS,
+		/**
+		 * The order of the rows or columns changed. On an axis with an
+		 * offset or limit the page holds other positions then, so the
+		 * change is reported as a change of the axis set instead.
+		 */
+		SORT,
+		/** The offset or limit of the rows or columns changed. */
+		PAGE
+	}
+
+	private final Set<Change> changes;
+
+	private QueryDiff(Set<Change> changes) {
+		this.changes = Collections.unmodifiableSet(changes);
+	}
+
+	/**
+	 * Captures the current state of a query.
+	 * @param query The query
+	 * @return An immutable snapshot
+	 */
+	public static Snapshot snapshot(Query query) {
+		return new Snapshot(query);
+	}
+
+	public static QueryDiff between(Query before, Query after) {
+		return between(snapshot(before), snapshot(after));
+	}
+
+	public static QueryDiff between(Snapshot before, Snapshot after) {
+		EnumSet<Change> changes = EnumSet.noneOf(Change.class);
+		if (!before.cube.equals(after.cube)) {
+			changes.add(Change.CUBE);
+		}
+		if (!before.parameters.equals(after.parameters)) {
+			changes.add(Change.PARAMETERS);
+		}
+		if (!before.options.equals(after.options)) {
+			changes.add(Change.OPTIONS);
+		}
+		if (!before.measures.equals(after.measures)) {
+			changes.add(Change.MEASURES);
+		}
+		if (!before.measureLayout.equals(after.measureLayout)) {
+			changes.add(Change.MEASURE_LAYOUT);
+		}
+		compareAxis(before, after, Axis.COLUMNS, Change.COLUMNS, changes);
+		compareAxis(before, after, Axis.ROWS, Change.ROWS, changes);
+		compareAxis(before, after, Axis.FILTER, Change.FILTER_AXIS, changes);
+		return new QueryDiff(changes);
+	}
+
+	private static void compareAxis(Snapshot before, Snapshot after, Axis axis, Change setChange, Set<Change> changes) {
+		AxisState a = before.axes.get(axis);
+		AxisState b = after.axes.get(axis);
+		if (a == null || b == null) {
+			if (a != b) {
+				changes.add(setChange);
+			}
+			return;
+		}
+		if (!a.set.equals(b.set)) {
+			changes.add(setChange);
+		}
+		if (!a.sort.equals(b.sort)) {
+			boolean paginated = a.paginated || b.paginated;
+			changes.add(Axis.FILTER.equals(axis) || paginated ? setChange : Change.SORT);
+		}
+		if (!a.page.equals(b.page)) {
+			changes.add(Axis.FILTER.equals(axis) ? setChange : Change.PAGE);
+		}
+	}
+
+	public Set<Change> getChanges() {
+		return changes;
+	}
+
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+
+	public boolean contains(Change change) {
+		return changes.contains(change);
+	}
+
+	/**
+	 * Returns whether there are changes and all of them are of the given
+	 * kinds.
+	 */
+	public boolean isOnly(Change... kinds) {
+		if (changes.isEmpty()) {
+			return false;
+		}
+		EnumSet<Change> remaining = EnumSet.copyOf(changes);
+		for (Change kind : kinds) {
+			remaining.remove(kind);
+		}
+		return remaining.isEmpty();
+	}
+
+	public boolean isMeasuresOnly() {
+		return isOnly(Change.MEASURES);
+	}
+
+	public boolean isSortOnly() {
+		return isOnly(Change.SORT);
+	}
+
+	public boolean isFilterAxisOnly() {
+		return isOnly(Change.FILTER_AXIS);
+	}
+
+	public boolean isPageOnly() {
+		return isOnly(Change.PAGE);
+	}
+
+	/**
+	 * Returns whether the set of rows changed, i.e. positions of the rows
+	 * axis may have been added or removed.
+	 */
+	public boolean isRowSetChange() {
+		return changes.contains(Change.ROWS);
+	}
+
+	@Override
+	public String toString() {
+		return "QueryDiff" + changes;
+	}
+
+	/**
+	 * Immutable state of a query, as far as it affects the result.
+	 */
+	public static final class Snapshot {
+
+		private final Cube cube;
+		private final Map<String, String> parameters;
+		private final List<Object> options = new ArrayList<Object>();
+		private final List<Object> measures = new ArrayList<Object>();
+		private final List<Object> measureLayout = new ArrayList<Object>();
+		private final Map<Axis, AxisState> axes = new HashMap<Axis, AxisState>();
+
+		private Snapshot(Query query) {
+			cube = query.getCube();
+			parameters = new HashMap<String, String>(query.getParameters());
+			options.add(query.isLowestLevelsOnly());
+			options.add(query.isVisualTotals());
+			options.add(query.getVisualTotalsPattern());
+			options.add(query.getDefaultHierarchizeMode());
+			QueryDetails details = query.getDetails();
+			for (Measure m : details.getMeasures()) {
+				measures.add(m.getUniqueName());
+				if (m instanceof Calculated) {
+					measures.add(((Calculated) m).getFormula());
+					measures.add(new HashMap<String, String>(((Calculated) m).getFormatProperties()));
+				}
+			}
+			measureLayout.add(details.getAxis());
+			measureLayout.add(details.getLocation());
+			for (Map.Entry<Axis, QueryAxis> entry : query.getAxes().entrySet()) {
+				if (entry.getKey() == null) {
+					continue;
+				}
+				axes.put(entry.getKey(), new AxisState(entry.getValue()));
+			}
+		}
+	}
+
+	private static final class AxisState {
+
+		private final List<Object> set = new ArrayList<Object>();
+		private final List<Object> sort = new ArrayList<Object>();
+		private final List<Object> page = new ArrayList<Object>();
+		private final boolean paginated;
+
+		private AxisState(QueryAxis axis) {
+			paginated = axis.isPaginated();
+			set.add(axis.isNonEmpty());
+			addQuerySet(set, axis);
+			addSort(sort, axis);
+			page.add(axis.getOffset());
+			page.add(axis.getLimit());
+			for (QueryHierarchy h : axis.getQueryHierarchies()) {
+				set.add(h.getUniqueName());
+				set.add(h.isConsistent());
+				set.add(h.isVisualTotals());
+				set.add(h.getVisualTotalsPattern());
+				addQuerySet(set, h);
+				addSort(sort, h);
+				for (CalculatedMemberState cm : CalculatedMemberState.of(h)) {
+					set.add(cm);
+				}
+				for (QueryLevel l : h.getActiveQueryLevels()) {
+					set.add(l.getUniqueName());
+					// cached until the selection changes, see MemberSelection
+					set.add(l.getInclusionNames());
+					set.add(l.getExclusionNames());
+					set.add(l.getRangeStart());
+					set.add(l.getRangeEnd());
+					set.add(l.getRangeStartExpr());
+					set.add(l.getRangeEndExpr());
+					set.add(l.getRangeStartSyn());
+					set.add(l.getRangeEndSyn());
+					set.add(l.getParameterName());
+					set.add(l.getParameterSelectionType());
+					addQuerySet(set, l);
+				}
+			}
+		}
+
+		private static void addQuerySet(List<Object> state, AbstractQuerySet querySet) {
+			state.add(querySet.getMdxSetExpression());
+			state.add(new ArrayList<Object>(querySet.getFilters()));
+		}
+
+		private static void addSort(List<Object> state, AbstractSortableQuerySet querySet) {
+			state.add(querySet.getSortOrder());
+			state.add(querySet.getSortEvaluationLiteral());
+			state.add(querySet.getHierarchizeMode());
+		}
+	}
+
+	private static final class CalculatedMemberState {
+
+		private final String uniqueName;
+		private final String formula;
+		private final Map<String, String> properties;
+
+		private CalculatedMemberState(Calculated calculated) {
+			this.uniqueName = calculated.getUniqueName();
+			this.formula = calculated.getFormula();
+			this.properties = new HashMap<String, String>(calculated.getFormatProperties());
+		}
+
+		private static List<CalculatedMemberState> of(QueryHierarchy h) {
+			List<CalculatedMemberState> states = new ArrayList<CalculatedMemberState>();
+			for (Calculated cm : h.getActiveCalculatedMembers()) {
+				states.add(new CalculatedMemberState(cm));
+			}
+			return states;
+		}
+
+		@Override
+		public int hashCode() {
+			return uniqueName.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CalculatedMemberState)) {
+				return false;
+			}
+			CalculatedMemberState other = (CalculatedMemberState) obj;
+			return uniqueName.equals(other.uniqueName)
+					&& (formula == null ? other.formula == null : formula.equals(other.formula))
+					&& properties.equals(other.properties);
+		}
+	}
+}
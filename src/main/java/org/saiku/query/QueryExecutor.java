@@ -0,0 +1,50 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query;
+
+import org.olap4j.OlapException;
+import org.olap4j.OlapStatement;
+
+/**
+ * Provides the statements a {@link Query} is executed with.
+ * <p>By default a query executes on the connection of its cube. An executor
+ * can lease a connection for each execution instead, so one query model
+ * can be executed on many threads in parallel.
+ *
+ * @see Query#setExecutor(QueryExecutor)
+ * @see PooledQueryExecutor
+ */
+public interface QueryExecutor {
+
+	/**
+	 * Creates a statement for executing the given query. The connection of
+	 * the statement is already set to the query's catalog and role and stays
+	 * leased until {@link #releaseStatement(OlapStatement)} is called.
+	 * @param query The query to execute
+	 * @return a new statement
+	 * @throws OlapException if no connection can be obtained
+	 */
+	public OlapStatement createStatement(Query query) throws OlapException;
+
+	/**
+	 * Ends the lease of a statement created by this executor. The query
+	 * calls this once the cell set returned by the statement is closed, or
+	 * right away if the execution failed. The statement is closed already.
+	 * @param statement The statement to release
+	 */
+	public void releaseStatement(OlapStatement statement);
+
+}
@@ -15,27 +15,50 @@
  */
 package org.saiku.query;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.olap4j.Axis;
+import org.olap4j.CellSet;
 import org.olap4j.OlapException;
 import org.olap4j.impl.IdentifierParser;
 import org.olap4j.impl.Named;
 import org.olap4j.impl.NamedListImpl;
+import org.olap4j.mdx.AxisNode;
+import org.olap4j.mdx.CallNode;
+import org.olap4j.mdx.HierarchyNode;
 import org.olap4j.mdx.IdentifierSegment;
+import org.olap4j.mdx.MemberNode;
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.mdx.Syntax;
 import org.olap4j.metadata.Hierarchy;
 import org.olap4j.metadata.Level;
 import org.olap4j.metadata.Member;
 import org.olap4j.metadata.NamedList;
+import org.saiku.query.ISortableQuerySet.HierarchizeMode;
 import org.saiku.query.metadata.CalculatedMember;
+import org.saiku.query.metadata.CubeSkeleton.HierarchySkeleton;
+import org.saiku.query.metadata.CubeSkeleton.LevelSkeleton;
+import org.saiku.query.result.CellSets;
+import org.saiku.query.result.MaterializedResult;
 
 public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
 
 	protected QueryAxis axis;
     private final Query query;
 	private final Hierarchy hierarchy;
+	private final HierarchySkeleton skeleton;
 	
+	/**
+	 * Query levels created so far. A level is only created once it is
+	 * used, see {@link #getQueryLevel(String)}.
+	 */
 	private NamedList<QueryLevel> queryLevels = new NamedListImpl<QueryLevel>();
 	
 	private NamedList<QueryLevel> activeLevels = new NamedListImpl<QueryLevel>();
@@ -53,10 +76,35 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
         super();
         this.query = query;
         this.hierarchy = hierarchy;
-        for (Level level : hierarchy.getLevels()) {
-            QueryLevel queryLevel = new QueryLevel(this, level);
-            queryLevels.add(queryLevel);
+        this.skeleton = query.getSkeleton().getHierarchy(hierarchy.getUniqueName());
+    }
+
+    /**
+     * Creates a copy of a hierarchy for a copied query. The axis is set
+     * by the query. Calculated members are copied.
+     */
+    QueryHierarchy(Query query, QueryHierarchy other, Map<Member, Member> calculatedCopies) {
+        super();
+        this.query = query;
+        this.hierarchy = other.hierarchy;
+        this.skeleton = other.skeleton;
+        for (QueryLevel ql : other.queryLevels) {
+            QueryLevel copy = new QueryLevel(this, ql);
+            queryLevels.add(copy);
+            if (other.activeLevels.contains(ql)) {
+                activeLevels.add(copy);
+            }
+        }
+        for (CalculatedMember cm : other.calculatedMembers) {
+            calculatedMembers.add(Query.copyOf(cm, calculatedCopies));
+        }
+        for (CalculatedMember cm : other.activeCalculatedMembers) {
+            activeCalculatedMembers.add(Query.copyOf(cm, calculatedCopies));
         }
+        this.consistent = other.consistent;
+        this.visualTotals = other.visualTotals;
+        this.visualTotalsPattern = other.visualTotalsPattern;
+        copyFrom(other);
     }
 
     public Query getQuery() {
@@ -73,6 +121,7 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
      */
     protected void setAxis(QueryAxis axis) {
         this.axis = axis;
+        touch();
     }
 
     public String getName() {
@@ -93,6 +142,7 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
     
     public void setConsistent(boolean consistent) {
     	this.consistent = consistent;
+    	touch();
     }
     
     /**
@@ -111,11 +161,13 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
 		if(!visualTotals) {
 			this.visualTotalsPattern = null;
 		}
+		touch();
 	}
 	
 	public void setVisualTotalsPattern(String pattern) {
 		this.visualTotalsPattern = pattern;
 		this.visualTotals = true;
+		touch();
 	}
 	
 	public String getVisualTotalsPattern() {
@@ -140,20 +192,23 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
     
     public void addCalculatedMember(CalculatedMember cm) {
     	calculatedMembers.add(cm);
+    	touch();
     }
     
+    /**
+     * Changes to the returned lists write through to the query.
+     */
     public NamedList<CalculatedMember> getCalculatedMembers() {
-    	return calculatedMembers;
+    	return new TouchingList.Named<CalculatedMember>(calculatedMembers, touchCallback);
     }
     
     public List<CalculatedMember> getActiveCalculatedMembers() {
-    	return activeCalculatedMembers;
+    	return touching(activeCalculatedMembers);
     }
     
     
     public List<QueryLevel> getActiveQueryLevels() {
-    	Collections.sort(activeLevels, new SaikuQueryLevelComparator());
-    	return activeLevels;
+    	return touching(activeLevels);
     }
     
 
@@ -163,9 +218,9 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
     }
     
     public QueryLevel includeLevel(String levelName) {
-    	QueryLevel ql = queryLevels.get(levelName);
+    	QueryLevel ql = getQueryLevel(levelName);
     	if (ql != null && !activeLevels.contains(ql)) {
-    		activeLevels.add(ql);
+    		addActiveLevel(ql);
     	}
     	return ql;
     }
@@ -176,31 +231,47 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
     				"You cannot include level " + l.getUniqueName() 
     				+ " on hierarchy " + hierarchy.getUniqueName());
     	}
-    	QueryLevel ql = queryLevels.get(l.getName());
+    	QueryLevel ql = getQueryLevel(l.getName());
     	if (ql != null && !activeLevels.contains(l)) {
-    		activeLevels.add(ql);
+    		addActiveLevel(ql);
     	}
     	return ql;
     }
     
     public void excludeLevel(String levelName) {
-    	QueryLevel ql = queryLevels.get(levelName);
+    	QueryLevel ql = getQueryLevel(levelName);
     	if (ql != null && activeLevels.contains(ql)) {
     		activeLevels.remove(ql);
+    		touch();
     	}
     }
 
     public void excludeLevel(Level l) throws OlapException {
-    	QueryLevel ql = queryLevels.get(l.getName());
+    	QueryLevel ql = getQueryLevel(l.getName());
     	if (ql != null && !activeLevels.contains(l)) {
     		activeLevels.remove(ql);
+    		touch();
     	}
     }
 
     
+    /**
+     * Includes all given members. The members are grouped by level, so
+     * selecting a large number of members is linear in their count.
+     * @param members The members to include
+     * @throws OlapException if a member does not belong to this hierarchy
+     */
     public void includeMembers(List<Member> members) throws OlapException {
-    	for (Member m : members) {
-    		includeMember(m);
+    	Map<Level, List<Member>> byLevel = groupByLevel(members);
+    	for (Map.Entry<Level, List<Member>> entry : byLevel.entrySet()) {
+    		if (!entry.getKey().getHierarchy().equals(hierarchy)) {
+    			throw new OlapException(
+    					"You cannot include member " + entry.getValue().get(0).getUniqueName() 
+    					+ " on hierarchy " + hierarchy.getUniqueName());
+    		}
+    	}
+    	for (Map.Entry<Level, List<Member>> entry : byLevel.entrySet()) {
+    		activateLevel(entry.getKey()).includeAll(entry.getValue());
     	}
     }
 
@@ -230,11 +301,13 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
     		calculatedMembers.add(m);
     	}
     	activeCalculatedMembers.add(m);
+    	touch();
     }
     
     public void excludeCalculatedMember(CalculatedMember m) throws OlapException {
     	calculatedMembers.remove(m);
     	activeCalculatedMembers.remove(m);
+    	touch();
     }
     
     public void includeMember(Member m) throws OlapException {
@@ -244,10 +317,7 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
     				"You cannot include member " + m.getUniqueName() 
     				+ " on hierarchy " + hierarchy.getUniqueName());
     	}
-    	QueryLevel ql = queryLevels.get(l.getName());
-    	if (!activeLevels.contains(ql)) {
-    		activeLevels.add(ql);
-    	}
+    	QueryLevel ql = activateLevel(l);
     	ql.include(m);
     }
     
@@ -284,10 +354,7 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
     				"Hierarchy not matching. You cannot include a range selection for " + start.getUniqueName() 
     				+ " and " + end.getUniqueName() + " on hierarchy " + hierarchy.getUniqueName());
     	}
-    	QueryLevel ql = queryLevels.get(l.getName());
-    	if (!activeLevels.contains(ql)) {
-    		activeLevels.add(ql);
-    	}
+    	QueryLevel ql = activateLevel(l);
     	ql.setRange(start, end);
     }
     
@@ -305,10 +372,70 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
         this.excludeMember(member);
     }
     
+    /**
+     * Excludes all given members. The members are grouped by level, so
+     * excluding a large number of members is linear in their count.
+     * @param members The members to exclude
+     */
     public void excludeMembers(List<Member> members) {
+    	Map<Level, List<Member>> byLevel = groupByLevel(members);
+    	for (Map.Entry<Level, List<Member>> entry : byLevel.entrySet()) {
+    		if (!entry.getKey().getHierarchy().equals(hierarchy)) {
+    			throw new IllegalArgumentException("You cannot exclude member " + entry.getValue().get(0).getUniqueName() + " on hierarchy " + hierarchy.getUniqueName());
+    		}
+    	}
+    	for (Map.Entry<Level, List<Member>> entry : byLevel.entrySet()) {
+    		activateLevel(entry.getKey()).excludeAll(entry.getValue());
+    	}
+    }
+
+    private Map<Level, List<Member>> groupByLevel(Collection<Member> members) {
+    	Map<Level, List<Member>> byLevel = new LinkedHashMap<Level, List<Member>>();
     	for (Member m : members) {
-    		excludeMember(m);
+    		List<Member> levelMembers = byLevel.get(m.getLevel());
+    		if (levelMembers == null) {
+    			levelMembers = new ArrayList<Member>();
+    			byLevel.put(m.getLevel(), levelMembers);
+    		}
+    		levelMembers.add(m);
+    	}
+    	return byLevel;
+    }
+
+    private QueryLevel getQueryLevel(String levelName) {
+    	QueryLevel ql = queryLevels.get(levelName);
+    	if (ql == null) {
+    		Level level = null;
+    		if (skeleton != null) {
+    			LevelSkeleton l = skeleton.getLevel(levelName);
+    			level = l == null ? null : l.getLevel();
+    		} else {
+    			level = hierarchy.getLevels().get(levelName);
+    		}
+    		if (level != null) {
+    			ql = new QueryLevel(this, level);
+    			queryLevels.add(ql);
+    		}
     	}
+    	return ql;
+    }
+
+    /*
+     * Active levels are kept sorted by depth on insertion, so reading them
+     * never modifies the list and queries can be converted concurrently.
+     */
+    private void addActiveLevel(QueryLevel ql) {
+    	activeLevels.add(ql);
+    	Collections.sort(activeLevels, new SaikuQueryLevelComparator());
+    	touch();
+    }
+
+    private QueryLevel activateLevel(Level l) {
+    	QueryLevel ql = getQueryLevel(l.getName());
+    	if (!activeLevels.contains(ql)) {
+    		addActiveLevel(ql);
+    	}
+    	return ql;
     }
 
     public void excludeMember(Member m) {
@@ -316,13 +443,118 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
     	if (!l.getHierarchy().equals(hierarchy)) {
     		throw new IllegalArgumentException("You cannot exclude member " + m.getUniqueName() + " on hierarchy " + hierarchy.getUniqueName());
     	}
-    	QueryLevel ql = queryLevels.get(l.getName());
-    	if (!activeLevels.contains(ql)) {
-    		activeLevels.add(ql);
-    	}
+    	QueryLevel ql = activateLevel(l);
     	ql.exclude(m);
     }
     
+    /**
+     * Expands a member: includes its children in the selection of this
+     * hierarchy and, instead of executing the whole query again, executes
+     * a query for only the positions of the children, crossed with the
+     * other hierarchies of the axis, and merges them into the result of
+     * the query before the expansion.
+     * <p>If the merged result could differ from executing the query again,
+     * i.e. if {@link #canMergeExpansion()} is false, the whole query is
+     * executed instead.
+     * @param member The member to expand
+     * @param previous The result of this query before the expansion
+     * @return The result of this query after the expansion
+     * @throws OlapException if the drill down query cannot be executed
+     * @see MaterializedResult#merge(MaterializedResult, int, int, String)
+     */
+    public MaterializedResult expand(Member member, MaterializedResult previous) throws OlapException {
+    	if (axis == null || Axis.FILTER.equals(axis.getLocation())) {
+    		throw new IllegalStateException("Hierarchy " + getName() + " is not on the rows or columns axis");
+    	}
+    	includeChildren(member);
+    	if (!canMergeExpansion()) {
+    		return materialize(query.execute());
+    	}
+    	MaterializedResult delta = materialize(query.execute(getExpandSelect(member)));
+    	int tupleIndex = axis.getQueryHierarchies().indexOf(this);
+    	QueryDetails details = query.getDetails();
+    	if (axis.getLocation().equals(details.getAxis())
+    			&& details.getMeasures().size() > 0
+    			&& QueryDetails.Location.TOP.equals(details.getLocation()))
+    	{
+    		tupleIndex++;
+    	}
+    	return previous.merge(delta, axis.getLocation().axisOrdinal(), tupleIndex, member.getUniqueName());
+    }
+
+    /**
+     * Returns whether the drill down positions of this hierarchy can be
+     * merged into a previous result. Merging places the children right
+     * after their parent, which is only where the query places them if the
+     * axis and this hierarchy keep the hierarchical order, and if adding
+     * positions does not change which other positions are returned: no
+     * break hierarchy sort, post order, filter (e.g. TopCount), set
+     * expression, lowest levels only or paging.
+     * @return true if {@link #expand(Member, MaterializedResult)} can merge
+     */
+    public boolean canMergeExpansion() {
+    	return axis != null
+    			&& isHierarchical(axis)
+    			&& isHierarchical(this)
+    			&& !axis.isPaginated()
+    			&& !axis.isLowestLevelsOnly();
+    }
+
+    private static boolean isHierarchical(ISortableQuerySet querySet) {
+    	SortOrder order = querySet.getSortOrder();
+    	return !querySet.isMdxSetExpression()
+    			&& querySet.getFilters().isEmpty()
+    			&& (order == null || SortOrder.ASC.equals(order) || SortOrder.DESC.equals(order))
+    			&& !HierarchizeMode.POST.equals(querySet.getHierarchizeMode());
+    }
+
+    private static MaterializedResult materialize(CellSet cellSet) throws OlapException {
+    	try {
+    		return MaterializedResult.of(cellSet);
+    	} finally {
+    		CellSets.closeQuietly(cellSet);
+    	}
+    }
+
+    /**
+     * Includes the children of a member, unless all members of their level
+     * are selected already.
+     * @param member The parent member
+     * @throws OlapException if the children cannot be read
+     */
+    public void includeChildren(Member member) throws OlapException {
+    	List<Member> children = new ArrayList<Member>(member.getChildMembers());
+    	if (children.isEmpty()) {
+    		return;
+    	}
+    	QueryLevel ql = getActiveLevel(children.get(0).getLevel().getName());
+    	if (ql == null || !ql.getIncludedMembers().isEmpty()) {
+    		includeMembers(children);
+    	}
+    }
+
+    /**
+     * Returns the select of the query restricted to the positions of this
+     * hierarchy's axis whose member of this hierarchy is a child of the
+     * given member.
+     * @param member The expanded member
+     * @return The drill down select
+     * @throws OlapException if the select cannot be created
+     */
+    public SelectNode getExpandSelect(Member member) throws OlapException {
+    	SelectNode select = query.getSelect();
+    	for (AxisNode axisNode : select.getAxisList()) {
+    		if (axis != null && axisNode.getAxis().equals(axis.getLocation())) {
+    			ParseTreeNode parent = new CallNode(null, "Parent", Syntax.Property,
+    					new CallNode(null, "CurrentMember", Syntax.Property, new HierarchyNode(null, hierarchy)));
+    			axisNode.setExpression(new CallNode(null, "Filter", Syntax.Function,
+    					axisNode.getExpression(),
+    					new CallNode(null, "IS", Syntax.Infix, parent, new MemberNode(null, member))));
+    		}
+    	}
+    	return select;
+    }
+
     public void clearSelection() {
     	if (activeLevels != null) {
     		for (QueryLevel ql : activeLevels) {
@@ -330,6 +562,12 @@ public class QueryHierarchy extends AbstractSortableQuerySet implements Named {
     		}
     	}
     	activeLevels.clear();
+    	touch();
+    }
+
+    @Override
+    protected void touch() {
+    	query.touch();
     }
     
     /* (non-Javadoc)
@@ -15,10 +15,11 @@
  */
 package org.saiku.query;
 
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
+import org.olap4j.OlapException;
 import org.olap4j.impl.Named;
 import org.olap4j.metadata.Level;
 import org.olap4j.metadata.Level.Type;
@@ -29,8 +30,8 @@ public class QueryLevel extends AbstractQuerySet implements Named {
     private final QueryHierarchy hierarchy;
 	private final Level level;
 	
-	private List<Member> inclusions = new ArrayList<Member>();
-	private List<Member> exclusions = new ArrayList<Member>();
+	private final MemberSelection inclusions;
+	private final MemberSelection exclusions;
 	private Member rangeStart = null;
 	private Member rangeEnd = null;
 	private String rangeStartExpr = null;
@@ -44,6 +45,29 @@ public class QueryLevel extends AbstractQuerySet implements Named {
         super();
         this.hierarchy = hierarchy;
         this.level = level;
+        this.inclusions = new MemberSelection(hierarchy.getQuery().getCube());
+        this.exclusions = new MemberSelection(hierarchy.getQuery().getCube());
+    }
+
+    /**
+     * Creates a copy of a level for a copied hierarchy. The member
+     * selections are shared until one of the levels changes them.
+     */
+    QueryLevel(QueryHierarchy hierarchy, QueryLevel other) {
+        super();
+        this.hierarchy = hierarchy;
+        this.level = other.level;
+        this.inclusions = other.inclusions.copy();
+        this.exclusions = other.exclusions.copy();
+        this.rangeStart = other.rangeStart;
+        this.rangeEnd = other.rangeEnd;
+        this.rangeStartExpr = other.rangeStartExpr;
+        this.rangeEndExpr = other.rangeEndExpr;
+        this.rangeStartSyn = other.rangeStartSyn;
+        this.rangeEndSyn = other.rangeEndSyn;
+        this.parameterName = other.parameterName;
+        this.parameterSelectionType = other.parameterSelectionType;
+        copyFrom(other);
     }
 
     public QueryHierarchy getQueryHierarchy() {
@@ -86,12 +110,48 @@ public class QueryLevel extends AbstractQuerySet implements Named {
         return level;
     }
 
+    /**
+     * Returns the included members in selection order. Changes to the
+     * list write through to this level.
+     * @return the included members
+     */
     public List<Member> getInclusions() {
-    	return inclusions;
+    	return inclusions.view(touchCallback);
     }
     
+    /**
+     * Returns the excluded members in selection order. Changes to the
+     * list write through to this level.
+     * @return the excluded members
+     */
     public List<Member> getExclusions() {
-    	return exclusions;
+    	return exclusions.view(touchCallback);
+    }
+
+    /**
+     * Returns the included members in selection order.
+     * @return an unmodifiable list of the included members
+     * @throws OlapException if a member included by name cannot be looked up
+     */
+    public List<Member> getIncludedMembers() throws OlapException {
+    	return inclusions.asList();
+    }
+
+    /**
+     * Returns the excluded members in selection order.
+     * @return an unmodifiable list of the excluded members
+     * @throws OlapException if a member excluded by name cannot be looked up
+     */
+    public List<Member> getExcludedMembers() throws OlapException {
+    	return exclusions.asList();
+    }
+
+    public boolean isIncluded(Member m) {
+    	return inclusions.contains(m);
+    }
+
+    public boolean isExcluded(Member m) {
+    	return exclusions.contains(m);
     }
     
 	public Member getRangeStart() {
@@ -127,47 +187,110 @@ public class QueryLevel extends AbstractQuerySet implements Named {
 		this.rangeEnd = null;
 		this.rangeEndExpr = null;
 		this.rangeEndSyn = null;
+		touch();
 	}
 
     protected void include(Member m) {
-    	if(!inclusions.contains(m)) {
-    		inclusions.add(m);
+    	if (inclusions.add(m)) {
+    		touch();
+    	}
+    }
+
+    protected void includeAll(Collection<? extends Member> members) {
+    	if (inclusions.addAll(members)) {
+    		touch();
     	}
     }
     
+    /**
+     * Includes members by unique name, they are looked up on first use.
+     */
+    void includeUniqueNames(Collection<String> uniqueNames) {
+    	boolean changed = false;
+    	for (String uniqueName : uniqueNames) {
+    		changed |= inclusions.addUniqueName(uniqueName);
+    	}
+    	if (changed) {
+    		touch();
+    	}
+    }
+
+    /**
+     * Excludes members by unique name, they are looked up on first use.
+     */
+    void excludeUniqueNames(Collection<String> uniqueNames) {
+    	boolean changed = false;
+    	for (String uniqueName : uniqueNames) {
+    		changed |= inclusions.remove(uniqueName);
+    		changed |= exclusions.addUniqueName(uniqueName);
+    	}
+    	if (changed) {
+    		touch();
+    	}
+    }
+
+    /**
+     * Returns the unique names of the included members, without looking
+     * up members that were included by name. The list is unmodifiable.
+     */
+    public List<String> getInclusionNames() {
+    	return inclusions.getUniqueNames();
+    }
+
+    /**
+     * Returns the unique names of the excluded members, without looking
+     * up members that were excluded by name. The list is unmodifiable.
+     */
+    public List<String> getExclusionNames() {
+    	return exclusions.getUniqueNames();
+    }
+
     protected void exclude(Member m) {
-    	if(inclusions.contains(m)) {
-    		inclusions.remove(m);
+    	boolean changed = inclusions.remove(m);
+    	changed |= exclusions.add(m);
+    	if (changed) {
+    		touch();
     	}
-    	if(!exclusions.contains(m)) {
-    		exclusions.add(m);
+    }
+
+    protected void excludeAll(Collection<? extends Member> members) {
+    	boolean changed = inclusions.removeAll(members);
+    	changed |= exclusions.addAll(members);
+    	if (changed) {
+    		touch();
     	}
     }
     
     protected void setRange(Member start, Member end) {
     	rangeStart = start;
     	rangeEnd = end;
+    	touch();
     }
     
     public void setRangeSynonyms(String startSynonym, String endSynonym) {
     	rangeStartSyn = startSynonym;
     	rangeEndSyn = endSynonym;
+    	touch();
     }
     
     public void setRangeStartSynonym(String startSyn) {
     	rangeStartSyn = startSyn;
+    	touch();
     }
     public void setRangeEndSynonym(String endSyn) {
     	rangeEndSyn = endSyn;
+    	touch();
     }
 
     public void setRangeStartExpr(String startExp) {
     	rangeStart = null;
     	rangeStartExpr = startExp;
+    	touch();
     }
     public void setRangeEndExpr(String endExp) {
     	rangeEnd = null;
     	rangeEndExpr = endExp;
+    	touch();
     }
 
     public void setRangeExpressions(String startExpr, String endExpr) {
@@ -175,6 +298,7 @@ public class QueryLevel extends AbstractQuerySet implements Named {
     	rangeEnd = null;
     	rangeStartExpr = startExpr;
     	rangeEndExpr = endExpr;
+    	touch();
     }    
 
     /* (non-Javadoc)
@@ -215,12 +339,12 @@ public class QueryLevel extends AbstractQuerySet implements Named {
 
 	public void setParameterName(String parameter) {
 		this.parameterName  = parameter;
-		
+		touch();
 	}
 
 	public void setParameterSelectionType(SelectionType selectionType) {
 		this.parameterSelectionType = selectionType;
-		
+		touch();
 	}
 
 	/**
@@ -240,6 +364,11 @@ public class QueryLevel extends AbstractQuerySet implements Named {
 	public boolean hasParameter() {
 		return (StringUtils.isNotBlank(parameterName));
 	}
+
+	@Override
+	protected void touch() {
+		hierarchy.getQuery().touch();
+	}
 }
 
 
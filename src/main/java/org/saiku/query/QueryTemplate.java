@@ -0,0 +1,211 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.olap4j.OlapException;
+import org.olap4j.mdx.LiteralNode;
+import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Member;
+import org.saiku.query.Olap4jNodeConverter.ParameterSlot;
+
+/**
+ * An immutable, compiled version of a {@link Query} whose level parameters
+ * are left as slots in the generated MDX.
+ * <p>Binding parameter values only resolves the members of each slot and
+ * fills them into the precompiled MDX, the rest of the query is neither
+ * converted nor unparsed again. The members are rendered like the query
+ * renders them, including range compaction, and a value that resolves to
+ * no members leaves the level's selection as it is without the parameter,
+ * so the bound MDX is the MDX of the query with the same values.
+ * <p>The structure of the generated MDX depends on which level parameters
+ * have a value, so a template is compiled for the parameters that have a
+ * value in the query at compile time. Those parameters have to be bound,
+ * the other level parameters must stay empty.
+ */
+public final class QueryTemplate {
+
+	private static final char SLOT_MARKER = '\u0000';
+
+	private final Cube cube;
+	private final SelectNode select;
+	private final String[] fragments;
+	private final Slot[] slots;
+	private final Set<String> parameterNames;
+	private final Set<String> unboundParameterNames;
+
+	private QueryTemplate(
+			Cube cube,
+			SelectNode select,
+			String[] fragments,
+			Slot[] slots,
+			Set<String> parameterNames,
+			Set<String> unboundParameterNames)
+	{
+		this.cube = cube;
+		this.select = select;
+		this.fragments = fragments;
+		this.slots = slots;
+		this.parameterNames = Collections.unmodifiableSet(parameterNames);
+		this.unboundParameterNames = Collections.unmodifiableSet(unboundParameterNames);
+	}
+
+	/**
+	 * Compiles the current state of the query into a template. Later
+	 * changes to the query do not affect the template.
+	 * @param query The query to compile
+	 * @return the compiled template
+	 * @throws OlapException if the query cannot be converted
+	 */
+	public static QueryTemplate compile(Query query) throws OlapException {
+		List<Slot> slotList = new ArrayList<Slot>();
+		Map<String, ParameterSlot> slotNodes = new HashMap<String, ParameterSlot>();
+		Set<String> parameterNames = new LinkedHashSet<String>();
+		Set<String> unboundParameterNames = new LinkedHashSet<String>();
+		for (QueryAxis axis : query.getAxes().values()) {
+			if (axis.getLocation() == null) {
+				continue;
+			}
+			for (QueryHierarchy qh : axis.getQueryHierarchies()) {
+				for (QueryLevel ql : qh.getActiveQueryLevels()) {
+					if (!ql.hasParameter()) {
+						continue;
+					}
+					String parameterName = ql.getParameterName();
+					if (StringUtils.isBlank(query.getParameter(parameterName))) {
+						unboundParameterNames.add(parameterName);
+						continue;
+					}
+					String marker = SLOT_MARKER + Integer.toString(slotList.size()) + SLOT_MARKER;
+					ParameterSlot slot = new ParameterSlot(LiteralNode.createSymbol(null, marker));
+					slotList.add(new Slot(parameterName, ql.getUniqueName(), slot));
+					slotNodes.put(ql.getUniqueName(), slot);
+					parameterNames.add(parameterName);
+				}
+			}
+		}
+		unboundParameterNames.removeAll(parameterNames);
+
+		SelectNode select;
+		try {
+			select = Olap4jNodeConverter.toQuery(query, slotNodes);
+		} catch (Exception e) {
+			throw new OlapException("Error compiling query template", e);
+		}
+		final StringWriter writer = new StringWriter();
+		select.unparse(new ParseTreeWriter(new PrintWriter(writer)));
+		String mdx = writer.toString();
+
+		List<String> fragments = new ArrayList<String>();
+		List<Slot> orderedSlots = new ArrayList<Slot>();
+		int start = 0;
+		int open = mdx.indexOf(SLOT_MARKER);
+		while (open >= 0) {
+			int close = mdx.indexOf(SLOT_MARKER, open + 1);
+			fragments.add(mdx.substring(start, open));
+			orderedSlots.add(slotList.get(Integer.parseInt(mdx.substring(open + 1, close))));
+			start = close + 1;
+			open = mdx.indexOf(SLOT_MARKER, start);
+		}
+		fragments.add(mdx.substring(start));
+
+		return new QueryTemplate(
+				query.getCube(),
+				select,
+				fragments.toArray(new String[fragments.size()]),
+				orderedSlots.toArray(new Slot[orderedSlots.size()]),
+				parameterNames,
+				unboundParameterNames);
+	}
+
+	/**
+	 * Returns the names of the parameters that have to be bound.
+	 * @return the parameter names
+	 */
+	public Set<String> getParameterNames() {
+		return parameterNames;
+	}
+
+	/**
+	 * Returns the compiled parse tree. Parameter slots are represented by
+	 * symbol literals. The returned object is a copy.
+	 * @return the select with the parameter slots
+	 */
+	public SelectNode getSelect() {
+		return select.deepCopy();
+	}
+
+	/**
+	 * Generates the MDX for the given parameter values.
+	 * @param values Values for the parameters of this template, using the same
+	 * format as {@link Query#setParameter(String, String)}
+	 * @return the MDX of the query with the parameter values filled in
+	 * @throws OlapException if a parameter value cannot be resolved
+	 * @throws IllegalArgumentException if a parameter of the template has no
+	 * value or a parameter that was empty at compile time has one
+	 */
+	public String bind(Map<String, String> values) throws OlapException {
+		for (String parameterName : unboundParameterNames) {
+			if (StringUtils.isNotBlank(values.get(parameterName))) {
+				throw new IllegalArgumentException(
+						"Query template was compiled without a value for parameter " + parameterName);
+			}
+		}
+		StringBuilder mdx = new StringBuilder();
+		for (int i = 0; i < slots.length; i++) {
+			mdx.append(fragments[i]);
+			appendSlot(mdx, slots[i], values);
+		}
+		mdx.append(fragments[slots.length]);
+		return mdx.toString();
+	}
+
+	@SuppressWarnings("deprecation")
+	private void appendSlot(StringBuilder mdx, Slot slot, Map<String, String> values) throws OlapException {
+		String value = values.get(slot.parameterName);
+		if (StringUtils.isBlank(value)) {
+			throw new IllegalArgumentException("Missing value for parameter " + slot.parameterName);
+		}
+		List<Member> members = Olap4jNodeConverter.resolveParameter(cube, slot.levelUniqueName, value);
+		StringWriter writer = new StringWriter();
+		slot.parameterSlot.toNode(members).unparse(new ParseTreeWriter(new PrintWriter(writer)));
+		mdx.append(writer.toString());
+	}
+
+	private static final class Slot {
+		private final String parameterName;
+		private final String levelUniqueName;
+		private final ParameterSlot parameterSlot;
+
+		private Slot(String parameterName, String levelUniqueName, ParameterSlot parameterSlot) {
+			this.parameterName = parameterName;
+			this.levelUniqueName = levelUniqueName;
+			this.parameterSlot = parameterSlot;
+		}
+	}
+}
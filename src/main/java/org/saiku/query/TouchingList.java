@@ -0,0 +1,121 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.olap4j.metadata.NamedList;
+
+/**
+ * Modifiable view of a list of the query model. Changes write through to
+ * the list and are reported to a callback, so the owning {@link Query}
+ * can invalidate its generated MDX.
+ */
+class TouchingList<E> extends AbstractList<E> implements RandomAccess {
+
+	private final List<E> list;
+	private final Runnable onChange;
+
+	TouchingList(List<E> list, Runnable onChange) {
+		this.list = list;
+		this.onChange = onChange;
+	}
+
+	private void changed() {
+		modCount++;
+		onChange.run();
+	}
+
+	@Override
+	public E get(int index) {
+		return list.get(index);
+	}
+
+	@Override
+	public int size() {
+		return list.size();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return list.contains(o);
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		return list.indexOf(o);
+	}
+
+	@Override
+	public E set(int index, E element) {
+		E previous = list.set(index, element);
+		changed();
+		return previous;
+	}
+
+	@Override
+	public void add(int index, E element) {
+		list.add(index, element);
+		changed();
+	}
+
+	@Override
+	public E remove(int index) {
+		E removed = list.remove(index);
+		changed();
+		return removed;
+	}
+
+	@Override
+	public void clear() {
+		if (!list.isEmpty()) {
+			list.clear();
+			changed();
+		}
+	}
+
+	/**
+	 * A touching view of a named list.
+	 */
+	static class Named<E> extends TouchingList<E> implements NamedList<E> {
+
+		private final NamedList<E> namedList;
+
+		Named(NamedList<E> namedList, Runnable onChange) {
+			super(namedList, onChange);
+			this.namedList = namedList;
+		}
+
+		public E get(String name) {
+			return namedList.get(name);
+		}
+
+		public int indexOfName(String name) {
+			return namedList.indexOfName(name);
+		}
+
+		public String getName(Object element) {
+			return namedList.getName(element);
+		}
+
+		public Map<String, E> asMap() {
+			return namedList.asMap();
+		}
+	}
+}
@@ -24,6 +24,15 @@ import org.olap4j.mdx.parser.MdxParser;
 
 public abstract class AbstractFilterFunction implements IFilterFunction {
 
+	/**
+	 * Returns a copy of this filter for a copied query. Filters without
+	 * modifiable state return themselves.
+	 * @return the copy
+	 */
+	public IFilterFunction copy() {
+		return this;
+	}
+
 	@Override
 	public ParseTreeNode visit(MdxParser parser, ParseTreeNode parent) {
 		List<ParseTreeNode> arguments = getArguments(parser);
@@ -0,0 +1,133 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.mdx;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.mdx.parser.MdxParser;
+import org.olap4j.mdx.parser.impl.DefaultMdxParserImpl;
+
+/**
+ * MdxParser that keeps the parse trees of MDX expressions (formulas,
+ * filter conditions, set expressions) in a bounded LRU cache.
+ * <p>The cached trees are never handed out, callers always receive a deep
+ * copy they are free to modify. Select statements are not cached.
+ * <p>This class is thread-safe, a shared instance is available via
+ * {@link #getInstance()}.
+ */
+public class CachingMdxParser implements MdxParser {
+
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	private static final CachingMdxParser INSTANCE = new CachingMdxParser(DEFAULT_MAX_SIZE);
+
+	private final int maxSize;
+	private final Map<String, ParseTreeNode> expressions;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public CachingMdxParser(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Cache size must be at least 1: " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.expressions = new LinkedHashMap<String, ParseTreeNode>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ParseTreeNode> eldest) {
+				if (size() > CachingMdxParser.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the parser shared by the query model.
+	 * @return the shared instance
+	 */
+	public static CachingMdxParser getInstance() {
+		return INSTANCE;
+	}
+
+	@Override
+	public SelectNode parseSelect(String mdx) {
+		return new DefaultMdxParserImpl().parseSelect(mdx);
+	}
+
+	@Override
+	public ParseTreeNode parseExpression(String mdx) {
+		ParseTreeNode expression;
+		synchronized (expressions) {
+			expression = expressions.get(mdx);
+		}
+		if (expression != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			expression = new DefaultMdxParserImpl().parseExpression(mdx);
+			synchronized (expressions) {
+				expressions.put(mdx, expression);
+			}
+		}
+		return expression.deepCopy();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int size() {
+		synchronized (expressions) {
+			return expressions.size();
+		}
+	}
+
+	/**
+	 * Removes all cached expressions. The statistics are kept.
+	 */
+	public void clear() {
+		synchronized (expressions) {
+			expressions.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CachingMdxParser[size=" + size() + ", hits=" + hits + ", misses=" + misses
+				+ ", evictions=" + evictions + "]";
+	}
+}
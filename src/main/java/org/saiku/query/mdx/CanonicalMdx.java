@@ -0,0 +1,93 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.mdx;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Canonical single line MDX of a select, with a 128 bit hash of it.
+ * Two canonical MDX objects are equal if their MDX is equal.
+ * @see MdxCanonicalizer
+ */
+public final class CanonicalMdx {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String mdx;
+	private final long mostSignificantBits;
+	private final long leastSignificantBits;
+
+	public CanonicalMdx(String mdx) {
+		this.mdx = mdx;
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(mdx.getBytes(UTF8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+		long msb = 0;
+		long lsb = 0;
+		for (int i = 0; i < 8; i++) {
+			msb = (msb << 8) | (digest[i] & 0xff);
+			lsb = (lsb << 8) | (digest[i + 8] & 0xff);
+		}
+		this.mostSignificantBits = msb;
+		this.leastSignificantBits = lsb;
+	}
+
+	public String getMdx() {
+		return mdx;
+	}
+
+	public long getMostSignificantBits() {
+		return mostSignificantBits;
+	}
+
+	public long getLeastSignificantBits() {
+		return leastSignificantBits;
+	}
+
+	/**
+	 * Returns the hash as 32 hexadecimal digits.
+	 */
+	public String getHash() {
+		return String.format("%016x%016x", mostSignificantBits, leastSignificantBits);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (mostSignificantBits ^ (mostSignificantBits >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		CanonicalMdx other = (CanonicalMdx) obj;
+		return mostSignificantBits == other.mostSignificantBits
+				&& leastSignificantBits == other.leastSignificantBits
+				&& mdx.equals(other.mdx);
+	}
+
+	@Override
+	public String toString() {
+		return mdx;
+	}
+}
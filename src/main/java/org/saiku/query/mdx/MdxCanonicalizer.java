@@ -0,0 +1,252 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.mdx;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.olap4j.mdx.AxisNode;
+import org.olap4j.mdx.CallNode;
+import org.olap4j.mdx.IdentifierNode;
+import org.olap4j.mdx.IdentifierSegment;
+import org.olap4j.mdx.NameSegment;
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.mdx.PropertyValueNode;
+import org.olap4j.mdx.Quoting;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.mdx.Syntax;
+import org.olap4j.mdx.WithMemberNode;
+import org.olap4j.mdx.WithSetNode;
+
+/**
+ * Rewrites a select into a canonical form, so that logically identical
+ * selects produce the same MDX text, e.g. for cache keys:
+ * <ul>
+ * <li>member properties (FORMAT_STRING, SOLVE_ORDER...) are upper case
+ * and sorted by name</li>
+ * <li>all name segments of identifiers are quoted</li>
+ * <li>names of functions and operators are upper case</li>
+ * <li>named sets are renamed by their position in the WITH clause</li>
+ * <li>whitespace is collapsed into single spaces on one line</li>
+ * </ul>
+ * The canonical MDX is valid MDX with the same meaning as the original.
+ * The given select is not modified.
+ */
+public final class MdxCanonicalizer {
+
+	private static final String SET_PREFIX = "~SET";
+
+	private MdxCanonicalizer() {
+	}
+
+	public static CanonicalMdx canonicalize(SelectNode select) {
+		SelectNode canonical = (SelectNode) new Rewriter(select).rewrite(select);
+		StringWriter writer = new StringWriter();
+		canonical.unparse(new ParseTreeWriter(writer));
+		return new CanonicalMdx(compact(writer.toString()));
+	}
+
+	/*
+	 * Collapses whitespace outside of string literals and bracketed
+	 * identifiers into single spaces.
+	 */
+	static String compact(String mdx) {
+		StringBuilder sb = new StringBuilder(mdx.length());
+		char quote = 0;
+		boolean space = false;
+		for (int i = 0; i < mdx.length(); i++) {
+			char c = mdx.charAt(i);
+			if (quote != 0) {
+				sb.append(c);
+				if (c == quote) {
+					// a doubled closing character is an escape
+					if (i + 1 < mdx.length() && mdx.charAt(i + 1) == quote) {
+						sb.append(mdx.charAt(++i));
+					} else {
+						quote = 0;
+					}
+				}
+				continue;
+			}
+			if (Character.isWhitespace(c)) {
+				space = sb.length() > 0;
+				continue;
+			}
+			if (space) {
+				sb.append(' ');
+				space = false;
+			}
+			sb.append(c);
+			if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '[') {
+				quote = ']';
+			}
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Dispatches on the node type itself, as accept() of the olap4j nodes
+	 * also walks the children after visiting a node.
+	 */
+	private static class Rewriter {
+
+		private final Map<String, IdentifierNode> setNames = new HashMap<String, IdentifierNode>();
+
+		Rewriter(SelectNode select) {
+			for (ParseTreeNode with : select.getWithList()) {
+				if (with instanceof WithSetNode) {
+					String name = quote(((WithSetNode) with).getIdentifier()).toString();
+					if (!setNames.containsKey(name)) {
+						setNames.put(name, IdentifierNode.ofNames(SET_PREFIX + setNames.size()));
+					}
+				}
+			}
+		}
+
+		ParseTreeNode rewrite(ParseTreeNode node) {
+			if (node instanceof SelectNode) {
+				return visit((SelectNode) node);
+			} else if (node instanceof AxisNode) {
+				return visit((AxisNode) node);
+			} else if (node instanceof WithMemberNode) {
+				return visit((WithMemberNode) node);
+			} else if (node instanceof WithSetNode) {
+				return visit((WithSetNode) node);
+			} else if (node instanceof CallNode) {
+				return visit((CallNode) node);
+			} else if (node instanceof IdentifierNode) {
+				return visit((IdentifierNode) node);
+			} else if (node instanceof PropertyValueNode) {
+				return visit((PropertyValueNode) node);
+			}
+			// cube, dimension, hierarchy, level, member, literal and
+			// parameter nodes are already canonical
+			return node == null ? null : node.deepCopy();
+		}
+
+		private IdentifierNode quote(IdentifierNode identifier) {
+			List<IdentifierSegment> segments = new ArrayList<IdentifierSegment>();
+			for (IdentifierSegment segment : identifier.getSegmentList()) {
+				if (segment.getQuoting() == Quoting.UNQUOTED) {
+					segments.add(new NameSegment(null, segment.getName(), Quoting.QUOTED));
+				} else {
+					segments.add(segment);
+				}
+			}
+			return new IdentifierNode(segments);
+		}
+
+		private ParseTreeNode visit(SelectNode select) {
+			List<ParseTreeNode> withList = new ArrayList<ParseTreeNode>();
+			for (ParseTreeNode with : select.getWithList()) {
+				withList.add(rewrite(with));
+			}
+			List<AxisNode> axisList = new ArrayList<AxisNode>();
+			for (AxisNode axis : select.getAxisList()) {
+				axisList.add((AxisNode) rewrite(axis));
+			}
+			List<IdentifierNode> cellProperties = new ArrayList<IdentifierNode>();
+			for (IdentifierNode property : select.getCellPropertyList()) {
+				cellProperties.add(quote(property));
+			}
+			return new SelectNode(
+					null,
+					withList,
+					axisList,
+					rewrite(select.getFrom()),
+					(AxisNode) rewrite(select.getFilterAxis()),
+					cellProperties);
+		}
+
+		private ParseTreeNode visit(AxisNode axis) {
+			List<IdentifierNode> properties = new ArrayList<IdentifierNode>();
+			for (IdentifierNode property : axis.getDimensionProperties()) {
+				properties.add(quote(property));
+			}
+			return new AxisNode(
+					null,
+					axis.isNonEmpty(),
+					axis.getAxis(),
+					properties,
+					rewrite(axis.getExpression()));
+		}
+
+		private ParseTreeNode visit(WithMemberNode member) {
+			List<PropertyValueNode> properties = new ArrayList<PropertyValueNode>();
+			for (PropertyValueNode property : member.getMemberPropertyList()) {
+				properties.add((PropertyValueNode) rewrite(property));
+			}
+			Collections.sort(properties, new Comparator<PropertyValueNode>() {
+				public int compare(PropertyValueNode o1, PropertyValueNode o2) {
+					return o1.getName().compareTo(o2.getName());
+				}
+			});
+			return new WithMemberNode(
+					null,
+					quote(member.getIdentifier()),
+					rewrite(member.getExpression()),
+					properties);
+		}
+
+		private ParseTreeNode visit(WithSetNode set) {
+			return new WithSetNode(
+					null,
+					(IdentifierNode) rewrite(set.getIdentifier()),
+					rewrite(set.getExpression()));
+		}
+
+		private ParseTreeNode visit(CallNode call) {
+			List<ParseTreeNode> args = new ArrayList<ParseTreeNode>();
+			for (ParseTreeNode arg : call.getArgList()) {
+				args.add(rewrite(arg));
+			}
+			String name = call.getOperatorName();
+			Syntax syntax = call.getSyntax();
+			if (syntax == Syntax.Function
+					|| syntax == Syntax.Method
+					|| syntax == Syntax.Property
+					|| syntax == Syntax.Infix
+					|| syntax == Syntax.Prefix
+					|| syntax == Syntax.Postfix)
+			{
+				name = name.toUpperCase(Locale.ENGLISH);
+			}
+			return new CallNode(null, name, syntax, args);
+		}
+
+		private ParseTreeNode visit(IdentifierNode identifier) {
+			IdentifierNode quoted = quote(identifier);
+			IdentifierNode set = setNames.get(quoted.toString());
+			return set != null ? set.deepCopy() : quoted;
+		}
+
+		private ParseTreeNode visit(PropertyValueNode property) {
+			return new PropertyValueNode(
+					null,
+					property.getName().toUpperCase(Locale.ENGLISH),
+					rewrite(property.getExpression()));
+		}
+	}
+}
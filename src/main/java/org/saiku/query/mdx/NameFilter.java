@@ -46,6 +46,11 @@ public class NameFilter extends AbstractFilterFunction {
 		this.type = MdxFunctionType.Filter;
 	}
 
+	@Override
+	public IFilterFunction copy() {
+		return new NameFilter(hierarchy, filterExpression);
+	}
+
 	@Override
 	public List<ParseTreeNode> getArguments(MdxParser parser) {
 		List<ParseTreeNode> filters = new ArrayList<ParseTreeNode>();
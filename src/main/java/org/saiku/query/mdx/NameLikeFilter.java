@@ -47,6 +47,11 @@ public class NameLikeFilter extends AbstractFilterFunction {
 		this.type = MdxFunctionType.Filter;
 	}
 
+	@Override
+	public IFilterFunction copy() {
+		return new NameLikeFilter(hierarchy, filterExpression);
+	}
+
 	@Override
 	public List<ParseTreeNode> getArguments(MdxParser parser) {
 		List<ParseTreeNode> filters = new ArrayList<ParseTreeNode>();
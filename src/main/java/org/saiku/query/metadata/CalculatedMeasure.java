@@ -69,7 +69,23 @@ public class CalculatedMeasure implements Measure, Named, Calculated {
 			this.properties.putAll(properties);
 		}
 	}
-	
+
+	/**
+	 * Creates a copy of a calculated measure, e.g. for a copied query.
+	 * Changing the format properties of the copy does not change the
+	 * original.
+	 */
+	public CalculatedMeasure(CalculatedMeasure other) {
+		this.dimension = other.dimension;
+		this.hierarchy = other.hierarchy;
+		this.level = other.level;
+		this.name = other.name;
+		this.uniqueName = other.uniqueName;
+		this.description = other.description;
+		this.formula = other.formula;
+		this.datatype = other.datatype;
+		this.properties.putAll(other.properties);
+	}
 
 
 	public Dimension getDimension() {
@@ -58,6 +58,24 @@ public class CalculatedMember implements Member, Named, Calculated {
 			Type memberType,
 			String formula,
 			Map<String, String> properties)
+	{
+		this(dimension, hierarchy, name, description, memberType, formula, properties,
+				parentMember == null ? null : parentMember.getUniqueName());
+	}
+
+	/**
+	 * Creates a calculated member below the parent with the given unique
+	 * name, without looking up the parent.
+	 */
+	public CalculatedMember(
+			Dimension dimension,
+			Hierarchy hierarchy,
+			String name,
+			String description,
+			Type memberType,
+			String formula,
+			Map<String, String> properties,
+			String parentUniqueName)
 	{
 		this.dimension = dimension;
 		this.hierarchy = hierarchy;
@@ -66,10 +84,10 @@ public class CalculatedMember implements Member, Named, Calculated {
 		this.description = description;
 		this.memberType = memberType;
 		this.formula = formula;
-		if (parentMember == null) {
+		if (parentUniqueName == null) {
 			this.uniqueName = IdentifierNode.ofNames(hierarchy.getName(), name).toString();
 		} else {
-			IdentifierNode parent = IdentifierNode.parseIdentifier(parentMember.getUniqueName());
+			IdentifierNode parent = IdentifierNode.parseIdentifier(parentUniqueName);
 			IdentifierNode cm = IdentifierNode.ofNames(name);
 			List<IdentifierSegment> segmentList = new ArrayList<IdentifierSegment>();
 			segmentList.addAll(parent.getSegmentList());
@@ -88,7 +106,23 @@ public class CalculatedMember implements Member, Named, Calculated {
 			this.properties.putAll(properties);
 		}
 	}
-	
+
+	/**
+	 * Creates a copy of a calculated member, e.g. for a copied query.
+	 * Changing the format properties of the copy does not change the
+	 * original.
+	 */
+	public CalculatedMember(CalculatedMember other) {
+		this.dimension = other.dimension;
+		this.hierarchy = other.hierarchy;
+		this.level = other.level;
+		this.name = other.name;
+		this.uniqueName = other.uniqueName;
+		this.description = other.description;
+		this.memberType = other.memberType;
+		this.formula = other.formula;
+		this.properties.putAll(other.properties);
+	}
 
 
 	public Dimension getDimension() {
@@ -0,0 +1,475 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.metadata;
+
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Catalog;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Hierarchy;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Measure;
+
+/**
+ * Description of the hierarchies, levels and measures of a cube.
+ * <p>The names, positions and indexes of a cube are built once and shared
+ * by all queries on that cube, so creating a query does not walk the cube
+ * metadata again. Queries only keep their own selection state.
+ * <p>Hierarchies, levels and measures are indexed by unique name, name
+ * and caption. If several elements share a name or caption, lookups
+ * return the first one in cube order.
+ * <p>The shared part is cached per connection URL, catalog, schema and
+ * cube, and holds no metadata objects, so it does not keep a connection
+ * alive. A skeleton binds it to the metadata objects of one cube object
+ * and is reused for that cube object while it is in use. The shared part
+ * is rebuilt if the hierarchies, levels or measures of a cube no longer
+ * match it, e.g. for a connection with another role. Schema reloads that
+ * keep their unique names equal are not detected, callers that flush the
+ * schema have to call {@link #invalidate(Cube)} or {@link #invalidateAll()}.
+ * <p>This class is thread-safe.
+ */
+public final class CubeSkeleton {
+
+	private static final ConcurrentMap<String, CubeShape> CACHE =
+			new ConcurrentHashMap<String, CubeShape>();
+
+	private final Cube cube;
+	private final CubeShape shape;
+	private final List<HierarchySkeleton> hierarchies;
+	private volatile List<Measure> measures;
+
+	private CubeSkeleton(Cube cube, CubeShape shape, List<Hierarchy> cubeHierarchies) {
+		this.cube = cube;
+		this.shape = shape;
+		List<HierarchySkeleton> list = new ArrayList<HierarchySkeleton>(cubeHierarchies.size());
+		for (int i = 0; i < cubeHierarchies.size(); i++) {
+			list.add(new HierarchySkeleton(shape.hierarchies.get(i), cubeHierarchies.get(i)));
+		}
+		this.hierarchies = Collections.unmodifiableList(list);
+	}
+
+	private static <T> void index(Map<String, T> map, String key, T value) {
+		if (key != null && !map.containsKey(key)) {
+			map.put(key, value);
+		}
+	}
+
+	private static <T> T find(String key, Map<String, T> first, Map<String, T> second, Map<String, T> third) {
+		if (key == null) {
+			return null;
+		}
+		T value = first.get(key);
+		if (value == null) {
+			value = second.get(key);
+		}
+		if (value == null) {
+			value = third.get(key);
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the skeleton of a cube, building the shared part if it is
+	 * not cached yet.
+	 * @param cube The cube
+	 * @return The skeleton of the cube
+	 * @throws OlapException if the connection of the cube cannot be read
+	 */
+	public static CubeSkeleton of(Cube cube) throws OlapException {
+		String key = getIdentity(cube);
+		CubeShape shape = CACHE.get(key);
+		CubeSkeleton skeleton = shape == null ? null : shape.getSkeleton(cube);
+		if (skeleton == null) {
+			List<Hierarchy> cubeHierarchies = cube.getHierarchies();
+			if (shape == null || !shape.matches(cube, cubeHierarchies)) {
+				shape = new CubeShape(cube, cubeHierarchies);
+				CACHE.put(key, shape);
+			}
+			skeleton = new CubeSkeleton(cube, shape, cubeHierarchies);
+			shape.addSkeleton(skeleton);
+		}
+		return skeleton;
+	}
+
+	/**
+	 * Removes the skeleton of a cube from the cache. Queries created
+	 * afterwards see the current metadata of the cube.
+	 * @param cube The cube
+	 * @throws OlapException if the connection of the cube cannot be read
+	 */
+	public static void invalidate(Cube cube) throws OlapException {
+		CACHE.remove(getIdentity(cube));
+	}
+
+	/**
+	 * Removes all skeletons from the cache.
+	 */
+	public static void invalidateAll() {
+		CACHE.clear();
+	}
+
+	/**
+	 * Returns the identity of a cube across connections: the connection
+	 * URL, catalog, schema and unique name of the cube.
+	 * @param cube The cube
+	 * @return The identity of the cube
+	 * @throws OlapException if the connection of the cube cannot be read
+	 */
+	public static String getIdentity(Cube cube) throws OlapException {
+		Catalog catalog = cube.getSchema().getCatalog();
+		try {
+			return catalog.getMetaData().getURL()
+					+ "|" + catalog.getName()
+					+ "|" + cube.getSchema().getName()
+					+ "|" + cube.getUniqueName();
+		} catch (SQLException e) {
+			throw new OlapException("Cannot read connection of cube " + cube.getUniqueName(), e);
+		}
+	}
+
+	public Cube getCube() {
+		return cube;
+	}
+
+	/**
+	 * @return The hierarchies of the cube, in cube order
+	 */
+	public List<HierarchySkeleton> getHierarchies() {
+		return hierarchies;
+	}
+
+	/**
+	 * @param uniqueName The unique name of a hierarchy
+	 * @return The hierarchy, null if the cube has no such hierarchy
+	 */
+	public HierarchySkeleton getHierarchy(String uniqueName) {
+		Integer index = shape.hierarchiesByUniqueName.get(uniqueName);
+		return index == null ? null : hierarchies.get(index);
+	}
+
+	/**
+	 * Looks up a hierarchy by unique name, then by name, then by caption.
+	 * @param name The unique name, name or caption of a hierarchy
+	 * @return The hierarchy, null if the cube has no such hierarchy
+	 */
+	public HierarchySkeleton findHierarchy(String name) {
+		Integer index = find(name, shape.hierarchiesByUniqueName, shape.hierarchiesByName, shape.hierarchiesByCaption);
+		return index == null ? null : hierarchies.get(index);
+	}
+
+	/**
+	 * @param uniqueName The unique name of a level
+	 * @return The level, null if the cube has no such level
+	 */
+	public LevelSkeleton getLevel(String uniqueName) {
+		LevelShape level = shape.levelsByUniqueName.get(uniqueName);
+		return level == null ? null : hierarchies.get(level.hierarchyIndex).getLevels().get(level.index);
+	}
+
+	/**
+	 * Looks up a measure by name, then by unique name, then by caption.
+	 * @param name The name, unique name or caption of a measure
+	 * @return The measure, null if the cube has no such measure
+	 */
+	public Measure findMeasure(String name) {
+		Integer index = find(name, shape.measuresByName, shape.measuresByUniqueName, shape.measuresByCaption);
+		if (index == null) {
+			return null;
+		}
+		List<Measure> m = measures;
+		if (m == null) {
+			m = cube.getMeasures();
+			measures = m;
+		}
+		return m.get(index);
+	}
+
+	/**
+	 * Names and positions of the hierarchies, levels and measures of a
+	 * cube, shared by all skeletons of that cube.
+	 */
+	private static final class CubeShape {
+
+		private final List<HierarchyShape> hierarchies = new ArrayList<HierarchyShape>();
+		private final Map<String, Integer> hierarchiesByUniqueName = new HashMap<String, Integer>();
+		private final Map<String, Integer> hierarchiesByName = new HashMap<String, Integer>();
+		private final Map<String, Integer> hierarchiesByCaption = new HashMap<String, Integer>();
+		private final Map<String, LevelShape> levelsByUniqueName = new HashMap<String, LevelShape>();
+		private final Map<String, Integer> measuresByUniqueName = new HashMap<String, Integer>();
+		private final Map<String, Integer> measuresByName = new HashMap<String, Integer>();
+		private final Map<String, Integer> measuresByCaption = new HashMap<String, Integer>();
+		private final List<String> measureUniqueNames = new ArrayList<String>();
+
+		/**
+		 * The skeletons in use, one per cube object, i.e. per connection.
+		 * Held weakly, so they do not keep their cube alive.
+		 */
+		private final List<WeakReference<CubeSkeleton>> skeletons =
+				new ArrayList<WeakReference<CubeSkeleton>>();
+
+		private CubeShape(Cube cube, List<Hierarchy> cubeHierarchies) {
+			for (int i = 0; i < cubeHierarchies.size(); i++) {
+				Hierarchy hierarchy = cubeHierarchies.get(i);
+				HierarchyShape h = new HierarchyShape(i, hierarchy);
+				hierarchies.add(h);
+				index(hierarchiesByUniqueName, h.uniqueName, i);
+				index(hierarchiesByName, h.name, i);
+				index(hierarchiesByCaption, hierarchy.getCaption(), i);
+				for (LevelShape l : h.levels) {
+					index(levelsByUniqueName, l.uniqueName, l);
+				}
+			}
+			List<Measure> cubeMeasures = cube.getMeasures();
+			for (int i = 0; i < cubeMeasures.size(); i++) {
+				Measure measure = cubeMeasures.get(i);
+				measureUniqueNames.add(measure.getUniqueName());
+				index(measuresByUniqueName, measure.getUniqueName(), i);
+				index(measuresByName, measure.getName(), i);
+				index(measuresByCaption, measure.getCaption(), i);
+			}
+		}
+
+		private synchronized CubeSkeleton getSkeleton(Cube cube) {
+			Iterator<WeakReference<CubeSkeleton>> it = skeletons.iterator();
+			while (it.hasNext()) {
+				CubeSkeleton skeleton = it.next().get();
+				if (skeleton == null) {
+					it.remove();
+				} else if (skeleton.cube == cube) {
+					return skeleton;
+				}
+			}
+			return null;
+		}
+
+		private synchronized void addSkeleton(CubeSkeleton skeleton) {
+			skeletons.add(new WeakReference<CubeSkeleton>(skeleton));
+		}
+
+		/**
+		 * Checks that the positions of the shape hold for a cube. Cubes with
+		 * the same identity can differ, e.g. on connections with other roles.
+		 */
+		private boolean matches(Cube cube, List<Hierarchy> cubeHierarchies) {
+			if (cubeHierarchies.size() != hierarchies.size()) {
+				return false;
+			}
+			for (int i = 0; i < cubeHierarchies.size(); i++) {
+				if (!hierarchies.get(i).matches(cubeHierarchies.get(i))) {
+					return false;
+				}
+			}
+			List<Measure> cubeMeasures = cube.getMeasures();
+			if (cubeMeasures.size() != measureUniqueNames.size()) {
+				return false;
+			}
+			for (int i = 0; i < cubeMeasures.size(); i++) {
+				if (!measureUniqueNames.get(i).equals(cubeMeasures.get(i).getUniqueName())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class HierarchyShape {
+
+		private final int index;
+		private final String uniqueName;
+		private final String name;
+		private final List<LevelShape> levels = new ArrayList<LevelShape>();
+		private final Map<String, Integer> levelsByName = new HashMap<String, Integer>();
+		private final Map<String, Integer> levelsByUniqueName = new HashMap<String, Integer>();
+		private final Map<String, Integer> levelsByCaption = new HashMap<String, Integer>();
+
+		private HierarchyShape(int index, Hierarchy hierarchy) {
+			this.index = index;
+			this.uniqueName = hierarchy.getUniqueName();
+			this.name = hierarchy.getName();
+			List<Level> hierarchyLevels = hierarchy.getLevels();
+			for (int i = 0; i < hierarchyLevels.size(); i++) {
+				Level level = hierarchyLevels.get(i);
+				LevelShape l = new LevelShape(index, i, level);
+				levels.add(l);
+				index(levelsByName, l.name, i);
+				index(levelsByUniqueName, l.uniqueName, i);
+				index(levelsByCaption, level.getCaption(), i);
+			}
+		}
+
+		private boolean matches(Hierarchy hierarchy) {
+			if (!uniqueName.equals(hierarchy.getUniqueName())) {
+				return false;
+			}
+			List<Level> hierarchyLevels = hierarchy.getLevels();
+			if (hierarchyLevels.size() != levels.size()) {
+				return false;
+			}
+			for (int i = 0; i < hierarchyLevels.size(); i++) {
+				if (!levels.get(i).uniqueName.equals(hierarchyLevels.get(i).getUniqueName())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class LevelShape {
+
+		private final int hierarchyIndex;
+		private final int index;
+		private final String uniqueName;
+		private final String name;
+		private final int depth;
+		private final Level.Type levelType;
+
+		private LevelShape(int hierarchyIndex, int index, Level level) {
+			this.hierarchyIndex = hierarchyIndex;
+			this.index = index;
+			this.uniqueName = level.getUniqueName();
+			this.name = level.getName();
+			this.depth = level.getDepth();
+			this.levelType = level.getLevelType();
+		}
+	}
+
+	/**
+	 * Description of a hierarchy.
+	 */
+	public static final class HierarchySkeleton {
+
+		private final HierarchyShape shape;
+		private final Hierarchy hierarchy;
+		private volatile List<LevelSkeleton> levels;
+
+		private HierarchySkeleton(HierarchyShape shape, Hierarchy hierarchy) {
+			this.shape = shape;
+			this.hierarchy = hierarchy;
+		}
+
+		public Hierarchy getHierarchy() {
+			return hierarchy;
+		}
+
+		public String getUniqueName() {
+			return shape.uniqueName;
+		}
+
+		public String getName() {
+			return shape.name;
+		}
+
+		/**
+		 * @return The levels of the hierarchy, by depth
+		 */
+		public List<LevelSkeleton> getLevels() {
+			List<LevelSkeleton> l = levels;
+			if (l == null) {
+				synchronized (this) {
+					l = levels;
+					if (l == null) {
+						List<Level> hierarchyLevels = hierarchy.getLevels();
+						List<LevelSkeleton> list = new ArrayList<LevelSkeleton>(shape.levels.size());
+						for (LevelShape level : shape.levels) {
+							list.add(new LevelSkeleton(this, level, hierarchyLevels.get(level.index)));
+						}
+						l = Collections.unmodifiableList(list);
+						levels = l;
+					}
+				}
+			}
+			return l;
+		}
+
+		/**
+		 * @param levelName The name of a level
+		 * @return The level, null if the hierarchy has no such level
+		 */
+		public LevelSkeleton getLevel(String levelName) {
+			Integer index = shape.levelsByName.get(levelName);
+			return index == null ? null : getLevels().get(index);
+		}
+
+		/**
+		 * Looks up a level by name, then by unique name, then by caption.
+		 * @param name The name, unique name or caption of a level
+		 * @return The level, null if the hierarchy has no such level
+		 */
+		public LevelSkeleton findLevel(String name) {
+			Integer index = find(name, shape.levelsByName, shape.levelsByUniqueName, shape.levelsByCaption);
+			return index == null ? null : getLevels().get(index);
+		}
+	}
+
+	/**
+	 * Description of a level.
+	 */
+	public static final class LevelSkeleton {
+
+		private final HierarchySkeleton hierarchy;
+		private final LevelShape shape;
+		private final Level level;
+
+		private LevelSkeleton(HierarchySkeleton hierarchy, LevelShape shape, Level level) {
+			this.hierarchy = hierarchy;
+			this.shape = shape;
+			this.level = level;
+		}
+
+		public HierarchySkeleton getHierarchy() {
+			return hierarchy;
+		}
+
+		public Level getLevel() {
+			return level;
+		}
+
+		public String getUniqueName() {
+			return shape.uniqueName;
+		}
+
+		public String getName() {
+			return shape.name;
+		}
+
+		public int getDepth() {
+			return shape.depth;
+		}
+
+		public Level.Type getLevelType() {
+			return shape.levelType;
+		}
+
+		/**
+		 * Asks the server on every call, which may run a count query.
+		 * @return The approximate number of members of the level, as
+		 * reported by the server
+		 */
+		public int getCardinality() {
+			return level.getCardinality();
+		}
+	}
+}
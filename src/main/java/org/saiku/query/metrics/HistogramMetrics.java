@@ -0,0 +1,56 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * {@link QueryMetrics} that keep a {@link LatencyHistogram} per phase in
+ * memory.
+ */
+public class HistogramMetrics implements QueryMetrics {
+
+	private final Map<QueryPhase, LatencyHistogram> histograms =
+			new EnumMap<QueryPhase, LatencyHistogram>(QueryPhase.class);
+
+	public HistogramMetrics() {
+		for (QueryPhase phase : QueryPhase.values()) {
+			histograms.put(phase, new LatencyHistogram());
+		}
+	}
+
+	public void record(QueryPhase phase, long nanos, boolean success) {
+		histograms.get(phase).record(nanos, success);
+	}
+
+	/**
+	 * @param phase The phase
+	 * @return The histogram of the phase
+	 */
+	public LatencyHistogram getHistogram(QueryPhase phase) {
+		return histograms.get(phase);
+	}
+
+	/**
+	 * Clears the histograms of all phases.
+	 */
+	public void reset() {
+		for (LatencyHistogram histogram : histograms.values()) {
+			histogram.reset();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * {@link HistogramMetrics} that are published over JMX, one MBean per
+ * phase named <code>&lt;domain&gt;:type=QueryMetrics,phase=&lt;phase&gt;</code>.
+ * <p>These are the default metrics of {@link org.saiku.query.Query}, in
+ * the domain <code>org.saiku.query</code>.
+ */
+public class JmxMetrics extends HistogramMetrics {
+
+	public static final String DEFAULT_DOMAIN = "org.saiku.query";
+
+	private final MBeanServer server;
+	private final List<ObjectName> names = new ArrayList<ObjectName>();
+
+	/**
+	 * Creates the metrics and registers their MBeans on the platform MBean
+	 * server. MBeans already registered under the same names are replaced.
+	 * @param domain The JMX domain
+	 * @throws JMException if the MBeans cannot be registered
+	 */
+	public JmxMetrics(String domain) throws JMException {
+		this(ManagementFactory.getPlatformMBeanServer(), domain);
+	}
+
+	public JmxMetrics(MBeanServer server, String domain) throws JMException {
+		this.server = server;
+		for (QueryPhase phase : QueryPhase.values()) {
+			ObjectName name = new ObjectName(domain + ":type=QueryMetrics,phase=" + phase.getMetricName());
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(new StandardMBean(new PhaseMetrics(getHistogram(phase)), PhaseMetricsMBean.class), name);
+			names.add(name);
+		}
+	}
+
+	/**
+	 * @return The names of the registered MBeans
+	 */
+	public List<ObjectName> getObjectNames() {
+		return names;
+	}
+
+	/**
+	 * Unregisters the MBeans of these metrics.
+	 */
+	public void unregister() {
+		for (ObjectName name : names) {
+			try {
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+			} catch (JMException e) {
+				// already gone
+			}
+		}
+	}
+
+	static class PhaseMetrics implements PhaseMetricsMBean {
+
+		private final LatencyHistogram histogram;
+
+		PhaseMetrics(LatencyHistogram histogram) {
+			this.histogram = histogram;
+		}
+
+		public long getCount() {
+			return histogram.getCount();
+		}
+
+		public long getErrors() {
+			return histogram.getErrors();
+		}
+
+		public double getTotalMillis() {
+			return histogram.getTotalNanos() / 1e6;
+		}
+
+		public double getMeanMillis() {
+			return histogram.getMeanNanos() / 1e6;
+		}
+
+		public double getP50Millis() {
+			return histogram.getPercentile(50) / 1e6;
+		}
+
+		public double getP95Millis() {
+			return histogram.getPercentile(95) / 1e6;
+		}
+
+		public double getP99Millis() {
+			return histogram.getPercentile(99) / 1e6;
+		}
+
+		public double getMaxMillis() {
+			return histogram.getMaxNanos() / 1e6;
+		}
+
+		public void reset() {
+			histogram.reset();
+		}
+	}
+}
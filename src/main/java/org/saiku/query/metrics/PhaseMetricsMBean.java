@@ -0,0 +1,43 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.metrics;
+
+/**
+ * JMX view of the timings of one query phase, in milliseconds.
+ *
+ * @see JmxMetrics
+ */
+public interface PhaseMetricsMBean {
+
+	public long getCount();
+
+	public long getErrors();
+
+	public double getTotalMillis();
+
+	public double getMeanMillis();
+
+	public double getP50Millis();
+
+	public double getP95Millis();
+
+	public double getP99Millis();
+
+	public double getMaxMillis();
+
+	public void reset();
+
+}
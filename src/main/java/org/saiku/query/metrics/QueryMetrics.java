@@ -0,0 +1,45 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.metrics;
+
+/**
+ * Receives the timings of the query lifecycle phases.
+ * <p>Implementations are called on the thread that runs the phase, from
+ * many threads concurrently, and must be cheap and thread-safe.
+ *
+ * @see org.saiku.query.Query#setDefaultMetrics(QueryMetrics)
+ * @see HistogramMetrics
+ * @see JmxMetrics
+ */
+public interface QueryMetrics {
+
+	/**
+	 * Metrics that discard all timings.
+	 */
+	public static final QueryMetrics NONE = new QueryMetrics() {
+		public void record(QueryPhase phase, long nanos, boolean success) {
+		}
+	};
+
+	/**
+	 * Records one run of a phase.
+	 * @param phase The phase
+	 * @param nanos How long the phase took, in nanoseconds
+	 * @param success false if the phase failed with an exception
+	 */
+	public void record(QueryPhase phase, long nanos, boolean success);
+
+}
@@ -0,0 +1,54 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.metrics;
+
+/**
+ * The phases of the query lifecycle that are timed by {@link QueryMetrics}.
+ */
+public enum QueryPhase {
+
+	/** Conversion of the query model into a select tree, including parameter resolution. */
+	CONVERT,
+
+	/** Resolution of parameter values to members, part of {@link #CONVERT}. */
+	RESOLVE_PARAMETER,
+
+	/** Unparsing of the select tree into MDX. */
+	UNPARSE,
+
+	/** Execution of the statement on the server, until the cell set is returned. */
+	EXECUTE,
+
+	/** Reading the cells of an executed cell set. */
+	FETCH;
+
+	/**
+	 * @return The name of the phase as used in metric names, e.g. "resolveParameter"
+	 */
+	public String getMetricName() {
+		StringBuilder sb = new StringBuilder();
+		boolean upper = false;
+		for (char c : name().toLowerCase().toCharArray()) {
+			if (c == '_') {
+				upper = true;
+			} else {
+				sb.append(upper ? Character.toUpperCase(c) : c);
+				upper = false;
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,100 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.result;
+
+/**
+ * Forward-only cursor over the cells of a {@link MaterializedResult} in
+ * row-major order. The cursor is reused for every cell and does not
+ * allocate while moving.
+ * <pre>
+ * CellCursor cursor = result.cursor();
+ * while (cursor.next()) {
+ *     write(cursor.getRow(), cursor.getColumn(), cursor.getFormattedValue());
+ * }
+ * </pre>
+ */
+public final class CellCursor {
+
+	private final MaterializedResult result;
+	private final int columnCount;
+	private final int cellCount;
+	private int ordinal = -1;
+	private int row;
+	private int column = -1;
+
+	CellCursor(MaterializedResult result) {
+		this.result = result;
+		this.columnCount = result.getColumnCount();
+		this.cellCount = result.getCellCount();
+	}
+
+	/**
+	 * Moves to the next cell.
+	 * @return false if there are no more cells
+	 */
+	public boolean next() {
+		if (ordinal + 1 >= cellCount) {
+			ordinal = cellCount;
+			return false;
+		}
+		ordinal++;
+		if (++column == columnCount) {
+			column = 0;
+			row++;
+		}
+		return true;
+	}
+
+	public int getOrdinal() {
+		checkPosition();
+		return ordinal;
+	}
+
+	/**
+	 * Returns the row of the current cell. For results with more than two
+	 * axes, rows continue across pages.
+	 */
+	public int getRow() {
+		checkPosition();
+		return row;
+	}
+
+	public int getColumn() {
+		checkPosition();
+		return column;
+	}
+
+	public boolean isEmpty() {
+		checkPosition();
+		return result.isEmpty(ordinal);
+	}
+
+	public double getDoubleValue() {
+		checkPosition();
+		return result.getDoubleValue(ordinal);
+	}
+
+	public String getFormattedValue() {
+		checkPosition();
+		return result.getFormattedValue(ordinal);
+	}
+
+	private void checkPosition() {
+		if (ordinal < 0 || ordinal >= cellCount) {
+			throw new IllegalStateException("Cursor is not on a cell");
+		}
+	}
+}
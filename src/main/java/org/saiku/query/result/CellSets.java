@@ -0,0 +1,96 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.result;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import org.olap4j.Cell;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.saiku.query.LeasedCellSet;
+
+/**
+ * Helpers for reading cell sets by ordinal.
+ */
+public final class CellSets {
+
+	private CellSets() {
+	}
+
+	/**
+	 * Returns the number of cells of a cell set, not counting the filter
+	 * axis.
+	 */
+	public static int getCellCount(CellSet cellSet) {
+		List<CellSetAxis> axes = cellSet.getAxes();
+		long cellCount = 1;
+		for (int i = 0; i < axes.size(); i++) {
+			cellCount *= axes.get(i).getPositionCount();
+			if (cellCount > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException(
+						"Cell set has more than " + Integer.MAX_VALUE + " cells");
+			}
+		}
+		return (int) cellCount;
+	}
+
+	/**
+	 * Closes a cell set and its statement, ignoring errors.
+	 * @param cellSet The cell set, can be null
+	 */
+	public static void closeQuietly(CellSet cellSet) {
+		if (cellSet != null) {
+			try {
+				try {
+					cellSet.close();
+				} finally {
+					cellSet.getStatement().close();
+				}
+			} catch (SQLException e) {
+				// ignore, the cells have been read or are not needed
+			}
+		}
+	}
+
+	/**
+	 * Walks all cells of a cell set in row-major order. Cells are read by
+	 * ordinal, so no coordinate lists are created; the driver may still
+	 * create a {@link Cell} per call. To walk a result repeatedly, or
+	 * without any allocation, materialize it first.
+	 * @param cellSet The cell set
+	 * @param visitor The visitor
+	 */
+	public static void visit(CellSet cellSet, CellVisitor visitor) {
+		CellSet cells = LeasedCellSet.getDelegate(cellSet);
+		int cellCount = getCellCount(cells);
+		for (int ordinal = 0; ordinal < cellCount; ordinal++) {
+			Cell cell = cells.getCell(ordinal);
+			if (cell.isError()) {
+				visitor.visit(ordinal, true, Double.NaN, cell.getErrorText());
+			} else if (cell.isNull()) {
+				visitor.visit(ordinal, true, Double.NaN, null);
+			} else {
+				Object value = cell.getValue();
+				visitor.visit(
+						ordinal,
+						false,
+						value instanceof Number ? ((Number) value).doubleValue() : Double.NaN,
+						cell.getFormattedValue());
+			}
+		}
+	}
+}
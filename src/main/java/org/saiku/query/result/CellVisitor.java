@@ -0,0 +1,40 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.result;
+
+/**
+ * Callback for walking the cells of a result in row-major order, i.e.
+ * the column varies fastest. Implementations are called once per cell
+ * and receive primitives only. Walking a {@link MaterializedResult}
+ * allocates nothing per cell; walking a cell set still reads one
+ * {@link org.olap4j.Cell} per cell from the driver.
+ * @see MaterializedResult#visit(CellVisitor)
+ * @see CellSets#visit(org.olap4j.CellSet, CellVisitor)
+ */
+public interface CellVisitor {
+
+	/**
+	 * Visits a cell.
+	 * @param ordinal The cell ordinal
+	 * @param empty Whether the cell is empty or has an error
+	 * @param value The numeric value, {@link Double#NaN} if the cell is
+	 * empty or not numeric
+	 * @param formattedValue The formatted value, the error text if the cell
+	 * has an error, or null if the cell is empty
+	 */
+	void visit(int ordinal, boolean empty, double value, String formattedValue);
+
+}
@@ -0,0 +1,613 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.result;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.olap4j.Cell;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.olap4j.OlapException;
+import org.olap4j.Position;
+import org.olap4j.metadata.Member;
+import org.saiku.query.LeasedCellSet;
+
+/**
+ * Immutable copy of a {@link CellSet} that is detached from the statement
+ * and connection it was produced by, so it can be cached and shared
+ * between threads.
+ * <p>The cells are stored column-wise in primitive arrays: numeric values
+ * in a <code>double[]</code> with a bitmap of empty cells, formatted values
+ * as codes into a dictionary of distinct strings. Axis positions are
+ * stored as tuples of indexes into a dictionary of the distinct members.
+ * Values that are not numeric (e.g. strings) are kept as objects.
+ * <p>Cells are addressed by their ordinal, following the olap4j convention
+ * that the coordinate of the first axis varies fastest, or by row and
+ * column. The filter axis is not part of the result.
+ */
+public final class MaterializedResult {
+
+	private static final int NO_VALUE = -1;
+
+	private final ResultMember[] members;
+	private final int[][] tuples;
+	private final int[] tupleWidths;
+	private final int[] axisSizes;
+
+	private final int cellCount;
+	private final double[] values;
+	private final long[] empty;
+	private final Object[] objectValues;
+	private final String[] formatDictionary;
+	private final int[] formatCodes;
+
+	private MaterializedResult(
+			ResultMember[] members,
+			int[][] tuples,
+			int[] tupleWidths,
+			int[] axisSizes,
+			int cellCount,
+			double[] values,
+			long[] empty,
+			Object[] objectValues,
+			String[] formatDictionary,
+			int[] formatCodes)
+	{
+		this.members = members;
+		this.tuples = tuples;
+		this.tupleWidths = tupleWidths;
+		this.axisSizes = axisSizes;
+		this.cellCount = cellCount;
+		this.values = values;
+		this.empty = empty;
+		this.objectValues = objectValues;
+		this.formatDictionary = formatDictionary;
+		this.formatCodes = formatCodes;
+	}
+
+	/**
+	 * Copies all positions and cells of the given cell set.
+	 * @param cellSet The cell set to copy
+	 * @return the detached result
+	 * @throws OlapException if the cell set cannot be read
+	 */
+	public static MaterializedResult of(CellSet cellSet) throws OlapException {
+		CellSet cells = LeasedCellSet.getDelegate(cellSet);
+		Map<String, Integer> memberIndex = new HashMap<String, Integer>();
+		List<ResultMember> memberList = new ArrayList<ResultMember>();
+		List<CellSetAxis> axes = cells.getAxes();
+		int[][] tuples = new int[axes.size()][];
+		int[] tupleWidths = new int[axes.size()];
+		int[] axisSizes = new int[axes.size()];
+		long totalCells = 1;
+		for (int i = 0; i < axes.size(); i++) {
+			List<Position> positions = axes.get(i).getPositions();
+			int width = positions.isEmpty() ? 0 : positions.get(0).getMembers().size();
+			int[] axisTuples = new int[positions.size() * width];
+			for (int p = 0; p < positions.size(); p++) {
+				List<Member> tuple = positions.get(p).getMembers();
+				for (int m = 0; m < width; m++) {
+					Member member = tuple.get(m);
+					Integer index = memberIndex.get(member.getUniqueName());
+					if (index == null) {
+						index = memberList.size();
+						memberList.add(ResultMember.of(member));
+						memberIndex.put(member.getUniqueName(), index);
+					}
+					axisTuples[p * width + m] = index;
+				}
+			}
+			tuples[i] = axisTuples;
+			tupleWidths[i] = width;
+			axisSizes[i] = positions.size();
+			totalCells *= positions.size();
+			if (totalCells > Integer.MAX_VALUE) {
+				throw new OlapException(
+						"Cell set has too many cells to materialize: axis " + i
+						+ " brings the count to " + totalCells);
+			}
+		}
+
+		int cellCount = (int) totalCells;
+		double[] values = new double[cellCount];
+		long[] empty = new long[(cellCount + 63) >>> 6];
+		Object[] objectValues = null;
+		int[] formatCodes = new int[cellCount];
+		Map<String, Integer> formatIndex = new HashMap<String, Integer>();
+		List<String> formatList = new ArrayList<String>();
+		for (int ordinal = 0; ordinal < cellCount; ordinal++) {
+			Cell cell = cells.getCell(ordinal);
+			String formatted = null;
+			if (cell.isError()) {
+				empty[ordinal >>> 6] |= 1L << ordinal;
+				formatted = cell.getErrorText();
+			} else if (cell.isNull()) {
+				empty[ordinal >>> 6] |= 1L << ordinal;
+			} else {
+				Object value = cell.getValue();
+				if (value instanceof Number) {
+					values[ordinal] = ((Number) value).doubleValue();
+				} else {
+					if (objectValues == null) {
+						objectValues = new Object[cellCount];
+					}
+					objectValues[ordinal] = value;
+					values[ordinal] = Double.NaN;
+				}
+				formatted = cell.getFormattedValue();
+			}
+			if (formatted == null) {
+				formatCodes[ordinal] = NO_VALUE;
+			} else {
+				Integer code = formatIndex.get(formatted);
+				if (code == null) {
+					code = formatList.size();
+					formatList.add(formatted);
+					formatIndex.put(formatted, code);
+				}
+				formatCodes[ordinal] = code;
+			}
+		}
+		return new MaterializedResult(
+				memberList.toArray(new ResultMember[memberList.size()]),
+				tuples,
+				tupleWidths,
+				axisSizes,
+				cellCount,
+				values,
+				empty,
+				objectValues,
+				formatList.toArray(new String[formatList.size()]),
+				formatCodes);
+	}
+
+	public int getAxisCount() {
+		return axisSizes.length;
+	}
+
+	public int getPositionCount(int axis) {
+		return axisSizes[axis];
+	}
+
+	/**
+	 * Returns the members of a position on an axis.
+	 * @param axis The axis ordinal, 0 for columns
+	 * @param position The position on the axis
+	 * @return an unmodifiable list of the members of the position
+	 */
+	public List<ResultMember> getPosition(int axis, int position) {
+		if (position < 0 || position >= axisSizes[axis]) {
+			throw new IndexOutOfBoundsException("Position " + position + " out of range for axis " + axis);
+		}
+		int width = tupleWidths[axis];
+		ResultMember[] tuple = new ResultMember[width];
+		for (int m = 0; m < width; m++) {
+			tuple[m] = members[tuples[axis][position * width + m]];
+		}
+		return Arrays.asList(tuple);
+	}
+
+	/**
+	 * Returns a member of a position without creating the tuple.
+	 * @param axis The axis ordinal, 0 for columns
+	 * @param position The position on the axis
+	 * @param index The index of the member within the tuple
+	 * @return the member
+	 */
+	public ResultMember getMember(int axis, int position, int index) {
+		int width = tupleWidths[axis];
+		if (index < 0 || index >= width) {
+			throw new IndexOutOfBoundsException("Member " + index + " out of range for axis " + axis);
+		}
+		return members[tuples[axis][position * width + index]];
+	}
+
+	/**
+	 * Returns the number of members in the tuples of an axis.
+	 */
+	public int getTupleWidth(int axis) {
+		return tupleWidths[axis];
+	}
+
+	public int getCellCount() {
+		return cellCount;
+	}
+
+	/**
+	 * Returns the number of rows, which is the number of positions on the
+	 * rows axis, or 1 if the result has less than two axes.
+	 */
+	public int getRowCount() {
+		return axisSizes.length > 1 ? axisSizes[1] : 1;
+	}
+
+	/**
+	 * Returns the number of columns, which is the number of positions on the
+	 * columns axis, or 1 if the result has no axes.
+	 */
+	public int getColumnCount() {
+		return axisSizes.length > 0 ? axisSizes[0] : 1;
+	}
+
+	/**
+	 * Returns the ordinal of the cell at the given coordinates.
+	 * @param coordinates One position per axis, starting with the columns
+	 * @return the cell ordinal
+	 */
+	public int getOrdinal(int... coordinates) {
+		if (coordinates.length != axisSizes.length) {
+			throw new IllegalArgumentException(
+					"Expected " + axisSizes.length + " coordinates, got " + coordinates.length);
+		}
+		int ordinal = 0;
+		int factor = 1;
+		for (int i = 0; i < coordinates.length; i++) {
+			if (coordinates[i] < 0 || coordinates[i] >= axisSizes[i]) {
+				throw new IndexOutOfBoundsException(
+						"Coordinate " + coordinates[i] + " out of range for axis " + i);
+			}
+			ordinal += coordinates[i] * factor;
+			factor *= axisSizes[i];
+		}
+		return ordinal;
+	}
+
+	private int toOrdinal(int row, int column) {
+		int columns = getColumnCount();
+		if (row < 0 || row >= getRowCount() || column < 0 || column >= columns || axisSizes.length > 2) {
+			throw new IndexOutOfBoundsException("Cell (" + row + ", " + column + ") out of range");
+		}
+		return row * columns + column;
+	}
+
+	/**
+	 * Returns the value of a cell. Numeric values are returned as Double.
+	 * @param ordinal The cell ordinal
+	 * @return the value, or null if the cell is empty
+	 */
+	public Object getValue(int ordinal) {
+		if (isEmpty(ordinal)) {
+			return null;
+		}
+		if (objectValues != null && objectValues[ordinal] != null) {
+			return objectValues[ordinal];
+		}
+		return Double.valueOf(values[ordinal]);
+	}
+
+	public String getFormattedValue(int ordinal) {
+		int code = formatCodes[ordinal];
+		return code == NO_VALUE ? null : formatDictionary[code];
+	}
+
+	public String getFormattedValue(int row, int column) {
+		return getFormattedValue(toOrdinal(row, column));
+	}
+
+	public boolean isEmpty(int ordinal) {
+		if (ordinal < 0 || ordinal >= cellCount) {
+			throw new IndexOutOfBoundsException("Cell " + ordinal + " out of range");
+		}
+		return (empty[ordinal >>> 6] & (1L << ordinal)) != 0;
+	}
+
+	public boolean isEmpty(int row, int column) {
+		return isEmpty(toOrdinal(row, column));
+	}
+
+	/**
+	 * Returns the numeric value of a cell.
+	 * @param ordinal The cell ordinal
+	 * @return the value, or {@link Double#NaN} if the cell is empty or
+	 * not numeric
+	 */
+	public double getDoubleValue(int ordinal) {
+		return isEmpty(ordinal) ? Double.NaN : values[ordinal];
+	}
+
+	public double getDoubleValue(int row, int column) {
+		return getDoubleValue(toOrdinal(row, column));
+	}
+
+	/**
+	 * Returns a copy of this result with the positions of a drill down
+	 * result merged in, without executing anything.
+	 * <p>Each new position of the drilled axis is placed after the position
+	 * that has the expanded member instead of the child at the drilled
+	 * tuple index, following the positions already inserted there.
+	 * Positions that exist in this result already are kept. Positions of
+	 * the other axis that only occur in the drill down result, e.g. because
+	 * of NON EMPTY, are appended; their cells are empty for the existing
+	 * positions.
+	 * @param delta The result of the drill down query
+	 * @param axis The drilled axis, 0 for columns and 1 for rows
+	 * @param tupleIndex The index of the drilled hierarchy in the tuples
+	 * @param parentUniqueName The unique name of the expanded member
+	 * @return The merged result
+	 */
+	public MaterializedResult merge(MaterializedResult delta, int axis, int tupleIndex, String parentUniqueName) {
+		int axisCount = axisSizes.length;
+		if (axisCount == 0 || axisCount > 2 || delta.axisSizes.length != axisCount) {
+			throw new IllegalArgumentException("Can only merge results with the same one or two axes");
+		}
+		if (axis < 0 || axis >= axisCount) {
+			throw new IndexOutOfBoundsException("Axis " + axis + " out of range");
+		}
+		int other = axisCount == 2 ? 1 - axis : -1;
+		int[] widths = new int[axisCount];
+		for (int i = 0; i < axisCount; i++) {
+			widths[i] = axisSizes[i] > 0 ? tupleWidths[i] : delta.tupleWidths[i];
+			if (axisSizes[i] > 0 && delta.axisSizes[i] > 0 && tupleWidths[i] != delta.tupleWidths[i]) {
+				throw new IllegalArgumentException("Tuples of axis " + i + " differ in size");
+			}
+		}
+		if (tupleIndex < 0 || tupleIndex >= widths[axis]) {
+			throw new IndexOutOfBoundsException("Tuple index " + tupleIndex + " out of range");
+		}
+
+		// members of this result keep their index
+		List<ResultMember> memberList = new ArrayList<ResultMember>(Arrays.asList(members));
+		Map<String, Integer> memberIndex = new HashMap<String, Integer>();
+		for (int i = 0; i < members.length; i++) {
+			memberIndex.put(members[i].getUniqueName(), i);
+		}
+		int[] deltaMembers = new int[delta.members.length];
+		for (int i = 0; i < delta.members.length; i++) {
+			Integer index = memberIndex.get(delta.members[i].getUniqueName());
+			if (index == null) {
+				index = memberList.size();
+				memberList.add(delta.members[i]);
+				memberIndex.put(delta.members[i].getUniqueName(), index);
+			}
+			deltaMembers[i] = index;
+		}
+
+		int[][] mergedTuples = new int[axisCount][];
+		int[] mergedSizes = new int[axisCount];
+
+		// other axis: union of the positions, existing ones first
+		int otherOldSize = 1;
+		int[] otherToDelta = new int[] { 0 };
+		if (other >= 0) {
+			otherOldSize = axisSizes[other];
+			Map<String, Integer> otherIndex = new HashMap<String, Integer>();
+			for (int p = 0; p < otherOldSize; p++) {
+				otherIndex.put(tupleKey(other, p, -1, null), p);
+			}
+			int width = widths[other];
+			int[] buffer = Arrays.copyOf(tuples[other], (otherOldSize + delta.axisSizes[other]) * width);
+			int size = otherOldSize;
+			int[] deltaToOther = new int[delta.axisSizes[other]];
+			for (int d = 0; d < delta.axisSizes[other]; d++) {
+				Integer index = otherIndex.get(delta.tupleKey(other, d, -1, null));
+				if (index == null) {
+					index = size++;
+					for (int m = 0; m < width; m++) {
+						buffer[index * width + m] = deltaMembers[delta.tuples[other][d * width + m]];
+					}
+				}
+				deltaToOther[d] = index;
+			}
+			mergedTuples[other] = Arrays.copyOf(buffer, size * width);
+			mergedSizes[other] = size;
+			otherToDelta = new int[size];
+			Arrays.fill(otherToDelta, -1);
+			for (int d = 0; d < deltaToOther.length; d++) {
+				otherToDelta[deltaToOther[d]] = d;
+			}
+		}
+
+		// drilled axis: children after their parent position
+		Map<String, Integer> axisIndex = new HashMap<String, Integer>();
+		for (int p = 0; p < axisSizes[axis]; p++) {
+			axisIndex.put(tupleKey(axis, p, -1, null), p);
+		}
+		Map<String, List<Integer>> children = new HashMap<String, List<Integer>>();
+		List<Integer> orphans = new ArrayList<Integer>();
+		int added = 0;
+		for (int q = 0; q < delta.axisSizes[axis]; q++) {
+			if (axisIndex.containsKey(delta.tupleKey(axis, q, -1, null))) {
+				continue;
+			}
+			String parentKey = delta.tupleKey(axis, q, tupleIndex, parentUniqueName);
+			if (axisIndex.containsKey(parentKey)) {
+				List<Integer> siblings = children.get(parentKey);
+				if (siblings == null) {
+					siblings = new ArrayList<Integer>();
+					children.put(parentKey, siblings);
+				}
+				siblings.add(q);
+			} else {
+				orphans.add(q);
+			}
+			added++;
+		}
+		// sources of the merged positions, n for position n of this result
+		// and -(n + 1) for position n of the delta
+		int[] sources = new int[axisSizes[axis] + added];
+		int n = 0;
+		for (int p = 0; p < axisSizes[axis]; p++) {
+			sources[n++] = p;
+			List<Integer> siblings = children.get(tupleKey(axis, p, -1, null));
+			if (siblings != null) {
+				for (int q : siblings) {
+					sources[n++] = -(q + 1);
+				}
+			}
+		}
+		for (int q : orphans) {
+			sources[n++] = -(q + 1);
+		}
+		int width = widths[axis];
+		int[] axisTuples = new int[sources.length * width];
+		for (int i = 0; i < sources.length; i++) {
+			for (int m = 0; m < width; m++) {
+				axisTuples[i * width + m] = sources[i] >= 0
+						? tuples[axis][sources[i] * width + m]
+						: deltaMembers[delta.tuples[axis][(-sources[i] - 1) * width + m]];
+			}
+		}
+		mergedTuples[axis] = axisTuples;
+		mergedSizes[axis] = sources.length;
+
+		// formatted values of the delta are added to the dictionary
+		List<String> formatList = new ArrayList<String>(Arrays.asList(formatDictionary));
+		Map<String, Integer> formatIndex = new HashMap<String, Integer>();
+		for (int i = 0; i < formatDictionary.length; i++) {
+			formatIndex.put(formatDictionary[i], i);
+		}
+		int[] deltaFormats = new int[delta.formatDictionary.length];
+		for (int i = 0; i < delta.formatDictionary.length; i++) {
+			Integer code = formatIndex.get(delta.formatDictionary[i]);
+			if (code == null) {
+				code = formatList.size();
+				formatList.add(delta.formatDictionary[i]);
+				formatIndex.put(delta.formatDictionary[i], code);
+			}
+			deltaFormats[i] = code;
+		}
+
+		int otherSize = other >= 0 ? mergedSizes[other] : 1;
+		long totalCells = (long) sources.length * otherSize;
+		if (totalCells > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					"Merged result would have " + totalCells + " cells");
+		}
+		int cellCount = (int) totalCells;
+		double[] mergedValues = new double[cellCount];
+		long[] mergedEmpty = new long[(cellCount + 63) >>> 6];
+		Object[] mergedObjects = objectValues != null || delta.objectValues != null ? new Object[cellCount] : null;
+		int[] mergedFormats = new int[cellCount];
+		for (int a = 0; a < sources.length; a++) {
+			for (int o = 0; o < otherSize; o++) {
+				int target = toOrdinal(axis, a, o, mergedSizes);
+				MaterializedResult source = null;
+				int ordinal = -1;
+				if (sources[a] >= 0 && o < otherOldSize) {
+					source = this;
+					ordinal = toOrdinal(axis, sources[a], o, axisSizes);
+				} else if (sources[a] < 0 && otherToDelta[o] >= 0) {
+					source = delta;
+					ordinal = toOrdinal(axis, -sources[a] - 1, otherToDelta[o], delta.axisSizes);
+				}
+				if (source == null || source.isEmpty(ordinal)) {
+					mergedEmpty[target >>> 6] |= 1L << target;
+				}
+				if (source == null) {
+					mergedFormats[target] = NO_VALUE;
+					continue;
+				}
+				mergedValues[target] = source.values[ordinal];
+				if (source.objectValues != null) {
+					mergedObjects[target] = source.objectValues[ordinal];
+				}
+				int code = source.formatCodes[ordinal];
+				mergedFormats[target] = code == NO_VALUE || source == this ? code : deltaFormats[code];
+			}
+		}
+		return new MaterializedResult(
+				memberList.toArray(new ResultMember[memberList.size()]),
+				mergedTuples,
+				widths,
+				mergedSizes,
+				cellCount,
+				mergedValues,
+				mergedEmpty,
+				mergedObjects,
+				formatList.toArray(new String[formatList.size()]),
+				mergedFormats);
+	}
+
+	private static int toOrdinal(int axis, int position, int otherPosition, int[] sizes) {
+		if (sizes.length == 1) {
+			return position;
+		}
+		return axis == 0 ? position + otherPosition * sizes[0] : otherPosition + position * sizes[0];
+	}
+
+	/*
+	 * Key of a position, optionally with the member at replaceIndex
+	 * replaced.
+	 */
+	private String tupleKey(int axis, int position, int replaceIndex, String replacement) {
+		int width = tupleWidths[axis];
+		StringBuilder key = new StringBuilder();
+		for (int m = 0; m < width; m++) {
+			if (m > 0) {
+				key.append('\u0000');
+			}
+			key.append(m == replaceIndex
+					? replacement
+					: members[tuples[axis][position * width + m]].getUniqueName());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Walks all cells in row-major order without allocating per cell.
+	 * @param visitor The visitor
+	 */
+	public void visit(CellVisitor visitor) {
+		for (int ordinal = 0; ordinal < cellCount; ordinal++) {
+			boolean isEmpty = (empty[ordinal >>> 6] & (1L << ordinal)) != 0;
+			int code = formatCodes[ordinal];
+			visitor.visit(
+					ordinal,
+					isEmpty,
+					isEmpty ? Double.NaN : values[ordinal],
+					code == NO_VALUE ? null : formatDictionary[code]);
+		}
+	}
+
+	/**
+	 * Returns a cursor positioned before the first cell.
+	 */
+	public CellCursor cursor() {
+		return new CellCursor(this);
+	}
+
+	/**
+	 * Returns an estimate of the heap this result occupies, in bytes.
+	 */
+	public long getEstimatedSize() {
+		long size = 128;
+		size += 8L * cellCount + 4L * cellCount + 8L * empty.length;
+		if (objectValues != null) {
+			size += 8L * cellCount;
+			for (Object value : objectValues) {
+				if (value instanceof String) {
+					size += 40 + 2 * ((String) value).length();
+				} else if (value != null) {
+					size += 24;
+				}
+			}
+		}
+		for (String formatted : formatDictionary) {
+			size += 48 + 2 * formatted.length();
+		}
+		for (ResultMember member : members) {
+			size += 64 + 2 * (member.getUniqueName().length() + member.getCaption().length());
+		}
+		for (int[] axisTuples : tuples) {
+			size += 16 + 4L * axisTuples.length;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,199 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.result;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.olap4j.OlapException;
+import org.saiku.query.Query;
+
+/**
+ * Cache of query results in front of {@link Query#execute()}.
+ * <p>Results are stored as {@link MaterializedResult}s, keyed by
+ * {@link ResultKey}. Entries expire after a fixed time to live, and the
+ * least recently used entries are evicted once the estimated size of all
+ * cached results exceeds the maximum weight.
+ * <p>This class is thread-safe. Concurrent misses for the same key are
+ * coalesced into a single execution, see {@link SingleFlight}.
+ */
+public class ResultCache {
+
+	private final long maxWeight;
+	private final long ttlNanos;
+	private final LinkedHashMap<ResultKey, Entry> entries =
+			new LinkedHashMap<ResultKey, Entry>(16, 0.75f, true);
+	private long weight = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final SingleFlight singleFlight = new SingleFlight();
+
+	/**
+	 * @param maxWeight The maximum estimated size of all cached results,
+	 * in bytes
+	 * @param ttl How long a result stays valid
+	 * @param unit The unit of the time to live
+	 */
+	public ResultCache(long maxWeight, long ttl, TimeUnit unit) {
+		if (maxWeight <= 0) {
+			throw new IllegalArgumentException("Maximum weight must be positive: " + maxWeight);
+		}
+		this.maxWeight = maxWeight;
+		this.ttlNanos = unit.toNanos(ttl);
+	}
+
+	/**
+	 * Returns the cached result of the query, or executes the query and
+	 * caches its result.
+	 * @param query The query to execute
+	 * @return the result of the query
+	 * @throws OlapException if the query cannot be executed
+	 */
+	public MaterializedResult execute(Query query) throws OlapException {
+		ResultKey key = ResultKey.of(query);
+		MaterializedResult result = get(key);
+		if (result == null) {
+			result = singleFlight.execute(key, query);
+			put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the executions of missed queries, with the number of
+	 * executions saved by coalescing concurrent misses.
+	 */
+	public SingleFlight getSingleFlight() {
+		return singleFlight;
+	}
+
+	/**
+	 * Returns the cached result for the key, or null if there is no valid
+	 * entry. Counts as a hit or a miss.
+	 */
+	public MaterializedResult get(ResultKey key) {
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expires - System.nanoTime() <= 0) {
+				remove(key, entry);
+				evictions.incrementAndGet();
+				entry = null;
+			}
+			if (entry == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return entry.result;
+		}
+	}
+
+	/**
+	 * Caches a result. Results larger than the maximum weight are not cached.
+	 */
+	public void put(ResultKey key, MaterializedResult result) {
+		long resultWeight = result.getEstimatedSize();
+		if (resultWeight > maxWeight) {
+			return;
+		}
+		Entry entry = new Entry(result, resultWeight, System.nanoTime() + ttlNanos);
+		synchronized (entries) {
+			Entry old = entries.put(key, entry);
+			if (old != null) {
+				weight -= old.weight;
+			}
+			weight += resultWeight;
+			Iterator<Map.Entry<ResultKey, Entry>> it = entries.entrySet().iterator();
+			while (weight > maxWeight && it.hasNext()) {
+				Map.Entry<ResultKey, Entry> eldest = it.next();
+				it.remove();
+				weight -= eldest.getValue().weight;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	public void invalidate(ResultKey key) {
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				remove(key, entry);
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			entries.clear();
+			weight = 0;
+		}
+	}
+
+	private void remove(ResultKey key, Entry entry) {
+		entries.remove(key);
+		weight -= entry.weight;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Returns the estimated size of all cached results, in bytes.
+	 */
+	public long getWeight() {
+		synchronized (entries) {
+			return weight;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ResultCache[size=" + size() + ", weight=" + getWeight() + ", hits=" + hits
+				+ ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+
+	private static final class Entry {
+		private final MaterializedResult result;
+		private final long weight;
+		private final long expires;
+
+		private Entry(MaterializedResult result, long weight, long expires) {
+			this.result = result;
+			this.weight = weight;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.result;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.olap4j.OlapException;
+import org.saiku.query.Query;
+import org.saiku.query.metadata.CubeSkeleton;
+
+/**
+ * Identifies the result of a query execution: the cube it runs against
+ * (connection URL, catalog, schema and cube), the canonical MDX, the
+ * parameter values and the role the query is executed with.
+ */
+public final class ResultKey {
+
+	private final String cube;
+	private final String mdx;
+	private final Map<String, String> parameters;
+	private final String role;
+	private final int hashCode;
+
+	/**
+	 * @param cube The identity of the cube, see {@link CubeSkeleton#getIdentity(org.olap4j.metadata.Cube)}
+	 * @param mdx The canonical MDX
+	 * @param parameters The parameter values
+	 * @param role The role, can be null
+	 */
+	public ResultKey(String cube, String mdx, Map<String, String> parameters, String role) {
+		this.cube = cube;
+		this.mdx = mdx;
+		this.parameters = new TreeMap<String, String>(parameters);
+		this.role = role;
+		int result = cube.hashCode();
+		result = 31 * result + mdx.hashCode();
+		result = 31 * result + this.parameters.hashCode();
+		result = 31 * result + (role == null ? 0 : role.hashCode());
+		this.hashCode = result;
+	}
+
+	/**
+	 * Creates the key for executing the query in its current state.
+	 * @param query The query
+	 * @return the key of the query's result
+	 * @throws OlapException if the MDX cannot be generated
+	 */
+	public static ResultKey of(Query query) throws OlapException {
+		return new ResultKey(
+				CubeSkeleton.getIdentity(query.getCube()),
+				query.getCanonicalMdx().getMdx(),
+				query.getParameters(),
+				query.getConnection().getRoleName());
+	}
+
+	public String getCube() {
+		return cube;
+	}
+
+	public String getMdx() {
+		return mdx;
+	}
+
+	public String getRole() {
+		return role;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		ResultKey other = (ResultKey) obj;
+		return hashCode == other.hashCode
+				&& cube.equals(other.cube)
+				&& mdx.equals(other.mdx)
+				&& parameters.equals(other.parameters)
+				&& (role == null ? other.role == null : role.equals(other.role));
+	}
+
+	@Override
+	public String toString() {
+		return "ResultKey[cube=" + cube + ", role=" + role + ", parameters=" + parameters + ", mdx=" + mdx + "]";
+	}
+}
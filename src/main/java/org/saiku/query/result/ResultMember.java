@@ -0,0 +1,102 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.result;
+
+import org.olap4j.metadata.Member;
+
+/**
+ * Immutable copy of the properties of a member on a result axis that are
+ * needed for rendering results. It holds no reference to the olap4j
+ * metadata or connection.
+ */
+public final class ResultMember {
+
+	private final String uniqueName;
+	private final String name;
+	private final String caption;
+	private final String levelUniqueName;
+	private final String hierarchyUniqueName;
+	private final int depth;
+
+	public ResultMember(
+			String uniqueName,
+			String name,
+			String caption,
+			String levelUniqueName,
+			String hierarchyUniqueName,
+			int depth)
+	{
+		this.uniqueName = uniqueName;
+		this.name = name;
+		this.caption = caption;
+		this.levelUniqueName = levelUniqueName;
+		this.hierarchyUniqueName = hierarchyUniqueName;
+		this.depth = depth;
+	}
+
+	public static ResultMember of(Member member) {
+		return new ResultMember(
+				member.getUniqueName(),
+				member.getName(),
+				member.getCaption(),
+				member.getLevel().getUniqueName(),
+				member.getHierarchy().getUniqueName(),
+				member.getDepth());
+	}
+
+	public String getUniqueName() {
+		return uniqueName;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getCaption() {
+		return caption;
+	}
+
+	public String getLevelUniqueName() {
+		return levelUniqueName;
+	}
+
+	public String getHierarchyUniqueName() {
+		return hierarchyUniqueName;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public int hashCode() {
+		return uniqueName.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		return uniqueName.equals(((ResultMember) obj).uniqueName);
+	}
+
+	@Override
+	public String toString() {
+		return uniqueName;
+	}
+}
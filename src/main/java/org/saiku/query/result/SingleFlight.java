@@ -0,0 +1,136 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query.result;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.olap4j.CellSet;
+import org.olap4j.OlapException;
+import org.saiku.query.Query;
+
+/**
+ * Coalesces concurrent executions of identical queries. While a query is
+ * executing, callers executing a query with the same {@link ResultKey}
+ * (cube, canonical MDX, parameters and role) wait for that execution
+ * instead of starting their own, and all of them receive the same
+ * detached result. Identical MDX against different connections or
+ * catalogs is never coalesced.
+ * <p>Nothing is kept once an execution completes, use a
+ * {@link ResultCache} to reuse results afterwards.
+ * <p>This class is thread-safe.
+ */
+public class SingleFlight {
+
+	private final ConcurrentMap<ResultKey, CompletableFuture<MaterializedResult>> inFlight =
+			new ConcurrentHashMap<ResultKey, CompletableFuture<MaterializedResult>>();
+
+	private final AtomicLong executions = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Executes the query, or waits for an identical execution in progress.
+	 * @param query The query to execute
+	 * @return the result of the query
+	 * @throws OlapException if the query cannot be executed
+	 */
+	public MaterializedResult execute(Query query) throws OlapException {
+		return execute(ResultKey.of(query), query);
+	}
+
+	/**
+	 * Executes the query for the given key, or waits for the execution in
+	 * progress for that key.
+	 * @param key The key of the query's result
+	 * @param query The query to execute
+	 * @return the result of the query
+	 * @throws OlapException if the query cannot be executed
+	 */
+	public MaterializedResult execute(ResultKey key, Query query) throws OlapException {
+		CompletableFuture<MaterializedResult> future = new CompletableFuture<MaterializedResult>();
+		CompletableFuture<MaterializedResult> running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			coalesced.incrementAndGet();
+			return await(running);
+		}
+		executions.incrementAndGet();
+		try {
+			CellSet cellSet = query.execute();
+			MaterializedResult result;
+			try {
+				result = MaterializedResult.of(cellSet);
+			} finally {
+				CellSets.closeQuietly(cellSet);
+			}
+			future.complete(result);
+			return result;
+		} catch (OlapException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} catch (Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+	private static MaterializedResult await(CompletableFuture<MaterializedResult> running) throws OlapException {
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OlapException("Interrupted while waiting for a running execution", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof OlapException) {
+				throw new OlapException(cause.getMessage(), cause);
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new OlapException("Error executing query", cause);
+		}
+	}
+
+	/**
+	 * Returns the number of queries that were actually executed.
+	 */
+	public long getExecutionCount() {
+		return executions.get();
+	}
+
+	/**
+	 * Returns the number of executions saved by waiting for an identical
+	 * execution in progress.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns the number of executions in progress.
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+}
@@ -0,0 +1,401 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.olap4j.Axis;
+import org.olap4j.CellSet;
+import org.olap4j.OlapConnection;
+import org.olap4j.metadata.Cube;
+import org.saiku.query.mdx.IFilterFunction.MdxFunctionType;
+import org.saiku.query.mdx.NFilter;
+
+/**
+ * Load test of {@link Query#execute()} against the embedded FoodMart cube.
+ * <p>A number of threads build, generate and execute queries picked from a
+ * weighted mix of scenarios for a fixed time, after a warm up. Every thread
+ * has its own connection from {@link TestContext}. The harness reports
+ * throughput, latency percentiles and errors per scenario and in total,
+ * and how the time splits between MDX generation and execution, on the
+ * console and as a JSON report.
+ * <p>Arguments are given as key=value pairs, e.g.
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.saiku.query.LoadHarness
+ * -Dexec.args="threads=8 duration=60 warmup=10 mix=SIMPLE:3,CROSSJOIN:1
+ * report=target/load-report.json"</code>
+ */
+public class LoadHarness {
+
+	/**
+	 * The queries the harness can run.
+	 */
+	enum Scenario {
+
+		/** Product families by one measure. */
+		SIMPLE {
+			@Override
+			void build(Query query) throws Exception {
+				QueryHierarchy products = query.getHierarchy("[Product]");
+				products.includeLevel("Product Family");
+				query.getAxis(Axis.ROWS).addHierarchy(products);
+				query.getDetails().add(query.getMeasure("Unit Sales"));
+			}
+		},
+
+		/** Departments by store countries and years, non empty. */
+		CROSSJOIN {
+			@Override
+			void build(Query query) throws Exception {
+				QueryHierarchy products = query.getHierarchy("[Product]");
+				products.includeLevel("Product Department");
+				QueryHierarchy stores = query.getHierarchy("[Store]");
+				stores.includeLevel("Store Country");
+				QueryHierarchy time = query.getHierarchy("[Time]");
+				time.includeLevel("Year");
+				query.getAxis(Axis.ROWS).addHierarchy(products);
+				query.getAxis(Axis.ROWS).addHierarchy(stores);
+				query.getAxis(Axis.COLUMNS).addHierarchy(time);
+				query.getAxis(Axis.ROWS).setNonEmpty(true);
+				query.getDetails().add(query.getMeasure("Unit Sales"));
+				query.getDetails().add(query.getMeasure("Store Sales"));
+			}
+		},
+
+		/** Top 10 customer cities by sales. */
+		TOPN {
+			@Override
+			void build(Query query) throws Exception {
+				QueryHierarchy customers = query.getHierarchy("[Customers]");
+				customers.includeLevel("City");
+				query.getAxis(Axis.ROWS).addHierarchy(customers);
+				query.getAxis(Axis.ROWS).addFilter(
+						new NFilter(MdxFunctionType.TopCount, 10, "[Measures].[Store Sales]"));
+				query.getDetails().add(query.getMeasure("Store Sales"));
+			}
+		},
+
+		/** Education levels of female customers, sorted. */
+		SLICED {
+			@Override
+			void build(Query query) throws Exception {
+				QueryHierarchy education = query.getHierarchy("[Education Level]");
+				education.includeLevel("Education Level");
+				query.getAxis(Axis.ROWS).addHierarchy(education);
+				query.getAxis(Axis.ROWS).sort(SortOrder.BDESC, "[Measures].[Unit Sales]");
+				QueryHierarchy gender = query.getHierarchy("[Gender]");
+				gender.includeMember("[Gender].[F]");
+				query.getAxis(Axis.FILTER).addHierarchy(gender);
+				query.getDetails().add(query.getMeasure("Unit Sales"));
+			}
+		},
+
+		/** Selected product categories drilled to subcategories. */
+		DRILL {
+			@Override
+			void build(Query query) throws Exception {
+				QueryHierarchy products = query.getHierarchy("[Product]");
+				products.includeMember("[Product].[Drink].[Beverages]");
+				products.includeMember("[Product].[Food].[Baked Goods]");
+				products.includeLevel("Product Category");
+				query.getAxis(Axis.ROWS).addHierarchy(products);
+				query.getDetails().add(query.getMeasure("Unit Sales"));
+			}
+		};
+
+		abstract void build(Query query) throws Exception;
+	}
+
+	/**
+	 * Latencies and errors of one scenario, or of all, in nanoseconds.
+	 */
+	static final class Stats {
+
+		private long[] latencies = new long[1024];
+		private int count = 0;
+		private long generation = 0;
+		private long execution = 0;
+		private int errors = 0;
+		private String firstError;
+
+		void record(long generationNanos, long executionNanos) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = generationNanos + executionNanos;
+			generation += generationNanos;
+			execution += executionNanos;
+		}
+
+		void error(Exception e) {
+			if (errors++ == 0) {
+				firstError = String.valueOf(e);
+			}
+		}
+
+		void add(Stats other) {
+			for (int i = 0; i < other.count; i++) {
+				if (count == latencies.length) {
+					latencies = Arrays.copyOf(latencies, count * 2);
+				}
+				latencies[count++] = other.latencies[i];
+			}
+			generation += other.generation;
+			execution += other.execution;
+			if (errors == 0 && other.errors > 0) {
+				firstError = other.firstError;
+			}
+			errors += other.errors;
+		}
+
+		/**
+		 * @param percentile The percentile, between 0 and 100
+		 * @return The latency of the percentile in milliseconds
+		 */
+		double percentile(long[] sorted, double percentile) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+		}
+
+		void write(PrintWriter out, String indent, double seconds) {
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			long total = generation + execution;
+			out.println(indent + "\"queries\": " + count + ",");
+			out.println(indent + "\"errors\": " + errors + ",");
+			out.println(indent + "\"firstError\": " + quote(firstError) + ",");
+			out.println(indent + "\"throughput\": " + format(count / seconds) + ",");
+			out.println(indent + "\"latencyMs\": { \"p50\": " + format(percentile(sorted, 50))
+					+ ", \"p95\": " + format(percentile(sorted, 95))
+					+ ", \"p99\": " + format(percentile(sorted, 99))
+					+ ", \"max\": " + format(percentile(sorted, 100)) + " },");
+			out.println(indent + "\"generationMs\": " + format(generation / 1e6) + ",");
+			out.println(indent + "\"executionMs\": " + format(execution / 1e6) + ",");
+			out.println(indent + "\"generationShare\": " + format(total == 0 ? 0 : (double) generation / total));
+		}
+	}
+
+	private final int threads;
+	private final long durationNanos;
+	private final long warmupNanos;
+	private final Map<Scenario, Integer> mix;
+
+	LoadHarness(int threads, int durationSeconds, int warmupSeconds, Map<Scenario, Integer> mix) {
+		this.threads = threads;
+		this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+		this.mix = mix;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		options.put("threads", "4");
+		options.put("duration", "30");
+		options.put("warmup", "5");
+		options.put("mix", "SIMPLE:4,CROSSJOIN:2,TOPN:1,SLICED:2,DRILL:1");
+		options.put("report", "target/load-report.json");
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0 || !options.containsKey(arg.substring(0, eq))) {
+				throw new IllegalArgumentException("Unknown argument " + arg + ", expected one of " + options.keySet());
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		LoadHarness harness = new LoadHarness(
+				Integer.parseInt(options.get("threads")),
+				Integer.parseInt(options.get("duration")),
+				Integer.parseInt(options.get("warmup")),
+				parseMix(options.get("mix")));
+		harness.run(new File(options.get("report")));
+	}
+
+	static Map<Scenario, Integer> parseMix(String mix) {
+		Map<Scenario, Integer> weights = new LinkedHashMap<Scenario, Integer>();
+		for (String entry : mix.split(",")) {
+			String[] parts = entry.trim().split(":");
+			int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+			if (weight > 0) {
+				weights.put(Scenario.valueOf(parts[0].trim().toUpperCase()), weight);
+			}
+		}
+		if (weights.isEmpty()) {
+			throw new IllegalArgumentException("Empty query mix: " + mix);
+		}
+		return weights;
+	}
+
+	void run(File report) throws Exception {
+		final List<Scenario> wheel = new ArrayList<Scenario>();
+		for (Map.Entry<Scenario, Integer> entry : mix.entrySet()) {
+			for (int i = 0; i < entry.getValue(); i++) {
+				wheel.add(entry.getKey());
+			}
+		}
+		final List<Map<Scenario, Stats>> results = new ArrayList<Map<Scenario, Stats>>();
+		final List<Thread> workers = new ArrayList<Thread>();
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[] window = new long[2];
+		for (int t = 0; t < threads; t++) {
+			final Map<Scenario, Stats> stats = new LinkedHashMap<Scenario, Stats>();
+			for (Scenario scenario : mix.keySet()) {
+				stats.put(scenario, new Stats());
+			}
+			results.add(stats);
+			final Random random = new Random(t);
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					Cube cube;
+					try {
+						OlapConnection connection = TestContext.instance().createConnection();
+						cube = connection.getOlapCatalogs().get("FoodMart").getSchemas().get(0).getCubes().get("Sales");
+					} catch (Exception e) {
+						throw new IllegalStateException("Cannot connect to FoodMart", e);
+					} finally {
+						ready.countDown();
+					}
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long measureFrom = window[0];
+					long end = window[1];
+					while (System.nanoTime() < end) {
+						Scenario scenario = wheel.get(random.nextInt(wheel.size()));
+						boolean measured = System.nanoTime() >= measureFrom;
+						try {
+							Query query = new Query(scenario.name(), cube);
+							scenario.build(query);
+							long t0 = System.nanoTime();
+							query.getMdx();
+							long t1 = System.nanoTime();
+							CellSet cellSet = query.execute();
+							long t2 = System.nanoTime();
+							cellSet.getStatement().close();
+							if (measured) {
+								stats.get(scenario).record(t1 - t0, t2 - t1);
+							}
+						} catch (Exception e) {
+							if (measured) {
+								stats.get(scenario).error(e);
+							}
+						}
+					}
+				}
+			}, "load-" + t);
+			workers.add(worker);
+			worker.start();
+		}
+		ready.await();
+		window[0] = System.nanoTime() + warmupNanos;
+		window[1] = window[0] + durationNanos;
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		Map<Scenario, Stats> byScenario = new LinkedHashMap<Scenario, Stats>();
+		Stats total = new Stats();
+		for (Scenario scenario : mix.keySet()) {
+			Stats merged = new Stats();
+			for (Map<Scenario, Stats> stats : results) {
+				merged.add(stats.get(scenario));
+			}
+			byScenario.put(scenario, merged);
+			total.add(merged);
+		}
+		double seconds = durationNanos / 1e9;
+
+		File parent = report.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(report), "UTF-8"));
+		try {
+			writeReport(out, byScenario, total, seconds);
+		} finally {
+			out.close();
+		}
+		PrintWriter console = new PrintWriter(System.out);
+		writeReport(console, byScenario, total, seconds);
+		console.flush();
+		System.out.println("report written to " + report.getAbsolutePath());
+	}
+
+	private void writeReport(PrintWriter out, Map<Scenario, Stats> byScenario, Stats total, double seconds) {
+		out.println("{");
+		out.println("  \"timestamp\": " + System.currentTimeMillis() + ",");
+		out.println("  \"threads\": " + threads + ",");
+		out.println("  \"durationSeconds\": " + format(seconds) + ",");
+		out.println("  \"warmupSeconds\": " + format(warmupNanos / 1e9) + ",");
+		out.print("  \"mix\": {");
+		String separator = " ";
+		for (Map.Entry<Scenario, Integer> entry : mix.entrySet()) {
+			out.print(separator + quote(entry.getKey().name()) + ": " + entry.getValue());
+			separator = ", ";
+		}
+		out.println(" },");
+		out.println("  \"total\": {");
+		total.write(out, "    ", seconds);
+		out.println("  },");
+		out.println("  \"scenarios\": {");
+		int i = 0;
+		for (Map.Entry<Scenario, Stats> entry : byScenario.entrySet()) {
+			out.println("    " + quote(entry.getKey().name()) + ": {");
+			entry.getValue().write(out, "      ", seconds);
+			out.println(++i < byScenario.size() ? "    }," : "    }");
+		}
+		out.println("  }");
+		out.println("}");
+	}
+
+	private static String format(double value) {
+		return String.format(java.util.Locale.ROOT, "%.3f", value);
+	}
+
+	private static String quote(String value) {
+		if (value == null) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
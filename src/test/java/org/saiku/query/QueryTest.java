@@ -1,13 +1,43 @@
 package org.saiku.query;
 
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
 import junit.framework.TestCase;
 
 import org.olap4j.Axis;
+import org.olap4j.Cell;
 import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
 import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.OlapStatement;
 import org.olap4j.OlapWrapper;
+import org.olap4j.Position;
 import org.olap4j.impl.IdentifierParser;
+import org.olap4j.mdx.CallNode;
+import org.olap4j.mdx.IdentifierNode;
+import org.olap4j.mdx.ParseTreeNode;
 import org.olap4j.mdx.SelectNode;
+import org.olap4j.mdx.parser.MdxParser;
+import org.olap4j.mdx.parser.impl.DefaultMdxParserImpl;
 import org.olap4j.metadata.Catalog;
 import org.olap4j.metadata.Cube;
 import org.olap4j.metadata.Level;
@@ -16,14 +46,30 @@ import org.olap4j.metadata.Member;
 import org.olap4j.metadata.NamedList;
 import org.olap4j.metadata.Schema;
 import org.saiku.query.ISortableQuerySet.HierarchizeMode;
+import org.saiku.query.Parameter.SelectionType;
 import org.saiku.query.QueryDetails.Location;
+import org.saiku.query.mdx.CachingMdxParser;
+import org.saiku.query.mdx.CanonicalMdx;
 import org.saiku.query.mdx.GenericFilter;
 import org.saiku.query.mdx.IFilterFunction.MdxFunctionType;
+import org.saiku.query.mdx.MdxCanonicalizer;
 import org.saiku.query.mdx.NFilter;
 import org.saiku.query.mdx.NameFilter;
 import org.saiku.query.mdx.NameLikeFilter;
 import org.saiku.query.metadata.CalculatedMeasure;
+import org.saiku.query.metadata.CubeSkeleton;
 import org.saiku.query.metadata.CalculatedMember;
+import org.saiku.query.metrics.HistogramMetrics;
+import org.saiku.query.metrics.JmxMetrics;
+import org.saiku.query.metrics.LatencyHistogram;
+import org.saiku.query.metrics.QueryPhase;
+import org.saiku.query.result.CellCursor;
+import org.saiku.query.result.CellSets;
+import org.saiku.query.result.CellVisitor;
+import org.saiku.query.result.MaterializedResult;
+import org.saiku.query.result.ResultCache;
+import org.saiku.query.result.ResultKey;
+import org.saiku.query.result.SingleFlight;
 
 public class QueryTest extends TestCase {
 
@@ -1242,6 +1288,1539 @@ public class QueryTest extends TestCase {
 		}
 	}
 
+	public void testMdxCache() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("mdx cache", cube);
+			QueryAxis columns = query.getAxis(Axis.COLUMNS);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			columns.addHierarchy(products);
+
+			String mdx = query.getMdx();
+			long version = query.getVersion();
+			assertSame(mdx, query.getMdx());
+			assertEquals(version, query.getVersion());
+
+			SelectNode select = query.getSelect();
+			select.getWithList().clear();
+			assertEquals(mdx, query.getSelect().toString());
+
+			products.sort(SortOrder.ASC, "[Measures].[Unit Sales]");
+			assertTrue(query.getVersion() > version);
+			String sorted = query.getMdx();
+			assertNotSame(mdx, sorted);
+			assertTrue(sorted.contains("Order("));
+
+			products.clearSort();
+			assertEquals(mdx, query.getMdx());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testConnectionCapabilities() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("capabilities", cube);
+			ConnectionCapabilities capabilities = query.getCapabilities();
+			assertSame(capabilities, new Query("capabilities 2", cube).getCapabilities());
+			assertEquals(Query.BackendFlavor.MONDRIAN, query.getFlavor());
+			assertTrue(capabilities.supportsNonEmptyCrossJoin());
+			assertTrue(capabilities.supportsNativizeSet());
+			assertTrue(capabilities.supportsExists());
+
+			ConnectionCapabilities.invalidate(query.getConnection());
+			assertNotSame(capabilities, query.getCapabilities());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testQueryTemplate() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("query template", cube);
+			QueryAxis rows = query.getAxis(Axis.ROWS);
+			QueryAxis columns = query.getAxis(Axis.COLUMNS);
+
+			QueryHierarchy store = query.getHierarchy("[Store]");
+			store.includeLevel("Store Country");
+			columns.addHierarchy(store);
+
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			QueryLevel family = products.includeLevel("Product Family");
+			family.setParameterName("FamilyParameter");
+			QueryLevel category = products.includeLevel("Product Category");
+			category.setParameterName("CategoryParameter");
+			rows.addHierarchy(products);
+
+			query.setParameter("FamilyParameter", "Food");
+			QueryTemplate template = QueryTemplate.compile(query);
+			assertEquals(1, template.getParameterNames().size());
+			assertTrue(template.getParameterNames().contains("FamilyParameter"));
+
+			Map<String, String> values = new HashMap<String, String>();
+			values.put("FamilyParameter", "Food");
+			assertEquals(query.getMdx(), template.bind(values));
+
+			values.put("FamilyParameter", "Drink, Non-Consumable");
+			query.setParameter("FamilyParameter", "Drink, Non-Consumable");
+			assertEquals(query.getMdx(), template.bind(values));
+
+			values.put("CategoryParameter", "Product.Drink.Dairy");
+			try {
+				template.bind(values);
+				fail();
+			} catch (IllegalArgumentException e) {
+				// compiled without a category value
+			}
+
+			values.clear();
+			try {
+				template.bind(values);
+				fail();
+			} catch (IllegalArgumentException e) {
+				// family value is required
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testCachingMdxParser() {
+		CachingMdxParser parser = new CachingMdxParser(2);
+		ParseTreeNode first = parser.parseExpression("[Measures].[Unit Sales] * 2");
+		ParseTreeNode second = parser.parseExpression("[Measures].[Unit Sales] * 2");
+		assertNotSame(first, second);
+		assertEquals(first.toString(), second.toString());
+		assertEquals(1, parser.getMissCount());
+		assertEquals(1, parser.getHitCount());
+
+		((CallNode) first).getArgList().clear();
+		assertEquals(second.toString(), parser.parseExpression("[Measures].[Unit Sales] * 2").toString());
+
+		parser.parseExpression("[Measures].[Store Sales]");
+		parser.parseExpression("[Measures].[Store Cost]");
+		assertEquals(2, parser.size());
+		assertEquals(1, parser.getEvictionCount());
+	}
+
+	public void testBulkMemberSelection() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("bulk selection", cube);
+			QueryAxis rows = query.getAxis(Axis.ROWS);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			Member drink = cube.lookupMember(IdentifierParser.parseIdentifier("[Product].[Drink]"));
+			Member food = cube.lookupMember(IdentifierParser.parseIdentifier("[Product].[Food]"));
+			Member dairy = cube.lookupMember(IdentifierParser.parseIdentifier("[Product].[Drink].[Dairy]"));
+
+			products.includeMembers(Arrays.asList(food, drink, dairy, food));
+			rows.addHierarchy(products);
+
+			QueryLevel family = products.getActiveLevel("Product Family");
+			assertEquals(2, family.getInclusions().size());
+			assertEquals(food, family.getInclusions().get(0));
+			assertEquals(drink, family.getInclusions().get(1));
+			assertTrue(family.isIncluded(drink));
+			assertEquals(2, products.getActiveQueryLevels().size());
+
+			products.excludeMembers(Arrays.asList(drink));
+			assertFalse(family.isIncluded(drink));
+			assertTrue(family.isExcluded(drink));
+			assertEquals(1, family.getInclusions().size());
+			assertTrue(query.getMdx().contains("{[Product].[Food]}"));
+
+			family.getInclusions().add(drink);
+			assertTrue(family.isIncluded(drink));
+			assertEquals(Arrays.asList(food, drink), family.getIncludedMembers());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testRangeCompaction() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("range compaction", cube);
+			QueryAxis rows = query.getAxis(Axis.ROWS);
+			QueryHierarchy time = query.getHierarchy("[Time]");
+			time.includeMember("[Time].[1997].[Q1].[1]");
+			time.includeMember("[Time].[1997].[Q1].[2]");
+			time.includeMember("[Time].[1997].[Q1].[3]");
+			time.includeMember("[Time].[1997].[Q2].[4]");
+			rows.addHierarchy(time);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+
+			String mdx = query.getMdx();
+			String result = TestUtil.toString(query.execute());
+
+			query.setRangeCompaction(3);
+			String compacted = query.getMdx();
+			if (TestContext.DEBUG) {
+				System.out.println(TestUtil.toJavaString(compacted));
+			}
+			assertTrue(compacted.length() <= mdx.length());
+			TestUtil.assertEqualsVerbose(result, TestUtil.toString(query.execute()));
+
+			query.setRangeCompaction(0);
+			assertEquals(mdx, query.getMdx());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testExecuteAsync() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("async", cube);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			query.getAxis(Axis.ROWS).addHierarchy(products);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+			query.setQueryTimeout(60);
+
+			String expected = TestUtil.toString(query.execute());
+			CompletableFuture<CellSet> future = query.executeAsync();
+			TestUtil.assertEqualsVerbose(expected, TestUtil.toString(future.get(60, TimeUnit.SECONDS)));
+
+			final List<Runnable> queued = new ArrayList<Runnable>();
+			CompletableFuture<CellSet> cancelled = query.executeAsync(new Executor() {
+				public void execute(Runnable command) {
+					queued.add(command);
+				}
+			});
+			assertTrue(cancelled.cancel(true));
+			queued.get(0).run();
+			assertTrue(cancelled.isCancelled());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testPooledQueryExecutor() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("pooled", cube);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			query.getAxis(Axis.ROWS).addHierarchy(products);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+			String expected = TestUtil.toString(query.execute());
+
+			PooledQueryExecutor executor = new PooledQueryExecutor(
+					new PooledQueryExecutor.ConnectionFactory() {
+						public OlapConnection createConnection() {
+							return context.createConnection();
+						}
+					}, 2, 60000);
+			query.setExecutor(executor);
+
+			List<CompletableFuture<CellSet>> futures = new ArrayList<CompletableFuture<CellSet>>();
+			for (int i = 0; i < 6; i++) {
+				futures.add(query.executeAsync());
+			}
+			// a connection stays leased until its cell set is closed
+			List<CompletableFuture<CellSet>> pending = new ArrayList<CompletableFuture<CellSet>>(futures);
+			while (!pending.isEmpty()) {
+				CompletableFuture.anyOf(pending.toArray(new CompletableFuture<?>[pending.size()])).get(60, TimeUnit.SECONDS);
+				for (Iterator<CompletableFuture<CellSet>> it = pending.iterator(); it.hasNext();) {
+					CompletableFuture<CellSet> future = it.next();
+					if (future.isDone()) {
+						CellSet cellSet = future.get();
+						assertTrue(executor.getActiveCount("FoodMart") >= 1);
+						assertTrue(executor.getActiveCount("FoodMart") <= 2);
+						TestUtil.assertEqualsVerbose(expected, TestUtil.toString(cellSet));
+						cellSet.close();
+						assertTrue(cellSet.isClosed());
+						it.remove();
+					}
+				}
+			}
+			assertEquals(0, executor.getActiveCount("FoodMart"));
+			assertTrue(executor.getIdleCount("FoodMart") <= 2);
+			executor.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testResultCache() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("result cache", cube);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			query.getAxis(Axis.ROWS).addHierarchy(products);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+
+			ResultCache cache = new ResultCache(10 * 1024 * 1024, 10, TimeUnit.MINUTES);
+			MaterializedResult result = cache.execute(query);
+			assertSame(result, cache.execute(query));
+			assertEquals(1, cache.getMissCount());
+			assertEquals(1, cache.getHitCount());
+
+			CellSet cellSet = query.execute();
+			assertEquals(2, result.getAxisCount());
+			assertEquals(1, result.getPositionCount(0));
+			assertEquals(3, result.getPositionCount(1));
+			assertEquals("[Product].[Drink]", result.getPosition(1, 0).get(0).getUniqueName());
+			for (int row = 0; row < 3; row++) {
+				int ordinal = result.getOrdinal(0, row);
+				assertEquals(cellSet.getCell(ordinal).getFormattedValue(), result.getFormattedValue(ordinal));
+				assertEquals(cellSet.getCell(ordinal).getDoubleValue(), result.getDoubleValue(ordinal));
+			}
+
+			query.getDetails().add(query.getMeasure("Store Sales"));
+			assertNotSame(result, cache.execute(query));
+			assertEquals(2, cache.size());
+
+			ResultCache tiny = new ResultCache(1, 10, TimeUnit.MINUTES);
+			tiny.execute(query);
+			assertEquals(0, tiny.size());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testColumnarResult() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("columnar result", cube);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			query.getAxis(Axis.ROWS).addHierarchy(products);
+			QueryHierarchy gender = query.getHierarchy("[Gender]");
+			gender.includeLevel("Gender");
+			query.getAxis(Axis.COLUMNS).addHierarchy(gender);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+			query.getDetails().add(query.getMeasure("Store Sales"));
+
+			CellSet cellSet = query.execute();
+			MaterializedResult result = MaterializedResult.of(cellSet);
+			assertEquals(3, result.getRowCount());
+			assertEquals(4, result.getColumnCount());
+			assertEquals(2, result.getTupleWidth(0));
+			assertSame(result.getMember(0, 0, 0), result.getMember(0, 1, 0));
+			assertEquals("[Gender].[F]", result.getMember(0, 0, 0).getUniqueName());
+			for (int row = 0; row < result.getRowCount(); row++) {
+				for (int column = 0; column < result.getColumnCount(); column++) {
+					Cell cell = cellSet.getCell(Arrays.asList(column, row));
+					assertEquals(cell.isNull(), result.isEmpty(row, column));
+					assertEquals(cell.getFormattedValue(), result.getFormattedValue(row, column));
+					assertEquals(cell.getDoubleValue(), result.getDoubleValue(row, column), 0.0001);
+				}
+			}
+			try {
+				result.getDoubleValue(3, 0);
+				fail();
+			} catch (IndexOutOfBoundsException e) {
+				// expected
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testCellVisitor() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("cell visitor", cube);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			query.getAxis(Axis.ROWS).addHierarchy(products);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+			query.getDetails().add(query.getMeasure("Store Sales"));
+
+			final List<String> streamed = new ArrayList<String>();
+			query.execute(new CellVisitor() {
+				public void visit(int ordinal, boolean empty, double value, String formattedValue) {
+					streamed.add(ordinal + ":" + formattedValue);
+				}
+			});
+			assertEquals(6, streamed.size());
+
+			MaterializedResult result = MaterializedResult.of(query.execute());
+			final List<String> visited = new ArrayList<String>();
+			result.visit(new CellVisitor() {
+				public void visit(int ordinal, boolean empty, double value, String formattedValue) {
+					visited.add(ordinal + ":" + formattedValue);
+				}
+			});
+			assertEquals(streamed, visited);
+
+			CellCursor cursor = result.cursor();
+			int count = 0;
+			while (cursor.next()) {
+				assertEquals(count, cursor.getOrdinal());
+				assertEquals(count / 2, cursor.getRow());
+				assertEquals(count % 2, cursor.getColumn());
+				assertEquals(result.getFormattedValue(cursor.getRow(), cursor.getColumn()), cursor.getFormattedValue());
+				count++;
+			}
+			assertEquals(6, count);
+			assertFalse(cursor.next());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testPagination() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("pagination", cube);
+			QueryAxis rows = query.getAxis(Axis.ROWS);
+			QueryHierarchy customers = query.getHierarchy("[Customers]");
+			customers.includeLevel("City");
+			rows.addHierarchy(customers);
+			rows.setNonEmpty(true);
+			rows.sort(SortOrder.BDESC, "[Measures].[Unit Sales]");
+			rows.addFilter(new NFilter(MdxFunctionType.TopCount, 50, "[Measures].[Unit Sales]"));
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+
+			CellSet all = query.execute();
+			int total = all.getAxes().get(1).getPositionCount();
+			assertEquals(total, query.executeCount(Axis.ROWS));
+
+			rows.setOffset(10);
+			rows.setLimit(15);
+			assertTrue(query.getMdx().contains("Subset("));
+			CellSet page = query.execute();
+			assertEquals(15, page.getAxes().get(1).getPositionCount());
+			for (int i = 0; i < 15; i++) {
+				assertEquals(
+						all.getAxes().get(1).getPositions().get(10 + i).getMembers().get(0).getUniqueName(),
+						page.getAxes().get(1).getPositions().get(i).getMembers().get(0).getUniqueName());
+			}
+			assertEquals(total, query.executeCount(Axis.ROWS));
+
+			rows.setOffset(total - 5);
+			rows.setLimit(-1);
+			assertEquals(5, query.execute().getAxes().get(1).getPositionCount());
+
+			rows.setOffset(0);
+			assertFalse(rows.isPaginated());
+			assertFalse(query.getMdx().contains("Subset("));
+			try {
+				rows.setOffset(-1);
+				fail();
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testExpand() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("expand", cube);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			query.getAxis(Axis.ROWS).addHierarchy(products);
+			QueryHierarchy gender = query.getHierarchy("[Gender]");
+			gender.includeLevel("Gender");
+			query.getAxis(Axis.COLUMNS).addHierarchy(gender);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+
+			MaterializedResult previous = MaterializedResult.of(query.execute());
+			assertEquals(3, previous.getRowCount());
+			Member drink = cube.lookupMember(IdentifierParser.parseIdentifier("[Product].[Drink]"));
+			MaterializedResult merged = products.expand(drink, previous);
+
+			MaterializedResult full = MaterializedResult.of(query.execute());
+			assertEquals(6, full.getRowCount());
+			assertEquals(full.getRowCount(), merged.getRowCount());
+			assertEquals(full.getColumnCount(), merged.getColumnCount());
+			for (int row = 0; row < full.getRowCount(); row++) {
+				assertEquals(full.getPosition(1, row), merged.getPosition(1, row));
+				for (int column = 0; column < full.getColumnCount(); column++) {
+					assertEquals(full.getFormattedValue(row, column), merged.getFormattedValue(row, column));
+				}
+			}
+			assertEquals("[Product].[Drink].[Beverages]", merged.getMember(1, 2, 0).getUniqueName());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testQueryDiff() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("diff", cube);
+			QueryAxis rows = query.getAxis(Axis.ROWS);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			rows.addHierarchy(products);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+
+			QueryDiff.Snapshot before = QueryDiff.snapshot(query);
+			assertTrue(QueryDiff.between(before, QueryDiff.snapshot(query)).isEmpty());
+
+			rows.sort(SortOrder.BDESC, "[Measures].[Unit Sales]");
+			QueryDiff.Snapshot sorted = QueryDiff.snapshot(query);
+			assertTrue(QueryDiff.between(before, sorted).isSortOnly());
+
+			query.getDetails().add(query.getMeasure("Store Sales"));
+			QueryDiff.Snapshot measures = QueryDiff.snapshot(query);
+			assertTrue(QueryDiff.between(sorted, measures).isMeasuresOnly());
+			assertTrue(QueryDiff.between(before, measures).isOnly(QueryDiff.Change.SORT, QueryDiff.Change.MEASURES));
+
+			QueryHierarchy gender = query.getHierarchy("[Gender]");
+			gender.includeMember("[Gender].[F]");
+			query.getAxis(Axis.FILTER).addHierarchy(gender);
+			QueryDiff.Snapshot filtered = QueryDiff.snapshot(query);
+			assertTrue(QueryDiff.between(measures, filtered).isFilterAxisOnly());
+
+			rows.setLimit(10);
+			QueryDiff.Snapshot paged = QueryDiff.snapshot(query);
+			assertTrue(QueryDiff.between(filtered, paged).isPageOnly());
+
+			products.includeMember("[Product].[Drink].[Beverages]");
+			QueryDiff diff = QueryDiff.between(paged, QueryDiff.snapshot(query));
+			assertTrue(diff.isRowSetChange());
+			assertFalse(diff.contains(QueryDiff.Change.COLUMNS));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testMdxCanonicalizer() {
+		MdxParser parser = new DefaultMdxParserImpl();
+		SelectNode a = parser.parseSelect(
+				"WITH SET [~ROWS] AS {[Product].[Drink]}\n"
+				+ "MEMBER [Measures].[X] AS '1', FORMAT_STRING = '#', SOLVE_ORDER = 1\n"
+				+ "SELECT NON EMPTY CrossJoin([~ROWS], {[Measures].[X]}) ON COLUMNS\n"
+				+ "FROM [Sales]");
+		SelectNode b = parser.parseSelect(
+				"with set Foo as {Product.Drink} "
+				+ "member Measures.X as '1', solve_order = 1, format_string = '#' "
+				+ "select non empty crossjoin(Foo, {Measures.X}) on columns from Sales");
+		CanonicalMdx ca = MdxCanonicalizer.canonicalize(a);
+		CanonicalMdx cb = MdxCanonicalizer.canonicalize(b);
+		assertEquals(ca.getMdx(), cb.getMdx());
+		assertEquals(ca.getHash(), cb.getHash());
+		assertEquals(32, ca.getHash().length());
+		assertEquals(ca, cb);
+		assertFalse(ca.getMdx().contains("\n"));
+		assertTrue(ca.getMdx().contains("[~SET0]"));
+		assertEquals(ca.getMdx(), MdxCanonicalizer.canonicalize(parser.parseSelect(ca.getMdx())).getMdx());
+
+		SelectNode c = parser.parseSelect(
+				"SELECT {[Product].[Food]} ON COLUMNS FROM [Sales]");
+		assertFalse(ca.equals(MdxCanonicalizer.canonicalize(c)));
+		// the original select is not modified
+		assertTrue(a.toString().contains("[~ROWS]"));
+	}
+
+	public void testSingleFlight() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			final Query query = new Query("single flight", cube);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			query.getAxis(Axis.ROWS).addHierarchy(products);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+
+			final CountDownLatch release = new CountDownLatch(1);
+			query.setExecutor(new QueryExecutor() {
+				public OlapStatement createStatement(Query q) throws OlapException {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new OlapException("interrupted", e);
+					}
+					return q.getConnection().createStatement();
+				}
+				public void releaseStatement(OlapStatement statement) {
+					try {
+						statement.close();
+					} catch (Exception e) {
+						// ignore
+					}
+				}
+			});
+
+			final SingleFlight singleFlight = new SingleFlight();
+			final int callers = 5;
+			final MaterializedResult[] results = new MaterializedResult[callers];
+			Thread[] threads = new Thread[callers];
+			for (int i = 0; i < callers; i++) {
+				final int index = i;
+				threads[i] = new Thread() {
+					public void run() {
+						try {
+							results[index] = singleFlight.execute(query);
+						} catch (OlapException e) {
+							e.printStackTrace();
+						}
+					}
+				};
+				threads[i].start();
+			}
+			long deadline = System.currentTimeMillis() + 30000;
+			while (singleFlight.getCoalescedCount() < callers - 1 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, singleFlight.getInFlightCount());
+			release.countDown();
+			for (Thread thread : threads) {
+				thread.join(60000);
+			}
+			assertEquals(1, singleFlight.getExecutionCount());
+			assertEquals(callers - 1, singleFlight.getCoalescedCount());
+			assertEquals(0, singleFlight.getInFlightCount());
+			for (MaterializedResult result : results) {
+				assertNotNull(result);
+				assertSame(results[0], result);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testQueryCodec() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("codec", cube);
+			QueryAxis rows = query.getAxis(Axis.ROWS);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeMember("[Product].[Drink].[Beverages]");
+			products.includeMember("[Product].[Drink].[Dairy]");
+			products.excludeMember("[Product].[Food]");
+			products.includeLevel("Product Family");
+			rows.addHierarchy(products);
+			rows.setNonEmpty(true);
+			rows.sort(SortOrder.BDESC, "[Measures].[Unit Sales]");
+			rows.addFilter(new NFilter(MdxFunctionType.TopCount, 5, "[Measures].[Unit Sales]"));
+			QueryHierarchy gender = query.getHierarchy("[Gender]");
+			gender.includeMember("[Gender].[F]");
+			query.getAxis(Axis.FILTER).addHierarchy(gender);
+			CalculatedMeasure profit = query.createCalculatedMeasure("Profit",
+					"[Measures].[Store Sales] - [Measures].[Store Cost]", null);
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+			query.getDetails().add(profit);
+
+			byte[] encoded = QueryCodec.encode(query);
+			Query restored = QueryCodec.decode(encoded, cube);
+
+			QueryLevel level = restored.getHierarchy("[Product]").getActiveLevel("Product Category");
+			assertEquals(Arrays.asList("[Product].[Drink].[Beverages]", "[Product].[Drink].[Dairy]"),
+					level.getInclusionNames());
+			assertEquals(query.getMdx(), restored.getMdx());
+			assertEquals(2, level.getInclusions().size());
+			assertEquals(query.getMdx(), QueryCodec.decode(QueryCodec.encode(restored), cube).getMdx());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testLazyHierarchies() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("lazy", cube);
+			assertTrue(query.hierarchyMap.isEmpty());
+
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			assertNotNull(products);
+			assertSame(products, query.getHierarchy(products.getHierarchy()));
+			assertEquals(1, query.hierarchyMap.size());
+			products.includeLevel("Product Family");
+			query.getAxis(Axis.ROWS).addHierarchy(products);
+			assertNull(query.getHierarchy("[No Such Hierarchy]"));
+
+			List<QueryHierarchy> unused = query.getUnusedAxis().getQueryHierarchies();
+			assertEquals(cube.getHierarchies().size(), unused.size());
+			for (int i = 0; i < unused.size(); i++) {
+				assertEquals(cube.getHierarchies().get(i).getUniqueName(), unused.get(i).getUniqueName());
+			}
+			assertSame(products, unused.get(unused.indexOf(products)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testCubeSkeleton() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query first = new Query("first", cube);
+			Query second = new Query("second", getFoodmartCube("Sales"));
+			CubeSkeleton skeleton = first.getSkeleton();
+			assertSame(skeleton, new Query("again", cube).getSkeleton());
+			assertSame(second.getCube(), second.getSkeleton().getCube());
+			assertEquals(cube.getHierarchies().size(), skeleton.getHierarchies().size());
+
+			CubeSkeleton.HierarchySkeleton products = skeleton.getHierarchy("[Product]");
+			assertEquals("Product", products.getName());
+			CubeSkeleton.LevelSkeleton family = products.getLevel("Product Family");
+			assertEquals("[Product].[Product Family]", family.getUniqueName());
+			assertEquals(1, family.getDepth());
+			assertEquals(Level.Type.REGULAR, family.getLevelType());
+			assertSame(family.getLevel(), first.getHierarchy("[Product]").includeLevel("Product Family").getLevel());
+
+			CubeSkeleton.invalidate(cube);
+			assertNotSame(skeleton, new Query("third", cube).getSkeleton());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testQueryCopy() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("original", cube);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeMember("[Product].[Drink].[Beverages]");
+			products.includeMember("[Product].[Drink].[Dairy]");
+			query.getAxis(Axis.ROWS).addHierarchy(products);
+			query.getAxis(Axis.ROWS).sort(SortOrder.BDESC, "[Measures].[Unit Sales]");
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+			String mdx = query.getMdx();
+
+			Query copy = query.copy("variant");
+			assertEquals("variant", copy.getName());
+			assertEquals(mdx, copy.getMdx());
+			QueryHierarchy copiedProducts = copy.getHierarchy("[Product]");
+			assertNotSame(products, copiedProducts);
+			assertSame(copy.getAxis(Axis.ROWS), copiedProducts.getAxis());
+
+			QueryHierarchy gender = copy.getHierarchy("[Gender]");
+			gender.includeMember("[Gender].[F]");
+			copy.getAxis(Axis.FILTER).addHierarchy(gender);
+			copy.getDetails().add(copy.getMeasure("Store Sales"));
+			copiedProducts.excludeMember("[Product].[Drink].[Dairy]");
+
+			assertEquals(mdx, query.getMdx());
+			assertFalse(mdx.equals(copy.getMdx()));
+			assertEquals(2, products.getActiveLevel("Product Category").getInclusions().size());
+			assertEquals(1, query.getDetails().getMeasures().size());
+			assertTrue(query.getAxis(Axis.FILTER).getQueryHierarchies().isEmpty());
+			assertEquals(query.getUnusedAxis().getQueryHierarchies().size(),
+					copy.getUnusedAxis().getQueryHierarchies().size());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testNameIndexes() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("indexes", cube);
+			QueryHierarchy products = query.getHierarchy("Product");
+			assertSame(products, query.getHierarchy("[Product]"));
+
+			assertNull(query.getLevel("[Product].[Product Family]"));
+			QueryLevel family = products.includeLevel("Product Family");
+			assertSame(family, query.getLevel("[Product].[Product Family]"));
+			assertNull(query.getLevel("[No].[Such Level]"));
+
+			CubeSkeleton.LevelSkeleton level = query.getSkeleton().getLevel("[Product].[Product Family]");
+			assertSame(level, query.getSkeleton().getHierarchy("[Product]").findLevel("[Product].[Product Family]"));
+
+			Measure unitSales = query.getMeasure("Unit Sales");
+			assertEquals("[Measures].[Unit Sales]", unitSales.getUniqueName());
+			assertSame(unitSales, query.getMeasure("[Measures].[Unit Sales]"));
+			assertNull(query.getMeasure("No Such Measure"));
+			assertNull(query.getMeasure(null));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testSyntheticCube() {
+		try {
+			Cube cube = SyntheticCube.builder()
+					.hierarchies(30)
+					.levels(3)
+					.childrenPerMember(50)
+					.parentChildHierarchies(1)
+					.build();
+			assertEquals(31, cube.getHierarchies().size());
+			Level leaves = cube.getHierarchies().get("H0").getLevels().get("Level 3");
+			assertEquals(125000, leaves.getCardinality());
+			Member member = cube.lookupMember(IdentifierNode.parseIdentifier("[H0].[M3].[M3-7].[M3-7-49]").getSegmentList());
+			assertEquals("[H0].[M3].[M3-7].[M3-7-49]", member.getUniqueName());
+			assertEquals(leaves, member.getLevel());
+			assertEquals("[H0].[M3].[M3-7]", member.getParentMember().getUniqueName());
+			assertNull(cube.lookupMember(IdentifierNode.parseIdentifier("[H0].[M3].[M4-7]").getSegmentList()));
+			Member node = cube.lookupMember(IdentifierNode.parseIdentifier("[H29].[M1].[M1-2]").getSegmentList());
+			assertEquals("Node", node.getLevel().getName());
+			assertEquals(2, node.getDepth());
+
+			Query query = new Query("synthetic", cube);
+			QueryAxis rows = query.getAxis(Axis.ROWS);
+			for (int i = 1; i <= 20; i++) {
+				QueryHierarchy h = query.getHierarchy("H" + i);
+				h.includeLevel("Level 1");
+				rows.addHierarchy(h);
+			}
+			QueryHierarchy h0 = query.getHierarchy("H0");
+			List<Member> members = new ArrayList<Member>();
+			for (Member child : member.getParentMember().getParentMember().getChildMembers()) {
+				members.addAll(child.getChildMembers());
+			}
+			h0.includeMembers(members);
+			query.getAxis(Axis.COLUMNS).addHierarchy(h0);
+			query.getDetails().add(query.getMeasure("Measure 0"));
+			String mdx = query.getMdx();
+			assertTrue(mdx.contains("[H0].[M3].[M3-49].[M3-49-49]"));
+			assertTrue(mdx.contains("[H20].[Level 1].Members"));
+			assertEquals(2500, h0.getActiveLevel("Level 3").getInclusions().size());
+			assertEquals(20, rows.getQueryHierarchies().size());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testQueryMetrics() {
+		try {
+			LatencyHistogram histogram = new LatencyHistogram();
+			for (long i = 1; i <= 1000; i++) {
+				histogram.record(i * 1000, i % 100 != 0);
+			}
+			assertEquals(1000, histogram.getCount());
+			assertEquals(10, histogram.getErrors());
+			assertEquals(1000000, histogram.getMaxNanos());
+			assertEquals(1000000, histogram.getPercentile(100));
+			long p50 = histogram.getPercentile(50);
+			assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+			long p99 = histogram.getPercentile(99);
+			assertTrue(p99 >= 990000 && p99 <= 1000000);
+			histogram.reset();
+			assertEquals(0, histogram.getCount());
+			assertEquals(0, histogram.getPercentile(50));
+
+			Cube cube = SyntheticCube.builder().hierarchies(3).levels(2).childrenPerMember(5).build();
+			Query query = new Query("metrics", cube);
+			HistogramMetrics metrics = new HistogramMetrics();
+			query.setMetrics(metrics);
+			QueryHierarchy h0 = query.getHierarchy("H0");
+			h0.includeLevel("Level 2");
+			query.getAxis(Axis.ROWS).addHierarchy(h0);
+			query.getMdx();
+			query.getMdx();
+			assertEquals(1, metrics.getHistogram(QueryPhase.CONVERT).getCount());
+			assertEquals(1, metrics.getHistogram(QueryPhase.UNPARSE).getCount());
+			assertEquals(0, metrics.getHistogram(QueryPhase.EXECUTE).getCount());
+			assertSame(metrics, query.copy("copy").getMetrics());
+			query.setMetrics(null);
+			assertSame(Query.getDefaultMetrics(), query.getMetrics());
+
+			MBeanServer server = MBeanServerFactory.newMBeanServer();
+			JmxMetrics jmx = new JmxMetrics(server, "test");
+			assertEquals(QueryPhase.values().length, jmx.getObjectNames().size());
+			jmx.record(QueryPhase.EXECUTE, 2000000, false);
+			ObjectName name = new ObjectName("test:type=QueryMetrics,phase=execute");
+			assertEquals(1L, server.getAttribute(name, "Count"));
+			assertEquals(1L, server.getAttribute(name, "Errors"));
+			assertEquals(2.0, (Double) server.getAttribute(name, "MaxMillis"), 0.0001);
+			assertTrue(server.isRegistered(new ObjectName("test:type=QueryMetrics,phase=resolveParameter")));
+			jmx.unregister();
+			assertFalse(server.isRegistered(name));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testStatementLease() {
+		try {
+			Cube cube = SyntheticCube.builder().hierarchies(2).levels(1).childrenPerMember(3).build();
+			Query query = new Query("lease", cube);
+			QueryHierarchy h0 = query.getHierarchy("H0");
+			h0.includeLevel("Level 1");
+			query.getAxis(Axis.ROWS).addHierarchy(h0);
+
+			final List<String> events = new ArrayList<String>();
+			final boolean[] fail = new boolean[1];
+			final CellSet cellSet = (CellSet) Proxy.newProxyInstance(
+					getClass().getClassLoader(), new Class<?>[] { CellSet.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							if ("close".equals(method.getName())) {
+								events.add("cellSet.close");
+							}
+							return "isClosed".equals(method.getName()) ? Boolean.FALSE : null;
+						}
+					});
+			final OlapStatement statement = (OlapStatement) Proxy.newProxyInstance(
+					getClass().getClassLoader(), new Class<?>[] { OlapStatement.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) throws OlapException {
+							if ("executeOlapQuery".equals(method.getName())) {
+								if (fail[0]) {
+									throw new OlapException("failed");
+								}
+								return cellSet;
+							}
+							if ("close".equals(method.getName())) {
+								events.add("statement.close");
+							}
+							return null;
+						}
+					});
+			query.setExecutor(new QueryExecutor() {
+				public OlapStatement createStatement(Query q) {
+					return statement;
+				}
+				public void releaseStatement(OlapStatement s) {
+					assertSame(statement, s);
+					events.add("release");
+				}
+			});
+
+			CellSet result = query.execute();
+			assertTrue(events.isEmpty());
+			assertFalse(result.isClosed());
+			assertSame(cellSet, LeasedCellSet.getDelegate(result));
+			assertSame(result, result.unwrap(CellSet.class));
+			// cells lead back to the leased cell set, closing it ends the lease
+			assertSame(result, result.getCell(0).getCellSet());
+			result.getCell(0).getCellSet().getStatement().close();
+			assertEquals(Arrays.asList("cellSet.close", "statement.close", "release"), events);
+			assertTrue(result.isClosed());
+			result.close();
+			assertEquals(3, events.size());
+
+			events.clear();
+			fail[0] = true;
+			try {
+				query.execute();
+				fail();
+			} catch (OlapException e) {
+				assertEquals("failed", e.getMessage());
+			}
+			assertEquals(Arrays.asList("statement.close", "release"), events);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testResultKeyIdentity() {
+		try {
+			Query[] queries = new Query[3];
+			Cube shared = SyntheticCube.builder().hierarchies(2).levels(1).childrenPerMember(3).build();
+			Cube other = SyntheticCube.builder().hierarchies(2).levels(1).childrenPerMember(3).build();
+			Cube[] cubes = { shared, shared, other };
+			for (int i = 0; i < queries.length; i++) {
+				queries[i] = new Query("key " + i, cubes[i]);
+				QueryHierarchy h0 = queries[i].getHierarchy("H0");
+				h0.includeLevel("Level 1");
+				queries[i].getAxis(Axis.ROWS).addHierarchy(h0);
+			}
+			ResultKey a = ResultKey.of(queries[0]);
+			ResultKey b = ResultKey.of(queries[1]);
+			ResultKey c = ResultKey.of(queries[2]);
+			assertEquals(a, b);
+			assertEquals(a.hashCode(), b.hashCode());
+			// same MDX against another connection is a different result
+			assertEquals(a.getMdx(), c.getMdx());
+			assertFalse(a.equals(c));
+			assertEquals(CubeSkeleton.getIdentity(other), c.getCube());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testSingleFlightPerCube() {
+		try {
+			final CountDownLatch release = new CountDownLatch(1);
+			QueryExecutor blocked = new QueryExecutor() {
+				public OlapStatement createStatement(Query q) throws OlapException {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new OlapException("interrupted", e);
+					}
+					throw new OlapException("no backend");
+				}
+				public void releaseStatement(OlapStatement statement) {
+				}
+			};
+			final SingleFlight singleFlight = new SingleFlight();
+			Thread[] threads = new Thread[2];
+			final int[] failures = new int[1];
+			for (int i = 0; i < threads.length; i++) {
+				final Query query = new Query("flight " + i,
+						SyntheticCube.builder().hierarchies(2).levels(1).childrenPerMember(3).build());
+				QueryHierarchy h0 = query.getHierarchy("H0");
+				h0.includeLevel("Level 1");
+				query.getAxis(Axis.ROWS).addHierarchy(h0);
+				query.setExecutor(blocked);
+				threads[i] = new Thread() {
+					public void run() {
+						try {
+							singleFlight.execute(query);
+						} catch (OlapException e) {
+							synchronized (failures) {
+								failures[0]++;
+							}
+						}
+					}
+				};
+				threads[i].start();
+			}
+			long deadline = System.currentTimeMillis() + 30000;
+			while (singleFlight.getInFlightCount() < 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			// identical MDX on two connections is not coalesced
+			assertEquals(2, singleFlight.getInFlightCount());
+			assertEquals(0, singleFlight.getCoalescedCount());
+			release.countDown();
+			for (Thread thread : threads) {
+				thread.join(30000);
+			}
+			assertEquals(2, singleFlight.getExecutionCount());
+			assertEquals(2, failures[0]);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testConnectionCapabilitiesAreWeak() {
+		try {
+			Cube cube = SyntheticCube.builder().hierarchies(1).levels(1).childrenPerMember(2).build();
+			Catalog catalog = cube.getSchema().getCatalog();
+			OlapConnection connection = catalog.getMetaData().getConnection().unwrap(OlapConnection.class);
+			ConnectionCapabilities capabilities = ConnectionCapabilities.get(connection, catalog);
+			assertEquals(Query.BackendFlavor.MONDRIAN, capabilities.getFlavor());
+			WeakReference<OlapConnection> reference = new WeakReference<OlapConnection>(connection);
+			cube = null;
+			catalog = null;
+			connection = null;
+			for (int i = 0; i < 50 && reference.get() != null; i++) {
+				System.gc();
+				Thread.sleep(20);
+			}
+			// the registry must not keep the connection reachable
+			assertNull(reference.get());
+			assertNotNull(capabilities);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testExpandSortedAxis() {
+		try {
+			Cube cube = getFoodmartCube("Sales");
+			Query query = new Query("expand sorted", cube);
+			QueryHierarchy products = query.getHierarchy("[Product]");
+			products.includeLevel("Product Family");
+			QueryAxis rows = query.getAxis(Axis.ROWS);
+			rows.addHierarchy(products);
+			rows.sort(SortOrder.BDESC, "[Measures].[Unit Sales]");
+			query.getDetails().add(query.getMeasure("Unit Sales"));
+			assertFalse(products.canMergeExpansion());
+
+			MaterializedResult previous = MaterializedResult.of(query.execute());
+			Member drink = cube.lookupMember(IdentifierParser.parseIdentifier("[Product].[Drink]"));
+			MaterializedResult merged = products.expand(drink, previous);
+
+			// a break hierarchy sort interleaves the children with the families
+			MaterializedResult full = MaterializedResult.of(query.execute());
+			assertEquals(6, full.getRowCount());
+			assertEquals(full.getRowCount(), merged.getRowCount());
+			for (int row = 0; row < full.getRowCount(); row++) {
+				assertEquals(full.getPosition(1, row), merged.getPosition(1, row));
+				assertEquals(full.getFormattedValue(row, 0), merged.getFormattedValue(row, 0));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testCanMergeExpansion() {
+		try {
+			Cube cube = SyntheticCube.builder().hierarchies(2).levels(2).childrenPerMember(3).build();
+			Query query = new Query("merge", cube);
+			QueryHierarchy h0 = query.getHierarchy("H0");
+			h0.includeLevel("Level 1");
+			QueryAxis rows = query.getAxis(Axis.ROWS);
+			assertFalse(h0.canMergeExpansion());
+			rows.addHierarchy(h0);
+			assertTrue(h0.canMergeExpansion());
+			rows.sort(SortOrder.DESC, "[Measures].[Measure 0]");
+			assertTrue(h0.canMergeExpansion());
+			rows.sort(SortOrder.BDESC, "[Measures].[Measure 0]");
+			assertFalse(h0.canMergeExpansion());
+			rows.clearSort();
+			rows.setLimit(10);
+			assertFalse(h0.canMergeExpansion());
+			rows.setLimit(-1);
+			assertTrue(h0.canMergeExpansion());
+			h0.addFilter(new NFilter(MdxFunctionType.TopCount, 2, "[Measures].[Measure 0]"));
+			assertFalse(h0.canMergeExpansion());
+			h0.clearFilters();
+			h0.setHierarchizeMode(HierarchizeMode.POST);
+			assertFalse(h0.canMergeExpansion());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testQueryTemplateMatchesQuery() {
+		try {
+			Cube cube = SyntheticCube.builder().hierarchies(2).levels(2).childrenPerMember(6).build();
+			Query query = new Query("template", cube);
+			QueryHierarchy h0 = query.getHierarchy("H0");
+			QueryLevel level = h0.includeLevel("Level 2");
+			level.setParameterName("Members");
+			query.getAxis(Axis.ROWS).addHierarchy(h0);
+			query.setRangeCompaction(3);
+
+			String[] values = {
+					"[H0].[M1].[M1-0], [H0].[M1].[M1-1], [H0].[M1].[M1-2], [H0].[M1].[M1-3], [H0].[M2].[M2-5]",
+					"[H0].[M1].[M1-4]",
+					"," };
+			query.setParameter("Members", values[0]);
+			QueryTemplate inclusion = QueryTemplate.compile(query);
+			level.setParameterSelectionType(SelectionType.EXCLUSION);
+			QueryTemplate exclusion = QueryTemplate.compile(query);
+			for (QueryTemplate template : new QueryTemplate[] { inclusion, exclusion }) {
+				level.setParameterSelectionType(template == inclusion ? SelectionType.INCLUSION : SelectionType.EXCLUSION);
+				for (String value : values) {
+					query.setParameter("Members", value);
+					Map<String, String> bound = new HashMap<String, String>();
+					bound.put("Members", value);
+					assertEquals(query.getMdx(), template.bind(bound));
+				}
+			}
+			// explicit exclusions apply to the parameter members too
+			h0.excludeMember("[H0].[M1].[M1-2]");
+			for (SelectionType type : new SelectionType[] { SelectionType.INCLUSION, SelectionType.EXCLUSION }) {
+				level.setParameterSelectionType(type);
+				query.setParameter("Members", values[0]);
+				QueryTemplate template = QueryTemplate.compile(query);
+				for (String value : values) {
+					query.setParameter("Members", value);
+					Map<String, String> bound = new HashMap<String, String>();
+					bound.put("Members", value);
+					assertEquals(query.getMdx(), template.bind(bound));
+				}
+			}
+			level.setParameterSelectionType(SelectionType.INCLUSION);
+			// no members falls back to all members of the level
+			Map<String, String> empty = new HashMap<String, String>();
+			empty.put("Members", ",");
+			assertTrue(inclusion.bind(empty).contains("[H0].[Level 2].Members"));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testCellCountOverflow() {
+		final Position position = (Position) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { Position.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return "getMembers".equals(method.getName()) ? new ArrayList<Member>() : null;
+					}
+				});
+		final CellSetAxis axis = (CellSetAxis) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { CellSetAxis.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if ("getPositionCount".equals(method.getName())) {
+							return 1 << 16;
+						}
+						return "getPositions".equals(method.getName()) ? Collections.nCopies(1 << 16, position) : null;
+					}
+				});
+		CellSet cellSet = (CellSet) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { CellSet.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return "getAxes".equals(method.getName()) ? Arrays.asList(axis, axis) : null;
+					}
+				});
+		try {
+			CellSets.getCellCount(cellSet);
+			fail("cell count should overflow");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			MaterializedResult.of(cellSet);
+			fail("materializing should fail");
+		} catch (OlapException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("too many cells"));
+		}
+	}
+
+	public void testMutableInclusions() {
+		try {
+			Cube cube = SyntheticCube.builder().hierarchies(1).levels(1).childrenPerMember(3).build();
+			Query query = new Query("inclusions", cube);
+			QueryHierarchy h0 = query.getHierarchy("H0");
+			query.getAxis(Axis.ROWS).addHierarchy(h0);
+			Member m0 = cube.lookupMember(IdentifierNode.parseIdentifier("[H0].[M0]").getSegmentList());
+			Member m1 = cube.lookupMember(IdentifierNode.parseIdentifier("[H0].[M1]").getSegmentList());
+			Member m2 = cube.lookupMember(IdentifierNode.parseIdentifier("[H0].[M2]").getSegmentList());
+			h0.includeMembers(Arrays.asList(m0, m1));
+			QueryLevel level = h0.getActiveLevel("Level 1");
+
+			List<Member> inclusions = level.getInclusions();
+			inclusions.add(m2);
+			inclusions.add(m0);
+			inclusions.remove(m1);
+			assertEquals(Arrays.asList(m0, m2), level.getIncludedMembers());
+			assertTrue(level.isIncluded(m2));
+			assertFalse(level.isIncluded(m1));
+			assertTrue(query.getMdx().contains("{[H0].[M0], [H0].[M2]}"));
+
+			long version = query.getVersion();
+			inclusions.add(0, m1);
+			assertEquals(Arrays.asList(m1, m0, m2), level.getIncludedMembers());
+			assertTrue(query.getVersion() > version);
+			version = query.getVersion();
+			inclusions.add(m1);
+			assertEquals(version, query.getVersion());
+			level.getExclusions().add(m0);
+			assertTrue(level.isExcluded(m0));
+			assertTrue(query.getMdx().contains("Except("));
+
+			try {
+				level.getIncludedMembers().add(m1);
+				fail();
+			} catch (UnsupportedOperationException e) {
+				// read-only snapshot
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testQueryCopyCalculated() {
+		try {
+			Cube cube = SyntheticCube.builder().hierarchies(1).levels(1).childrenPerMember(3).build();
+			Query query = new Query("original", cube);
+			QueryHierarchy h0 = query.getHierarchy("H0");
+			h0.includeLevel("Level 1");
+			h0.addFilter(new NameFilter(h0.getHierarchy(), "M0"));
+			query.getAxis(Axis.ROWS).addHierarchy(h0);
+			CalculatedMember member = query.createCalculatedMember(h0, "Total", "[H0].[M0] + [H0].[M1]", null);
+			h0.includeCalculatedMember(member);
+			CalculatedMeasure measure = query.createCalculatedMeasure("Double", "[Measures].[Measure 0] * 2", null);
+			query.getDetails().add(measure);
+			String mdx = query.getMdx();
+
+			Query copy = query.copy("variant");
+			QueryHierarchy copiedH0 = copy.getHierarchy("H0");
+			CalculatedMember copiedMember = copiedH0.getCalculatedMembers().get("Total");
+			CalculatedMeasure copiedMeasure = copy.getCalculatedMeasure("Double");
+			assertNotSame(member, copiedMember);
+			assertSame(copiedMember, copiedH0.getActiveCalculatedMembers().get(0));
+			assertNotSame(measure, copiedMeasure);
+			assertSame(copiedMeasure, copy.getDetails().getMeasures().get(0));
+			assertNotSame(h0.getFilters().get(0), copiedH0.getFilters().get(0));
+			assertEquals(mdx, copy.getMdx());
+
+			copiedMeasure.setFormatProperty("FORMAT_STRING", "#,##0");
+			((NameFilter) copiedH0.getFilters().get(0)).getFilterExpression().add("M1");
+			copy.touch();
+			assertNull(measure.getFormatPropertyValue("FORMAT_STRING"));
+			assertEquals(1, ((NameFilter) h0.getFilters().get(0)).getFilterExpression().size());
+			assertEquals(mdx, query.getMdx());
+			assertFalse(mdx.equals(copy.getMdx()));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testCubeSkeletonPerConnection() {
+		try {
+			Cube first = SyntheticCube.builder().url("synthetic:shared").hierarchies(2).levels(2).childrenPerMember(2).build();
+			Cube second = SyntheticCube.builder().url("synthetic:shared").hierarchies(2).levels(2).childrenPerMember(2).build();
+			assertEquals(CubeSkeleton.getIdentity(first), CubeSkeleton.getIdentity(second));
+
+			Query firstQuery = new Query("first", first);
+			Query secondQuery = new Query("second", second);
+			assertSame(first.getHierarchies().get("H1"), firstQuery.getHierarchy("H1").getHierarchy());
+			assertSame(second.getHierarchies().get("H1"), secondQuery.getHierarchy("H1").getHierarchy());
+			assertSame(second.getMeasures().get(0), secondQuery.getMeasure("Measure 0"));
+			assertSame(second.getHierarchies().get("H1").getLevels().get(1),
+					secondQuery.getSkeleton().getLevel("[H1].[Level 1]").getLevel());
+			assertSame(firstQuery.getSkeleton(), new Query("again", first).getSkeleton());
+
+			// same identity, fewer levels and measures, e.g. another role
+			Cube restricted = SyntheticCube.builder().url("synthetic:shared").hierarchies(2).levels(1).childrenPerMember(2).measures(1).build();
+			assertEquals(CubeSkeleton.getIdentity(first), CubeSkeleton.getIdentity(restricted));
+			Query restrictedQuery = new Query("restricted", restricted);
+			assertSame(restricted.getMeasures().get(0), restrictedQuery.getMeasure("Measure 0"));
+			assertNull(restrictedQuery.getSkeleton().findMeasure("Measure 1"));
+			assertNull(restrictedQuery.getSkeleton().getLevel("[H1].[Level 2]"));
+			assertSame(restricted.getHierarchies().get("H1").getLevels().get(1),
+					restrictedQuery.getSkeleton().getLevel("[H1].[Level 1]").getLevel());
+
+			WeakReference<Cube> reference = new WeakReference<Cube>(first);
+			first = null;
+			firstQuery = null;
+			for (int i = 0; i < 50 && reference.get() != null; i++) {
+				System.gc();
+				Thread.sleep(20);
+			}
+			// the skeleton cache must not keep the cube reachable
+			assertNull(reference.get());
+			assertSame(second.getHierarchies().get("H0"), new Query("third", second).getHierarchy("H0").getHierarchy());
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testQueryDiffSelections() {
+		try {
+			Cube cube = SyntheticCube.builder().hierarchies(1).levels(1).childrenPerMember(3).build();
+			Query query = new Query("diff", cube);
+			QueryHierarchy h0 = query.getHierarchy("H0");
+			h0.includeMember("[H0].[M0]");
+			query.getAxis(Axis.ROWS).addHierarchy(h0);
+			QueryLevel level = h0.getActiveLevel("Level 1");
+
+			QueryDiff.Snapshot before = QueryDiff.snapshot(query);
+			assertTrue(QueryDiff.between(before, QueryDiff.snapshot(query)).isEmpty());
+
+			Member m1 = cube.lookupMember(IdentifierNode.parseIdentifier("[H0].[M1]").getSegmentList());
+			level.getInclusions().add(m1);
+			QueryDiff diff = QueryDiff.between(before, QueryDiff.snapshot(query));
+			assertTrue(diff.contains(QueryDiff.Change.ROWS));
+
+			before = QueryDiff.snapshot(query);
+			h0.excludeMember("[H0].[M2]");
+			assertTrue(QueryDiff.between(before, QueryDiff.snapshot(query)).contains(QueryDiff.Change.ROWS));
+
+			before = QueryDiff.snapshot(query);
+			query.getAxis(Axis.ROWS).sort(SortOrder.DESC, "[Measures].[Measure 0]");
+			assertTrue(QueryDiff.between(before, QueryDiff.snapshot(query)).isSortOnly());
+
+			// a sorted page holds other rows
+			query.getAxis(Axis.ROWS).setLimit(1);
+			before = QueryDiff.snapshot(query);
+			query.getAxis(Axis.ROWS).sort(SortOrder.ASC, "[Measures].[Measure 0]");
+			diff = QueryDiff.between(before, QueryDiff.snapshot(query));
+			assertFalse(diff.isSortOnly());
+			assertTrue(diff.contains(QueryDiff.Change.ROWS));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testExcludeUniqueNames() {
+		try {
+			Cube cube = SyntheticCube.builder().hierarchies(1).levels(1).childrenPerMember(3).build();
+			Query query = new Query("exclude names", cube);
+			QueryHierarchy h0 = query.getHierarchy("H0");
+			QueryLevel level = h0.includeLevel("Level 1");
+			level.includeUniqueNames(Arrays.asList("[H0].[M0]", "[H0].[M1]"));
+
+			level.excludeUniqueNames(Arrays.asList("[H0].[M1]"));
+			assertEquals(Arrays.asList("[H0].[M0]"), level.getInclusionNames());
+			assertEquals(Arrays.asList("[H0].[M1]"), level.getExclusionNames());
+			long version = query.getVersion();
+			level.excludeUniqueNames(Arrays.asList("[H0].[M1]"));
+			assertEquals(version, query.getVersion());
+
+			Cube failing = (Cube) Proxy.newProxyInstance(
+					getClass().getClassLoader(), new Class<?>[] { Cube.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) throws OlapException {
+							if ("lookupMember".equals(method.getName())) {
+								throw new OlapException("lookup failed");
+							}
+							return null;
+						}
+					});
+			MemberSelection selection = new MemberSelection(failing);
+			selection.addUniqueName("[H0].[M0]");
+			try {
+				selection.asList();
+				fail();
+			} catch (OlapException e) {
+				assertEquals("lookup failed", e.getMessage());
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testExecuteAsyncCancelled() {
+		try {
+			Cube cube = SyntheticCube.builder().hierarchies(1).levels(1).childrenPerMember(3).build();
+			Query query = new Query("async cancel", cube);
+			QueryHierarchy h0 = query.getHierarchy("H0");
+			h0.includeLevel("Level 1");
+			query.getAxis(Axis.ROWS).addHierarchy(h0);
+
+			final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+			final CountDownLatch started = new CountDownLatch(1);
+			final CountDownLatch proceed = new CountDownLatch(1);
+			final CountDownLatch released = new CountDownLatch(1);
+			final CellSet cellSet = (CellSet) Proxy.newProxyInstance(
+					getClass().getClassLoader(), new Class<?>[] { CellSet.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							if ("close".equals(method.getName())) {
+								events.add("cellSet.close");
+							}
+							return "isClosed".equals(method.getName()) ? Boolean.FALSE : null;
+						}
+					});
+			final OlapStatement statement = (OlapStatement) Proxy.newProxyInstance(
+					getClass().getClassLoader(), new Class<?>[] { OlapStatement.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+							if ("executeOlapQuery".equals(method.getName())) {
+								started.countDown();
+								proceed.await();
+								return cellSet;
+							}
+							if ("close".equals(method.getName())) {
+								events.add("statement.close");
+							}
+							return "isClosed".equals(method.getName()) ? Boolean.FALSE : null;
+						}
+					});
+			query.setExecutor(new QueryExecutor() {
+				public OlapStatement createStatement(Query q) {
+					return statement;
+				}
+				public void releaseStatement(OlapStatement s) {
+					events.add("release");
+					released.countDown();
+				}
+			});
+
+			CompletableFuture<CellSet> future = query.executeAsync(new Executor() {
+				public void execute(Runnable command) {
+					new Thread(command).start();
+				}
+			});
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			assertTrue(future.cancel(true));
+			proceed.countDown();
+			assertTrue(released.await(5, TimeUnit.SECONDS));
+			// the result nobody can get is closed, and its statement released
+			assertEquals(Arrays.asList("cellSet.close", "statement.close", "release"), events);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testGettersTouchQuery() {
+		try {
+			Cube cube = SyntheticCube.builder().hierarchies(2).levels(1).childrenPerMember(3).build();
+			Query query = new Query("getters", cube);
+			QueryHierarchy h0 = query.getHierarchy("H0");
+			QueryHierarchy h1 = query.getHierarchy("H1");
+			h0.includeLevel("Level 1");
+			h1.includeLevel("Level 1");
+			query.getAxis(Axis.ROWS).addHierarchy(h0);
+			query.getAxis(Axis.COLUMNS).addHierarchy(h1);
+			String mdx = query.getMdx();
+
+			h0.getFilters().add(new NameFilter(h0.getHierarchy(), "M0"));
+			assertFalse(mdx.equals(query.getMdx()));
+			h0.getFilters().clear();
+			assertEquals(mdx, query.getMdx());
+
+			query.getDetails().getMeasures().add(query.getMeasure("Measure 0"));
+			assertTrue(query.getMdx().contains("[Measures].[Measure 0]"));
+			query.getDetails().getMeasures().clear();
+			assertEquals(mdx, query.getMdx());
+
+			query.getAxis(Axis.COLUMNS).getQueryHierarchies().remove(h1);
+			assertFalse(query.getMdx().contains("[H1]"));
+			query.getAxis(Axis.COLUMNS).getQueryHierarchies().add(h1);
+			assertEquals(mdx, query.getMdx());
+
+			long version = query.getVersion();
+			h0.getActiveQueryLevels().clear();
+			assertTrue(query.getVersion() > version);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
+	public void testConcurrentResolve() {
+		try {
+			Cube cube = SyntheticCube.builder().hierarchies(1).levels(2).childrenPerMember(30).build();
+			final List<String> uniqueNames = new ArrayList<String>();
+			for (int parent = 0; parent < 30; parent++) {
+				for (int child = 0; child < 30; child++) {
+					uniqueNames.add("[H0].[M" + parent + "].[M" + parent + "-" + child + "]");
+				}
+			}
+			for (int round = 0; round < 20; round++) {
+				final MemberSelection selection = new MemberSelection(cube);
+				for (String uniqueName : uniqueNames) {
+					selection.addUniqueName(uniqueName);
+					// members that no longer exist are dropped while resolving
+					selection.addUniqueName(uniqueName.replace("-", "-missing-"));
+				}
+				final int readers = 4;
+				final List<List<Member>> results = new ArrayList<List<Member>>();
+				final CountDownLatch start = new CountDownLatch(1);
+				Thread[] threads = new Thread[readers];
+				for (int i = 0; i < readers; i++) {
+					threads[i] = new Thread() {
+						public void run() {
+							try {
+								start.await();
+								List<Member> members = selection.asList();
+								synchronized (results) {
+									results.add(members);
+								}
+							} catch (Exception e) {
+								e.printStackTrace();
+							}
+						}
+					};
+					threads[i].start();
+				}
+				start.countDown();
+				for (Thread thread : threads) {
+					thread.join(60000);
+				}
+				assertEquals(readers, results.size());
+				for (List<Member> members : results) {
+					assertEquals(uniqueNames.size(), members.size());
+					assertEquals(uniqueNames.get(42), members.get(42).getUniqueName());
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
 	public Cube getFoodmartCube(String cubeName) throws Exception {
 		OlapConnection connection = context.createConnection();
 		final OlapWrapper wrapper = connection;
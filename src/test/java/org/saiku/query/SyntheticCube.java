@@ -0,0 +1,976 @@
+/*  
+ *   Copyright 2014 Paul Stoellberger
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.saiku.query;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapDatabaseMetaData;
+import org.olap4j.OlapException;
+import org.olap4j.impl.ArrayNamedListImpl;
+import org.olap4j.impl.Named;
+import org.olap4j.impl.NamedListImpl;
+import org.olap4j.mdx.IdentifierSegment;
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.metadata.Catalog;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Database;
+import org.olap4j.metadata.Datatype;
+import org.olap4j.metadata.Dimension;
+import org.olap4j.metadata.Hierarchy;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Measure;
+import org.olap4j.metadata.Member;
+import org.olap4j.metadata.NamedList;
+import org.olap4j.metadata.NamedSet;
+import org.olap4j.metadata.Property;
+import org.olap4j.metadata.Schema;
+
+/**
+ * In-memory olap4j cube with generated metadata, for building queries and
+ * generating MDX at any scale without Mondrian or a database.
+ * <p>The cube has a measures dimension and a number of dimensions with one
+ * hierarchy each. Every hierarchy has an all member and a fixed number of
+ * levels below it, and every member has the same number of children, so
+ * level {@code d} has {@code childrenPerMember^d} members. Parent-child
+ * hierarchies have a single level that all non-all members belong to.
+ * <p>Members are generated on demand and compared by unique name, so even
+ * huge hierarchies only cost memory for the members that are used.
+ * <pre>
+ * Cube cube = SyntheticCube.builder()
+ *     .hierarchies(50).levels(4).childrenPerMember(20).build();
+ * Query query = new Query("stress", cube);
+ * </pre>
+ * <p>Names are generated as follows: hierarchy {@code [H3]}, levels
+ * {@code [H3].[Level 1]}, members {@code [H3].[M2].[M2-7]} and measures
+ * {@code [Measures].[Measure 0]}. The cube reports itself as Mondrian,
+ * executing queries is not supported.
+ */
+public final class SyntheticCube implements Cube, Named {
+
+	private final String name;
+	private final String url;
+	private final SyntheticSchema schema;
+	private final NamedList<Dimension> dimensions = new ArrayNamedListImpl<Dimension>() {
+		@Override
+		public String getName(Object element) {
+			return ((Dimension) element).getName();
+		}
+	};
+	private final NamedList<Hierarchy> hierarchies = new ArrayNamedListImpl<Hierarchy>() {
+		@Override
+		public String getName(Object element) {
+			return ((Hierarchy) element).getName();
+		}
+	};
+	private final List<Measure> measures = new ArrayList<Measure>();
+	private final SyntheticHierarchy measuresHierarchy;
+
+	private SyntheticCube(Builder builder) {
+		this.name = builder.name;
+		this.url = builder.url;
+		this.schema = new SyntheticSchema(this);
+		this.measuresHierarchy = new SyntheticHierarchy(this, "Measures", Dimension.Type.MEASURE, 0, 0, false);
+		addHierarchy(measuresHierarchy);
+		for (int i = 0; i < builder.measures; i++) {
+			measures.add(new SyntheticMeasure(measuresHierarchy, "Measure " + i));
+		}
+		for (int i = 0; i < builder.hierarchies; i++) {
+			boolean parentChild = i >= builder.hierarchies - builder.parentChildHierarchies;
+			addHierarchy(new SyntheticHierarchy(this, "H" + i, Dimension.Type.OTHER,
+					builder.levels, builder.childrenPerMember, parentChild));
+		}
+	}
+
+	private void addHierarchy(SyntheticHierarchy hierarchy) {
+		hierarchies.add(hierarchy);
+		dimensions.add(hierarchy.getDimension());
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Configures the shape of a {@link SyntheticCube}.
+	 */
+	public static final class Builder {
+
+		private String name = "Synthetic";
+		private String url = null;
+		private int hierarchies = 10;
+		private int levels = 3;
+		private int childrenPerMember = 10;
+		private int parentChildHierarchies = 0;
+		private int measures = 5;
+
+		private Builder() {
+		}
+
+		public Builder name(String name) {
+			this.name = name;
+			return this;
+		}
+
+		/**
+		 * @param url The connection URL, e.g. to build two cubes that look
+		 * like the same cube on two connections. By default every cube has
+		 * its own URL.
+		 */
+		public Builder url(String url) {
+			this.url = url;
+			return this;
+		}
+
+		/**
+		 * @param hierarchies The number of hierarchies besides the measures
+		 */
+		public Builder hierarchies(int hierarchies) {
+			this.hierarchies = hierarchies;
+			return this;
+		}
+
+		/**
+		 * @param levels The number of levels below the all level
+		 */
+		public Builder levels(int levels) {
+			this.levels = levels;
+			return this;
+		}
+
+		/**
+		 * @param childrenPerMember The number of children of every member
+		 * above the lowest level
+		 */
+		public Builder childrenPerMember(int childrenPerMember) {
+			this.childrenPerMember = childrenPerMember;
+			return this;
+		}
+
+		/**
+		 * @param parentChildHierarchies How many of the hierarchies, counted
+		 * from the last one, are parent-child hierarchies
+		 */
+		public Builder parentChildHierarchies(int parentChildHierarchies) {
+			this.parentChildHierarchies = parentChildHierarchies;
+			return this;
+		}
+
+		public Builder measures(int measures) {
+			this.measures = measures;
+			return this;
+		}
+
+		public SyntheticCube build() {
+			if (hierarchies < 0 || levels < 1 || childrenPerMember < 1 || measures < 1
+					|| parentChildHierarchies < 0 || parentChildHierarchies > hierarchies) {
+				throw new IllegalArgumentException("Invalid synthetic cube shape");
+			}
+			return new SyntheticCube(this);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getUniqueName() {
+		return "[" + name + "]";
+	}
+
+	public String getCaption() {
+		return name;
+	}
+
+	public String getDescription() {
+		return null;
+	}
+
+	public boolean isVisible() {
+		return true;
+	}
+
+	public Schema getSchema() {
+		return schema;
+	}
+
+	public NamedList<Dimension> getDimensions() {
+		return dimensions;
+	}
+
+	public NamedList<Hierarchy> getHierarchies() {
+		return hierarchies;
+	}
+
+	public List<Measure> getMeasures() {
+		return measures;
+	}
+
+	public NamedList<NamedSet> getSets() {
+		return new ArrayNamedListImpl<NamedSet>() {
+			@Override
+			public String getName(Object element) {
+				return ((NamedSet) element).getName();
+			}
+		};
+	}
+
+	public Collection<Locale> getSupportedLocales() {
+		return Collections.emptyList();
+	}
+
+	public boolean isDrillThroughEnabled() {
+		return false;
+	}
+
+	public Member lookupMember(List<IdentifierSegment> nameParts) throws OlapException {
+		if (nameParts.isEmpty()) {
+			return null;
+		}
+		Hierarchy hierarchy = hierarchies.get(nameParts.get(0).getName());
+		if (hierarchy == null) {
+			return null;
+		}
+		if (hierarchy == measuresHierarchy) {
+			if (nameParts.size() != 2) {
+				return null;
+			}
+			for (Measure measure : measures) {
+				if (measure.getName().equals(nameParts.get(1).getName())) {
+					return measure;
+				}
+			}
+			return null;
+		}
+		SyntheticMember member = ((SyntheticHierarchy) hierarchy).allMember;
+		for (int i = 1; i < nameParts.size(); i++) {
+			String segment = nameParts.get(i).getName();
+			if (i == 1 && segment.equals(member.getName())) {
+				continue;
+			}
+			member = member.getChild(segment);
+			if (member == null) {
+				return null;
+			}
+		}
+		return member;
+	}
+
+	public List<Member> lookupMembers(Set<Member.TreeOp> treeOps, List<IdentifierSegment> nameParts) throws OlapException {
+		Member member = lookupMember(nameParts);
+		if (member == null) {
+			return Collections.emptyList();
+		}
+		List<Member> result = new ArrayList<Member>();
+		if (treeOps.contains(Member.TreeOp.ANCESTORS)) {
+			result.addAll(member.getAncestorMembers());
+		}
+		if (treeOps.contains(Member.TreeOp.PARENT) && member.getParentMember() != null) {
+			result.add(member.getParentMember());
+		}
+		if (treeOps.contains(Member.TreeOp.SELF)) {
+			result.add(member);
+		}
+		if (treeOps.contains(Member.TreeOp.CHILDREN)) {
+			result.addAll(member.getChildMembers());
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return getUniqueName();
+	}
+
+	static String quote(String name) {
+		return "[" + name + "]";
+	}
+
+	private static final class SyntheticDimension implements Dimension, Named {
+
+		private final SyntheticHierarchy hierarchy;
+		private final Dimension.Type type;
+
+		private SyntheticDimension(SyntheticHierarchy hierarchy, Dimension.Type type) {
+			this.hierarchy = hierarchy;
+			this.type = type;
+		}
+
+		public String getName() {
+			return hierarchy.getName();
+		}
+
+		public String getUniqueName() {
+			return hierarchy.getUniqueName();
+		}
+
+		public String getCaption() {
+			return getName();
+		}
+
+		public String getDescription() {
+			return null;
+		}
+
+		public boolean isVisible() {
+			return true;
+		}
+
+		public NamedList<Hierarchy> getHierarchies() {
+			NamedList<Hierarchy> list = new ArrayNamedListImpl<Hierarchy>() {
+				@Override
+				public String getName(Object element) {
+					return ((Hierarchy) element).getName();
+				}
+			};
+			list.add(hierarchy);
+			return list;
+		}
+
+		public Dimension.Type getDimensionType() {
+			return type;
+		}
+
+		public Hierarchy getDefaultHierarchy() {
+			return hierarchy;
+		}
+	}
+
+	private static final class SyntheticHierarchy implements Hierarchy, Named {
+
+		private final SyntheticCube cube;
+		private final String name;
+		private final SyntheticDimension dimension;
+		private final NamedList<Level> levels = new ArrayNamedListImpl<Level>() {
+			@Override
+			public String getName(Object element) {
+				return ((Level) element).getName();
+			}
+		};
+		private final int depth;
+		private final int childrenPerMember;
+		private final boolean parentChild;
+		private final SyntheticMember allMember;
+
+		private SyntheticHierarchy(SyntheticCube cube, String name, Dimension.Type type,
+				int depth, int childrenPerMember, boolean parentChild)
+		{
+			this.cube = cube;
+			this.name = name;
+			this.dimension = new SyntheticDimension(this, type);
+			this.depth = depth;
+			this.childrenPerMember = childrenPerMember;
+			this.parentChild = parentChild;
+			if (type == Dimension.Type.MEASURE) {
+				levels.add(new SyntheticLevel(this, "MeasuresLevel", 0, Level.Type.REGULAR));
+				this.allMember = null;
+			} else {
+				levels.add(new SyntheticLevel(this, "(All)", 0, Level.Type.ALL));
+				if (parentChild) {
+					levels.add(new SyntheticLevel(this, "Node", 1, Level.Type.REGULAR));
+				} else {
+					for (int i = 1; i <= depth; i++) {
+						levels.add(new SyntheticLevel(this, "Level " + i, i, Level.Type.REGULAR));
+					}
+				}
+				this.allMember = new SyntheticMember(this, null, "All " + name, new int[0]);
+			}
+		}
+
+		private SyntheticLevel getLevel(int memberDepth) {
+			if (parentChild && memberDepth > 0) {
+				return (SyntheticLevel) levels.get(1);
+			}
+			return (SyntheticLevel) levels.get(memberDepth);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getUniqueName() {
+			return quote(name);
+		}
+
+		public String getCaption() {
+			return name;
+		}
+
+		public String getDescription() {
+			return null;
+		}
+
+		public boolean isVisible() {
+			return true;
+		}
+
+		public Dimension getDimension() {
+			return dimension;
+		}
+
+		public NamedList<Level> getLevels() {
+			return levels;
+		}
+
+		public boolean hasAll() {
+			return allMember != null;
+		}
+
+		public Member getDefaultMember() {
+			if (allMember == null) {
+				return cube.measures.get(0);
+			}
+			return allMember;
+		}
+
+		public NamedList<Member> getRootMembers() {
+			NamedList<Member> roots = new ArrayNamedListImpl<Member>() {
+				@Override
+				public String getName(Object element) {
+					return ((Member) element).getName();
+				}
+			};
+			if (allMember == null) {
+				roots.addAll(cube.measures);
+			} else {
+				roots.add(allMember);
+			}
+			return roots;
+		}
+
+		@Override
+		public String toString() {
+			return getUniqueName();
+		}
+	}
+
+	private static final class SyntheticLevel implements Level, Named {
+
+		private final SyntheticHierarchy hierarchy;
+		private final String name;
+		private final int depth;
+		private final Level.Type type;
+
+		private SyntheticLevel(SyntheticHierarchy hierarchy, String name, int depth, Level.Type type) {
+			this.hierarchy = hierarchy;
+			this.name = name;
+			this.depth = depth;
+			this.type = type;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getUniqueName() {
+			return hierarchy.getUniqueName() + "." + quote(name);
+		}
+
+		public String getCaption() {
+			return name;
+		}
+
+		public String getDescription() {
+			return null;
+		}
+
+		public boolean isVisible() {
+			return true;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public Hierarchy getHierarchy() {
+			return hierarchy;
+		}
+
+		public Dimension getDimension() {
+			return hierarchy.getDimension();
+		}
+
+		public Level.Type getLevelType() {
+			return type;
+		}
+
+		public boolean isCalculated() {
+			return false;
+		}
+
+		public NamedList<Property> getProperties() {
+			return emptyProperties();
+		}
+
+		public List<Member> getMembers() {
+			if (hierarchy.allMember == null) {
+				return new ArrayList<Member>(hierarchy.cube.measures);
+			}
+			List<Member> result = new ArrayList<Member>();
+			List<SyntheticMember> current = Collections.singletonList(hierarchy.allMember);
+			int memberDepth = 0;
+			while (!current.isEmpty()) {
+				if (hierarchy.getLevel(memberDepth) == this) {
+					result.addAll(current);
+				}
+				if (!hierarchy.parentChild && memberDepth == depth) {
+					break;
+				}
+				List<SyntheticMember> next = new ArrayList<SyntheticMember>();
+				for (SyntheticMember m : current) {
+					next.addAll(m.getChildMembers());
+				}
+				current = next;
+				memberDepth++;
+			}
+			return result;
+		}
+
+		public int getCardinality() {
+			if (hierarchy.allMember == null) {
+				return hierarchy.cube.measures.size();
+			}
+			long cardinality = 0;
+			long atDepth = 1;
+			for (int d = 0; d <= hierarchy.depth; d++) {
+				if (hierarchy.getLevel(d) == this) {
+					cardinality += atDepth;
+				}
+				atDepth *= hierarchy.childrenPerMember;
+			}
+			return (int) Math.min(cardinality, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public String toString() {
+			return getUniqueName();
+		}
+	}
+
+	private static class SyntheticMember implements Member, Named {
+
+		private final SyntheticHierarchy hierarchy;
+		private final SyntheticMember parent;
+		private final String name;
+		private final String uniqueName;
+		private final int[] path;
+
+		private SyntheticMember(SyntheticHierarchy hierarchy, SyntheticMember parent, String name, int[] path) {
+			this.hierarchy = hierarchy;
+			this.parent = parent;
+			this.name = name;
+			this.path = path;
+			if (parent == null || parent.parent == null) {
+				this.uniqueName = hierarchy.getUniqueName() + "." + quote(name);
+			} else {
+				this.uniqueName = parent.uniqueName + "." + quote(name);
+			}
+		}
+
+		private SyntheticMember getChild(int index) {
+			int[] childPath = Arrays.copyOf(path, path.length + 1);
+			childPath[path.length] = index;
+			StringBuilder childName = new StringBuilder("M");
+			for (int i = 0; i < childPath.length; i++) {
+				if (i > 0) {
+					childName.append('-');
+				}
+				childName.append(childPath[i]);
+			}
+			return new SyntheticMember(hierarchy, this, childName.toString(), childPath);
+		}
+
+		private SyntheticMember getChild(String childName) {
+			if (path == null || path.length >= hierarchy.depth) {
+				return null;
+			}
+			int index;
+			try {
+				index = Integer.parseInt(childName.substring(childName.lastIndexOf(path.length == 0 ? 'M' : '-') + 1));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (index < 0 || index >= hierarchy.childrenPerMember) {
+				return null;
+			}
+			SyntheticMember child = getChild(index);
+			return child.name.equals(childName) ? child : null;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getUniqueName() {
+			return uniqueName;
+		}
+
+		public String getCaption() {
+			return name;
+		}
+
+		public String getDescription() {
+			return null;
+		}
+
+		public boolean isVisible() {
+			return true;
+		}
+
+		public NamedList<SyntheticMember> getChildMembers() {
+			NamedList<SyntheticMember> children = new NamedListImpl<SyntheticMember>();
+			if (path != null && path.length < hierarchy.depth) {
+				for (int i = 0; i < hierarchy.childrenPerMember; i++) {
+					children.add(getChild(i));
+				}
+			}
+			return children;
+		}
+
+		public int getChildMemberCount() {
+			return path != null && path.length < hierarchy.depth ? hierarchy.childrenPerMember : 0;
+		}
+
+		public Member getParentMember() {
+			return parent;
+		}
+
+		public Level getLevel() {
+			return hierarchy.getLevel(getDepth());
+		}
+
+		public Hierarchy getHierarchy() {
+			return hierarchy;
+		}
+
+		public Dimension getDimension() {
+			return hierarchy.getDimension();
+		}
+
+		public Member.Type getMemberType() {
+			return isAll() ? Member.Type.ALL : Member.Type.REGULAR;
+		}
+
+		public boolean isAll() {
+			return path != null && path.length == 0;
+		}
+
+		public boolean isChildOrEqualTo(Member member) {
+			for (Member m = this; m != null; m = m.getParentMember()) {
+				if (m.equals(member)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public boolean isCalculated() {
+			return false;
+		}
+
+		public int getSolveOrder() {
+			return 0;
+		}
+
+		public ParseTreeNode getExpression() {
+			return null;
+		}
+
+		public List<Member> getAncestorMembers() {
+			List<Member> ancestors = new ArrayList<Member>();
+			for (Member m = parent; m != null; m = m.getParentMember()) {
+				ancestors.add(m);
+			}
+			return ancestors;
+		}
+
+		public boolean isCalculatedInQuery() {
+			return false;
+		}
+
+		public Object getPropertyValue(Property property) {
+			return null;
+		}
+
+		public String getPropertyFormattedValue(Property property) {
+			return null;
+		}
+
+		public void setProperty(Property property, Object value) {
+			throw new UnsupportedOperationException();
+		}
+
+		public NamedList<Property> getProperties() {
+			return emptyProperties();
+		}
+
+		/**
+		 * The position of the member in its level.
+		 */
+		public int getOrdinal() {
+			int ordinal = 0;
+			if (path != null) {
+				for (int index : path) {
+					ordinal = ordinal * hierarchy.childrenPerMember + index;
+				}
+			}
+			return ordinal;
+		}
+
+		public boolean isHidden() {
+			return false;
+		}
+
+		public int getDepth() {
+			return path == null ? 0 : path.length;
+		}
+
+		public Member getDataMember() {
+			return null;
+		}
+
+		@Override
+		public int hashCode() {
+			return uniqueName.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof SyntheticMember
+					&& uniqueName.equals(((SyntheticMember) obj).uniqueName);
+		}
+
+		@Override
+		public String toString() {
+			return uniqueName;
+		}
+	}
+
+	private static final class SyntheticMeasure extends SyntheticMember implements Measure {
+
+		private SyntheticMeasure(SyntheticHierarchy hierarchy, String name) {
+			super(hierarchy, null, name, null);
+		}
+
+		public Measure.Aggregator getAggregator() {
+			return Measure.Aggregator.SUM;
+		}
+
+		public Datatype getDatatype() {
+			return Datatype.DOUBLE;
+		}
+	}
+
+	private static NamedList<Property> emptyProperties() {
+		return new ArrayNamedListImpl<Property>() {
+			@Override
+			public String getName(Object element) {
+				return ((Property) element).getName();
+			}
+		};
+	}
+
+	private static final class SyntheticSchema implements Schema {
+
+		private final SyntheticCube cube;
+		private final SyntheticCatalog catalog;
+
+		private SyntheticSchema(SyntheticCube cube) {
+			this.cube = cube;
+			this.catalog = new SyntheticCatalog(this);
+		}
+
+		public Catalog getCatalog() {
+			return catalog;
+		}
+
+		public String getName() {
+			return cube.getName();
+		}
+
+		public NamedList<Cube> getCubes() {
+			NamedList<Cube> cubes = new ArrayNamedListImpl<Cube>() {
+				@Override
+				public String getName(Object element) {
+					return ((Cube) element).getName();
+				}
+			};
+			cubes.add(cube);
+			return cubes;
+		}
+
+		public NamedList<Dimension> getSharedDimensions() {
+			return cube.getDimensions();
+		}
+
+		public Collection<Locale> getSupportedLocales() {
+			return Collections.emptyList();
+		}
+	}
+
+	private static final class SyntheticCatalog implements Catalog, Database {
+
+		private final SyntheticSchema schema;
+		private final OlapConnection connection;
+		private final OlapDatabaseMetaData metaData;
+
+		private SyntheticCatalog(SyntheticSchema schema) {
+			this.schema = schema;
+			ClassLoader loader = SyntheticCube.class.getClassLoader();
+			InvocationHandler handler = new BackendHandler(this);
+			this.connection = (OlapConnection) Proxy.newProxyInstance(
+					loader, new Class<?>[] { OlapConnection.class }, handler);
+			this.metaData = (OlapDatabaseMetaData) Proxy.newProxyInstance(
+					loader, new Class<?>[] { OlapDatabaseMetaData.class }, handler);
+		}
+
+		public NamedList<Schema> getSchemas() {
+			NamedList<Schema> schemas = new ArrayNamedListImpl<Schema>() {
+				@Override
+				public String getName(Object element) {
+					return ((Schema) element).getName();
+				}
+			};
+			schemas.add(schema);
+			return schemas;
+		}
+
+		public String getName() {
+			return schema.getName();
+		}
+
+		public OlapDatabaseMetaData getMetaData() {
+			return metaData;
+		}
+
+		public Database getDatabase() {
+			return this;
+		}
+
+		public OlapConnection getOlapConnection() {
+			return connection;
+		}
+
+		public String getDescription() {
+			return null;
+		}
+
+		public String getURL() {
+			if (schema.cube.url != null) {
+				return schema.cube.url;
+			}
+			return "synthetic:" + getName() + "@" + Integer.toHexString(System.identityHashCode(this));
+		}
+
+		public String getDataSourceInfo() {
+			return "Synthetic";
+		}
+
+		/**
+		 * The generated MDX is the one for Mondrian.
+		 */
+		public String getProviderName() {
+			return "Mondrian";
+		}
+
+		public List<Database.ProviderType> getProviderTypes() {
+			return Collections.singletonList(Database.ProviderType.MDP);
+		}
+
+		public List<Database.AuthenticationMode> getAuthenticationModes() {
+			return Collections.singletonList(Database.AuthenticationMode.Unauthenticated);
+		}
+
+		public NamedList<Catalog> getCatalogs() {
+			NamedList<Catalog> catalogs = new ArrayNamedListImpl<Catalog>() {
+				@Override
+				public String getName(Object element) {
+					return ((Catalog) element).getName();
+				}
+			};
+			catalogs.add(this);
+			return catalogs;
+		}
+	}
+
+	/*
+	 * Implements the few connection and database metadata methods the
+	 * query model uses. Everything else, e.g. creating statements, is not
+	 * supported.
+	 */
+	private static final class BackendHandler implements InvocationHandler {
+
+		private final SyntheticCatalog catalog;
+
+		private BackendHandler(SyntheticCatalog catalog) {
+			this.catalog = catalog;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name)) {
+				return catalog.getURL();
+			} else if ("unwrap".equals(name)) {
+				Class<?> type = (Class<?>) args[0];
+				if (type.isInstance(proxy)) {
+					return proxy;
+				}
+				throw new OlapException("Cannot unwrap to " + type.getName());
+			} else if ("isWrapperFor".equals(name)) {
+				return ((Class<?>) args[0]).isInstance(proxy);
+			} else if ("getConnection".equals(name) || "getOlapConnection".equals(name)) {
+				return catalog.connection;
+			} else if ("getMetaData".equals(name)) {
+				return catalog.metaData;
+			} else if ("getURL".equals(name)) {
+				return catalog.getURL();
+			} else if ("getOlapDatabase".equals(name)) {
+				return catalog;
+			} else if ("getOlapCatalog".equals(name) || "getCatalog".equals(name) && method.getReturnType() == Catalog.class) {
+				return catalog;
+			} else if ("getCatalog".equals(name)) {
+				return catalog.getName();
+			} else if ("getOlapCatalogs".equals(name)) {
+				return catalog.getCatalogs();
+			} else if ("getOlapSchema".equals(name)) {
+				return catalog.schema;
+			} else if ("setCatalog".equals(name) || "close".equals(name)) {
+				return null;
+			} else if ("isClosed".equals(name)) {
+				return false;
+			} else if ("getRoleName".equals(name)) {
+				return null;
+			} else if ("getDatabaseProductName".equals(name)) {
+				return catalog.getDataSourceInfo();
+			}
+			throw new UnsupportedOperationException(
+					"The synthetic cube does not support " + method.getDeclaringClass().getSimpleName() + "." + name);
+		}
+	}
+}